@@ -0,0 +1,23 @@
+import java.time.Duration;
+import java.time.Instant;
+
+/**
+ * Google access token together with the instant it stops being accepted
+ */
+final class AccessToken {
+    final String value;
+    final Instant expireTime;
+    
+    AccessToken(String value, Instant expireTime) {
+        this.value = value;
+        this.expireTime = expireTime;
+    }
+    
+    boolean expiresWithin(Duration window) {
+        return Instant.now().plus(window).isAfter(expireTime);
+    }
+    
+    boolean isExpired() {
+        return !Instant.now().isBefore(expireTime);
+    }
+}
@@ -0,0 +1,476 @@
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded pool of BigQuery connections created through the DriverShim class loader.
+ * 
+ * - minIdle connections are kept warm so borrowers never pay connect latency
+ * - maxSize caps the number of physical connections, leased, idle or out for validation;
+ *   borrow waits up to borrowTimeout for a lease and then for a slot
+ * - borrow never waits on isValid: a background HealthMonitor validates idle connections
+ *   that have not been used recently, on an interval that backs off while they stay healthy,
+ *   and evicts dead ones asynchronously
+ * - a connection whose lease sees a connection-level error (SQLState 08) is dropped on return
+ * - a maintenance task evicts connections idle longer than idleTimeout (down to minIdle)
+ *   and rotates connections whose access token is about to expire onto the current token
+ */
+final class ConnectionPool implements AutoCloseable {
+    
+    interface ConnectionFactory {
+        Connection connect(String accessToken) throws SQLException;
+    }
+    
+    // How often a borrower waiting for a free slot re-checks totalCount
+    private static final Duration SLOT_RECHECK = Duration.ofMillis(10);
+    
+    private final ConnectionFactory factory;
+    private final TokenProvider tokenProvider;
+    private final int minIdle;
+    private final int maxSize;
+    private final Duration borrowTimeout;
+    private final Duration idleTimeout;
+    private final Duration maintenanceInterval;
+    private final int validationTimeoutSeconds;
+    private final HealthMonitor healthMonitor;
+    private final AtomicInteger validating = new AtomicInteger();
+    private final Semaphore leases;
+    private final LinkedBlockingDeque<PooledConnection> idle = new LinkedBlockingDeque<>();
+    private final AtomicInteger totalCount = new AtomicInteger();
+    private final ScheduledExecutorService maintenance;
+    private volatile boolean closed;
+    
+    ConnectionPool(ConnectionFactory factory, TokenProvider tokenProvider, int minIdle, int maxSize,
+                   Duration borrowTimeout, Duration idleTimeout, Duration maintenanceInterval,
+                   int validationTimeoutSeconds, Duration healthMinInterval, Duration healthMaxInterval,
+                   Duration recentUseWindow) {
+        if (minIdle < 0 || maxSize < 1 || minIdle > maxSize) {
+            throw new IllegalArgumentException("Invalid pool bounds: minIdle=" + minIdle + ", maxSize=" + maxSize);
+        }
+        this.factory = factory;
+        this.tokenProvider = tokenProvider;
+        this.minIdle = minIdle;
+        this.maxSize = maxSize;
+        this.borrowTimeout = borrowTimeout;
+        this.idleTimeout = idleTimeout;
+        this.maintenanceInterval = maintenanceInterval;
+        this.validationTimeoutSeconds = validationTimeoutSeconds;
+        this.healthMonitor = new HealthMonitor(healthMinInterval, healthMaxInterval, recentUseWindow);
+        this.leases = new Semaphore(maxSize, true);
+        this.maintenance = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "connection-pool-maintenance");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+    
+    /**
+     * Fill the warm set and start background eviction / token rotation and health checks
+     */
+    void start() {
+        Metrics.watchPool(this);
+        fillToMinIdle();
+        long intervalMillis = maintenanceInterval.toMillis();
+        maintenance.scheduleWithFixedDelay(this::runMaintenance, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        healthMonitor.start();
+    }
+    
+    /**
+     * Borrow a connection; closing the returned connection gives it back to the pool
+     */
+    Connection borrow() throws SQLException {
+        if (closed) {
+            throw new SQLException("Connection pool is closed");
+        }
+        long deadline = System.nanoTime() + borrowTimeout.toNanos();
+        try {
+            if (!leases.tryAcquire(borrowTimeout.toMillis(), TimeUnit.MILLISECONDS)) {
+                throw borrowTimeout();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a pooled connection", e);
+        }
+        try {
+            while (true) {
+                PooledConnection pooled;
+                while ((pooled = idle.pollFirst()) != null) {
+                    if (isUsable(pooled)) {
+                        return pooled.lease();
+                    }
+                    discard(pooled);
+                }
+                if (reserveSlot()) {
+                    return openConnection().lease();
+                }
+                // Every physical connection is open (some out for validation): wait for one to come
+                // back, re-checking now and then since a discard frees a slot without touching idle
+                if (closed) {
+                    throw new SQLException("Connection pool is closed");
+                }
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    throw borrowTimeout();
+                }
+                pooled = idle.pollFirst(Math.min(remaining, SLOT_RECHECK.toNanos()), TimeUnit.NANOSECONDS);
+                if (pooled != null) {
+                    if (isUsable(pooled)) {
+                        return pooled.lease();
+                    }
+                    discard(pooled);
+                }
+            }
+        } catch (InterruptedException e) {
+            leases.release();
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a pooled connection", e);
+        } catch (SQLException | RuntimeException e) {
+            leases.release();
+            throw e;
+        }
+    }
+    
+    private SQLTimeoutException borrowTimeout() {
+        return new SQLTimeoutException("Timed out after " + borrowTimeout.toMillis()
+                + " ms waiting for a pooled connection (maxSize=" + maxSize + ")");
+    }
+    
+    /**
+     * Count one more physical connection if that stays within maxSize
+     */
+    private boolean reserveSlot() {
+        while (true) {
+            int total = totalCount.get();
+            if (total >= maxSize) {
+                return false;
+            }
+            if (totalCount.compareAndSet(total, total + 1)) {
+                return true;
+            }
+        }
+    }
+    
+    int getTotalCount() {
+        return totalCount.get();
+    }
+    
+    int getIdleCount() {
+        return idle.size();
+    }
+    
+    int getActiveCount() {
+        return maxSize - leases.availablePermits();
+    }
+    
+    int getMaxSize() {
+        return maxSize;
+    }
+    
+    @Override
+    public void close() {
+        closed = true;
+        Metrics.unwatchPool(this);
+        maintenance.shutdownNow();
+        healthMonitor.shutdown();
+        PooledConnection pooled;
+        while ((pooled = idle.pollFirst()) != null) {
+            discard(pooled);
+        }
+    }
+    
+    /**
+     * Open a physical connection on the current token; caller has already counted it in totalCount
+     */
+    private PooledConnection openConnection() throws SQLException {
+        try {
+            AccessToken token = tokenProvider.getToken();
+            return new PooledConnection(factory.connect(token.value), token);
+        } catch (SQLException | RuntimeException e) {
+            totalCount.decrementAndGet();
+            throw e;
+        } catch (Exception e) {
+            totalCount.decrementAndGet();
+            throw new SQLException("Could not obtain access token for pooled connection: " + e.getMessage(), e);
+        }
+    }
+    
+    /**
+     * Cheap in-memory checks only; liveness is the HealthMonitor's job
+     */
+    private boolean isUsable(PooledConnection pooled) {
+        return !pooled.broken && !pooled.token.expiresWithin(tokenProvider.refreshSkew);
+    }
+    
+    private void release(PooledConnection pooled) {
+        pooled.lastUsedNanos = System.nanoTime();
+        if (pooled.broken) {
+            healthMonitor.tighten();
+        }
+        if (closed || !isUsable(pooled)) {
+            discard(pooled);
+        } else {
+            // LIFO: hot connections stay hot, cold ones age out through idle eviction
+            idle.offerFirst(pooled);
+        }
+        leases.release();
+    }
+    
+    /**
+     * Drop a connection from the pool; the physical close (possibly a slow network call on a
+     * dead connection) runs on the maintenance thread
+     */
+    private void discard(PooledConnection pooled) {
+        totalCount.decrementAndGet();
+        try {
+            maintenance.execute(() -> closePhysical(pooled));
+        } catch (RejectedExecutionException e) {
+            closePhysical(pooled);
+        }
+    }
+    
+    private void closePhysical(PooledConnection pooled) {
+        try {
+            pooled.physical.close();
+        } catch (SQLException e) {
+            System.out.println("⚠ Error closing pooled connection: " + e.getMessage());
+        }
+    }
+    
+    private void runMaintenance() {
+        try {
+            long now = System.nanoTime();
+            for (PooledConnection pooled : idle) {
+                boolean expiring = pooled.token.expiresWithin(tokenProvider.refreshSkew);
+                boolean idleTooLong = now - pooled.lastUsedNanos > idleTimeout.toNanos() && idle.size() > minIdle;
+                if ((expiring || idleTooLong) && idle.remove(pooled)) {
+                    discard(pooled);
+                }
+            }
+            fillToMinIdle();
+        } catch (RuntimeException e) {
+            System.out.println("⚠ Connection pool maintenance failed: " + e.getMessage());
+        }
+    }
+    
+    private void fillToMinIdle() {
+        // Connections out for validation still count as idle
+        while (!closed && idle.size() + validating.get() < minIdle) {
+            if (!reserveSlot()) {
+                return;
+            }
+            try {
+                idle.offerLast(openConnection());
+            } catch (SQLException e) {
+                System.out.println("⚠ Could not open warm connection: " + e.getMessage());
+                return;
+            }
+        }
+    }
+    
+    /**
+     * Physical connection plus the token it was opened with
+     */
+    final class PooledConnection {
+        final Connection physical;
+        final AccessToken token;
+        volatile long lastUsedNanos = System.nanoTime();
+        volatile long lastValidatedNanos = System.nanoTime();
+        volatile boolean broken;
+        
+        PooledConnection(Connection physical, AccessToken token) {
+            this.physical = physical;
+            this.token = token;
+        }
+        
+        Connection lease() {
+            return (Connection) Proxy.newProxyInstance(
+                    Connection.class.getClassLoader(), new Class<?>[] {Connection.class}, new Lease(this));
+        }
+    }
+    
+    /**
+     * One borrow of a pooled connection; close() returns it and disables this handle
+     */
+    final class Lease implements InvocationHandler {
+        private final PooledConnection pooled;
+        private final AtomicBoolean returned = new AtomicBoolean();
+        
+        Lease(PooledConnection pooled) {
+            this.pooled = pooled;
+        }
+        
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    if (returned.compareAndSet(false, true)) {
+                        release(pooled);
+                    }
+                    return null;
+                case "isClosed":
+                    return returned.get() || pooled.physical.isClosed();
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "Pooled[" + pooled.physical + "]";
+                default:
+                    if (returned.get()) {
+                        throw new SQLException("Connection has been returned to the pool");
+                    }
+                    try {
+                        return method.invoke(pooled.physical, args);
+                    } catch (InvocationTargetException e) {
+                        Throwable cause = e.getCause();
+                        if (cause instanceof SQLException && ((SQLException) cause).getSQLState() != null
+                                && ((SQLException) cause).getSQLState().startsWith("08")) {
+                            // Connection-level failure: drop this connection when it is returned
+                            pooled.broken = true;
+                        }
+                        throw cause;
+                    }
+            }
+        }
+    }
+    
+    /**
+     * Validates idle connections in the background so borrow() never waits on a round trip.
+     * 
+     * - connections used or validated within recentUseWindow are skipped
+     * - a connection under validation is taken out of the idle deque, so no borrower gets it
+     * - after a clean sweep the interval doubles up to maxInterval; a failed validation or a
+     *   broken lease drops it back to minInterval
+     */
+    final class HealthMonitor {
+        private final long minIntervalNanos;
+        private final long maxIntervalNanos;
+        private final long recentUseNanos;
+        private final ExecutorService validators = chk_jdbc_fixed.newVirtualThreadExecutor("pool-validate", maxSize);
+        private volatile long intervalNanos;
+        private ScheduledFuture<?> nextSweep;
+        private boolean sweeping;
+        
+        HealthMonitor(Duration minInterval, Duration maxInterval, Duration recentUseWindow) {
+            this.minIntervalNanos = minInterval.toNanos();
+            this.maxIntervalNanos = Math.max(minIntervalNanos, maxInterval.toNanos());
+            this.recentUseNanos = recentUseWindow.toNanos();
+            this.intervalNanos = minIntervalNanos;
+        }
+        
+        void start() {
+            schedule(intervalNanos);
+        }
+        
+        void shutdown() {
+            validators.shutdownNow();
+        }
+        
+        /**
+         * Something went wrong on a connection: check the others soon
+         */
+        synchronized void tighten() {
+            intervalNanos = minIntervalNanos;
+            if (!sweeping && nextSweep != null && nextSweep.getDelay(TimeUnit.NANOSECONDS) > minIntervalNanos) {
+                schedule(minIntervalNanos);
+            }
+        }
+        
+        private synchronized void schedule(long delayNanos) {
+            if (closed) {
+                return;
+            }
+            if (nextSweep != null) {
+                nextSweep.cancel(false);
+            }
+            try {
+                nextSweep = maintenance.schedule(this::sweep, delayNanos, TimeUnit.NANOSECONDS);
+            } catch (RejectedExecutionException e) {
+                // pool closed concurrently
+            }
+        }
+        
+        private void sweep() {
+            synchronized (this) {
+                sweeping = true;
+            }
+            long now = System.nanoTime();
+            List<CompletableFuture<Boolean>> checks = new ArrayList<>();
+            for (PooledConnection pooled : idle) {
+                long lastGood = Math.max(pooled.lastUsedNanos, pooled.lastValidatedNanos);
+                if (!pooled.broken && now - lastGood < recentUseNanos) {
+                    continue;
+                }
+                validating.incrementAndGet();
+                if (!idle.remove(pooled)) {
+                    // Borrowed in the meantime
+                    validating.decrementAndGet();
+                    continue;
+                }
+                try {
+                    checks.add(CompletableFuture.supplyAsync(() -> validate(pooled), validators));
+                } catch (RejectedExecutionException e) {
+                    discard(pooled);
+                    validating.decrementAndGet();
+                }
+            }
+            CompletableFuture.allOf(checks.toArray(new CompletableFuture<?>[0])).whenComplete((ignored, error) -> {
+                boolean healthy = error == null;
+                for (CompletableFuture<Boolean> check : checks) {
+                    healthy &= !check.isCompletedExceptionally() && check.join();
+                }
+                intervalNanos = healthy ? Math.min(maxIntervalNanos, intervalNanos * 2) : minIntervalNanos;
+                if (!healthy) {
+                    fillToMinIdle();
+                }
+                synchronized (this) {
+                    sweeping = false;
+                    schedule(intervalNanos);
+                }
+            });
+        }
+        
+        private boolean validate(PooledConnection pooled) {
+            boolean valid;
+            try {
+                valid = !pooled.broken && chk_jdbc_fixed.isValid(pooled.physical, validationTimeoutSeconds);
+            } catch (SQLException e) {
+                valid = false;
+            }
+            // Stop counting it as validating only once it is back in idle (or out of totalCount),
+            // otherwise fillToMinIdle sees a gap and opens a replacement
+            try {
+                if (valid && !closed) {
+                    pooled.lastValidatedNanos = System.nanoTime();
+                    idle.offerLast(pooled);
+                    if (closed && idle.remove(pooled)) {
+                        discard(pooled);
+                    }
+                } else {
+                    discard(pooled);
+                }
+            } finally {
+                validating.decrementAndGet();
+            }
+            return valid;
+        }
+    }
+}
@@ -0,0 +1,28 @@
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.Enumeration;
+
+/**
+ * Defined inside a driver class loader by IndexedDriverClassLoader.deregisterDrivers; removes the
+ * DriverManager entries for drivers from that loader. Must only reference JDK classes.
+ */
+public final class DriverDeregistrar {
+    
+    public static int deregisterAll() {
+        ClassLoader own = DriverDeregistrar.class.getClassLoader();
+        int count = 0;
+        for (Enumeration<Driver> drivers = DriverManager.getDrivers(); drivers.hasMoreElements(); ) {
+            Driver driver = drivers.nextElement();
+            if (driver.getClass().getClassLoader() == own) {
+                try {
+                    DriverManager.deregisterDriver(driver);
+                    count++;
+                } catch (SQLException e) {
+                    // leave it; the leak shows up in retiredLoadersAlive
+                }
+            }
+        }
+        return count;
+    }
+}
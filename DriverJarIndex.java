@@ -0,0 +1,152 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.JarFile;
+import java.util.zip.ZipFile;
+
+/**
+ * Package-to-jar index for a driver directory. Persisted as a small text file and
+ * reused while every jar still has the same name, size and mtime; rebuilt otherwise.
+ */
+final class DriverJarIndex {
+    private static final String FORMAT_HEADER = "chk_jdbc driver index v1";
+    
+    // Directory inside the jars ("com/simba/googlebigquery/jdbc") -> jar positions holding it
+    private final Map<String, int[]> packages;
+    
+    private DriverJarIndex(Map<String, int[]> packages) {
+        this.packages = packages;
+    }
+    
+    int[] jarsFor(String directory) {
+        return packages.get(directory);
+    }
+    
+    int packageCount() {
+        return packages.size();
+    }
+    
+    static DriverJarIndex loadOrBuild(File[] jarFiles, File indexFile) throws IOException {
+        DriverJarIndex index = load(jarFiles, indexFile);
+        if (index != null) {
+            return index;
+        }
+        long start = System.nanoTime();
+        index = build(jarFiles);
+        System.out.println("✓ Built driver package index in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+        try {
+            index.save(jarFiles, indexFile);
+        } catch (IOException e) {
+            System.out.println("⚠ Could not save driver index " + indexFile + ": " + e.getMessage());
+        }
+        return index;
+    }
+    
+    static DriverJarIndex build(File[] jarFiles) throws IOException {
+        Map<String, List<Integer>> positions = new HashMap<>();
+        for (int i = 0; i < jarFiles.length; i++) {
+            final int jar = i;
+            try (JarFile jarFile = openJar(jarFiles[i])) {
+                jarFile.versionedStream().forEach(entry -> {
+                    if (!entry.isDirectory()) {
+                        List<Integer> jars = positions.computeIfAbsent(directoryOf(entry.getName()), k -> new ArrayList<>());
+                        if (jars.isEmpty() || jars.get(jars.size() - 1) != jar) {
+                            jars.add(jar);
+                        }
+                    }
+                });
+            }
+        }
+        Map<String, int[]> packages = new HashMap<>(positions.size() * 2);
+        for (Map.Entry<String, List<Integer>> entry : positions.entrySet()) {
+            packages.put(entry.getKey(), entry.getValue().stream().mapToInt(Integer::intValue).toArray());
+        }
+        return new DriverJarIndex(packages);
+    }
+    
+    private static DriverJarIndex load(File[] jarFiles, File indexFile) {
+        if (!indexFile.isFile()) {
+            return null;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(indexFile.toPath(), StandardCharsets.UTF_8)) {
+            if (!FORMAT_HEADER.equals(reader.readLine())) {
+                return null;
+            }
+            int jarCount = Integer.parseInt(reader.readLine());
+            if (jarCount != jarFiles.length) {
+                return null;
+            }
+            for (File jarFile : jarFiles) {
+                if (!jarSignature(jarFile).equals(reader.readLine())) {
+                    System.out.println("✓ Driver jars changed, rebuilding package index");
+                    return null;
+                }
+            }
+            Map<String, int[]> packages = new HashMap<>();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int tab = line.lastIndexOf('\t');
+                String[] jars = line.substring(tab + 1).split(",");
+                int[] positions = new int[jars.length];
+                for (int i = 0; i < jars.length; i++) {
+                    positions[i] = Integer.parseInt(jars[i]);
+                }
+                packages.put(line.substring(0, tab), positions);
+            }
+            return new DriverJarIndex(packages);
+        } catch (IOException | RuntimeException e) {
+            System.out.println("⚠ Ignoring unreadable driver index " + indexFile + ": " + e.getMessage());
+            return null;
+        }
+    }
+    
+    private void save(File[] jarFiles, File indexFile) throws IOException {
+        File tempFile = new File(indexFile.getPath() + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(tempFile.toPath(), StandardCharsets.UTF_8)) {
+            writer.write(FORMAT_HEADER);
+            writer.newLine();
+            writer.write(Integer.toString(jarFiles.length));
+            writer.newLine();
+            for (File jarFile : jarFiles) {
+                writer.write(jarSignature(jarFile));
+                writer.newLine();
+            }
+            for (Map.Entry<String, int[]> entry : packages.entrySet()) {
+                writer.write(entry.getKey());
+                writer.write('\t');
+                int[] jars = entry.getValue();
+                for (int i = 0; i < jars.length; i++) {
+                    if (i > 0) {
+                        writer.write(',');
+                    }
+                    writer.write(Integer.toString(jars[i]));
+                }
+                writer.newLine();
+            }
+        }
+        Files.move(tempFile.toPath(), indexFile.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+    
+    private static String jarSignature(File jarFile) {
+        return jarFile.getName() + "\t" + jarFile.length() + "\t" + jarFile.lastModified();
+    }
+    
+    static String directoryOf(String entryName) {
+        int slash = entryName.lastIndexOf('/');
+        return slash < 0 ? "" : entryName.substring(0, slash);
+    }
+    
+    static JarFile openJar(File file) throws IOException {
+        return new JarFile(file, true, ZipFile.OPEN_READ, JarFile.runtimeVersion());
+    }
+}
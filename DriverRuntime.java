@@ -0,0 +1,213 @@
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ClassLoadingMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.ref.WeakReference;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Owns the driver class loader for one driver directory.
+ * 
+ * - reload() loads the jars now in the directory into a new loader and retires the old one:
+ *   its drivers are deregistered from DriverManager, cached Driver instances dropped and jars closed
+ * - reloadIfChanged() does that only when a jar was added, removed or replaced;
+ *   -Dchk.driverReloadSeconds polls it, so a new driver version is picked up without a restart
+ * - retired loaders are tracked weakly; one still reachable after GC is a metaspace leak
+ */
+final class DriverRuntime implements AutoCloseable {
+    final String driverPath;
+    private final AtomicInteger generation = new AtomicInteger(1);
+    private final List<WeakReference<IndexedDriverClassLoader>> retired = new CopyOnWriteArrayList<>();
+    private volatile IndexedDriverClassLoader classLoader;
+    private volatile String fingerprint;
+    private volatile Instant loadedAt = Instant.now();
+    private ScheduledExecutorService reloadPoller;
+    private boolean closed;
+    
+    DriverRuntime(String driverPath, IndexedDriverClassLoader classLoader) {
+        this.driverPath = driverPath;
+        this.classLoader = classLoader;
+        this.fingerprint = fingerprint(new File(driverPath));
+        preload(classLoader);
+    }
+    
+    IndexedDriverClassLoader classLoader() {
+        return classLoader;
+    }
+    
+    Driver driver() throws SQLException {
+        return chk_jdbc_fixed.bigQueryDriver(classLoader);
+    }
+    
+    int generation() {
+        return generation.get();
+    }
+    
+    /**
+     * Swap in a loader over the current jars; false if the new jars could not be loaded
+     */
+    synchronized boolean reload() {
+        if (closed) {
+            return false;
+        }
+        String newFingerprint = fingerprint(new File(driverPath));
+        IndexedDriverClassLoader replacement = chk_jdbc_fixed.createDriverClassLoader(driverPath);
+        if (replacement == null) {
+            System.out.println("✗ Driver reload failed; keeping generation " + generation.get());
+            return false;
+        }
+        IndexedDriverClassLoader previous = classLoader;
+        classLoader = replacement;
+        fingerprint = newFingerprint;
+        loadedAt = Instant.now();
+        int current = generation.incrementAndGet();
+        preload(replacement);
+        int deregistered = retire(previous);
+        System.out.println("✓ Driver generation " + current + " loaded from " + driverPath + "; generation "
+                + (current - 1) + " retired (" + previous.definedClassCount() + " classes, "
+                + deregistered + " DriverManager entries removed)");
+        return true;
+    }
+    
+    boolean reloadIfChanged() {
+        if (fingerprint(new File(driverPath)).equals(fingerprint)) {
+            return false;
+        }
+        return reload();
+    }
+    
+    synchronized void startReloadPolling(Duration interval) {
+        if (reloadPoller != null || closed) {
+            return;
+        }
+        reloadPoller = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "driver-reload");
+            t.setDaemon(true);
+            return t;
+        });
+        reloadPoller.scheduleWithFixedDelay(() -> {
+            try {
+                reloadIfChanged();
+            } catch (RuntimeException e) {
+                System.out.println("⚠ Driver reload check failed: " + e.getMessage());
+            }
+        }, interval.toMillis(), interval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Retired loaders not yet garbage collected; call after a GC to spot leaks
+     */
+    int retiredLoadersAlive() {
+        retired.removeIf(ref -> ref.get() == null);
+        int alive = 0;
+        for (WeakReference<IndexedDriverClassLoader> ref : retired) {
+            // After close() the last generation is retired but still held here
+            if (ref.get() != classLoader) {
+                alive++;
+            }
+        }
+        return alive;
+    }
+    
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (reloadPoller != null) {
+            reloadPoller.shutdownNow();
+        }
+        retire(classLoader);
+    }
+    
+    /**
+     * Loaded-class and metaspace figures for this runtime and the JVM
+     */
+    String report() {
+        System.gc();
+        ClassLoadingMXBean classes = ManagementFactory.getClassLoadingMXBean();
+        StringBuilder out = new StringBuilder();
+        out.append("Driver runtime: ").append(driverPath).append(System.lineSeparator());
+        out.append("  Generation: ").append(generation.get()).append(" (loaded ").append(loadedAt).append(")").append(System.lineSeparator());
+        out.append("  Driver classes loaded: ").append(classLoader.definedClassCount()).append(System.lineSeparator());
+        int alive = retiredLoadersAlive();
+        out.append("  Retired loaders still reachable after GC: ").append(alive)
+                .append(alive > 0 ? "  ⚠ possible metaspace leak" : "").append(System.lineSeparator());
+        out.append("  JVM classes: ").append(classes.getLoadedClassCount()).append(" loaded, ")
+                .append(classes.getUnloadedClassCount()).append(" unloaded").append(System.lineSeparator());
+        out.append(String.format("  Metaspace used: %.1f MB", metaspaceUsedBytes() / 1048576.0));
+        return out.toString();
+    }
+    
+    private int retire(IndexedDriverClassLoader loader) {
+        int deregistered = loader.deregisterDrivers() + deregisterShims(loader);
+        chk_jdbc_fixed.DRIVER_INSTANCES.keySet().removeIf(key -> key.getKey() == loader);
+        try {
+            loader.close();
+        } catch (IOException e) {
+            System.out.println("⚠ Error closing driver class loader: " + e.getMessage());
+        }
+        retired.add(new WeakReference<>(loader));
+        return deregistered;
+    }
+    
+    /**
+     * DriverShim entries (ours, so visible from here) that wrap a driver from loader
+     */
+    private static int deregisterShims(ClassLoader loader) {
+        int count = 0;
+        for (Driver registered : Collections.list(DriverManager.getDrivers())) {
+            if (registered instanceof chk_jdbc_fixed.DriverShim && ((chk_jdbc_fixed.DriverShim) registered).driver.getClass().getClassLoader() == loader) {
+                try {
+                    DriverManager.deregisterDriver(registered);
+                    count++;
+                } catch (SQLException e) {
+                    System.out.println("⚠ Could not deregister driver shim: " + e.getMessage());
+                }
+            }
+        }
+        return count;
+    }
+    
+    private static void preload(IndexedDriverClassLoader loader) {
+        if (Boolean.getBoolean("chk.preloadDriverClasses")) {
+            chk_jdbc_fixed.preloadDriverClasses(loader);
+        }
+    }
+    
+    private static String fingerprint(File driverDir) {
+        File[] jarFiles = driverDir.listFiles((dir, name) -> name.toLowerCase().endsWith(".jar"));
+        if (jarFiles == null) {
+            return "";
+        }
+        Arrays.sort(jarFiles);
+        StringBuilder out = new StringBuilder();
+        for (File jar : jarFiles) {
+            out.append(jar.getName()).append('\t').append(jar.length()).append('\t').append(jar.lastModified()).append('\n');
+        }
+        return out.toString();
+    }
+    
+    static long metaspaceUsedBytes() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if ("Metaspace".equals(pool.getName())) {
+                return pool.getUsage().getUsed();
+            }
+        }
+        return 0;
+    }
+}
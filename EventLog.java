@@ -0,0 +1,310 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Pattern;
+
+/**
+ * In-memory event log. Every line printed to System.out (and anything passed to record) goes
+ * into a fixed-size ring; nothing touches the disk unless dump is called on failure. The
+ * metrics endpoint can serve it read-only at /events (-Dchk.metricsEvents=true).
+ * 
+ * - record is lock-free: one getAndIncrement to claim a slot and one ordered store, so the
+ *   oldest events are overwritten rather than anyone waiting
+ * - console output is asynchronous: captureConsole swaps System.out for a stream that records
+ *   the line and queues it for a daemon thread that does the actual write; a shutdown hook
+ *   prints whatever is still queued
+ * - the console queue is bounded (-Dchk.consoleQueueCapacity): when the terminal can't keep
+ *   up, lines are dropped from the echo only (they are still in the ring) and counted
+ * - failure dumps are rate-limited so a failing load test doesn't write one file per cycle
+ * - format (used for dumps and /events) redacts access tokens, JWTs and token previews
+ */
+final class EventLog {
+    // In-memory event log (all console output), written to EVENT_LOG_DIR only on failure or on request
+    private static final int EVENT_LOG_CAPACITY = 8192;
+    private static final String EVENT_LOG_DIR = "/opt/denodo/work/eloi_work";
+    private static final Duration EVENT_LOG_DUMP_INTERVAL = Duration.ofSeconds(30);
+    // Lines the console writer may fall behind by before echoes are dropped
+    private static final int CONSOLE_QUEUE_CAPACITY = 4096;
+    
+    private static final int CAPACITY = Integer.highestOneBit(Math.max(64, Integer.getInteger("chk.eventLogCapacity", EVENT_LOG_CAPACITY)));
+    private static final int MASK = CAPACITY - 1;
+    private static final AtomicReferenceArray<Event> RING = new AtomicReferenceArray<>(CAPACITY);
+    private static final AtomicLong NEXT = new AtomicLong();
+    private static final AtomicLong LAST_FAILURE_DUMP = new AtomicLong(
+            System.nanoTime() - EVENT_LOG_DUMP_INTERVAL.toNanos());
+    
+    private static final Pattern TOKEN_PREVIEW = Pattern.compile("(?i)(token preview: )\\S+");
+    private static final Pattern BEARER = Pattern.compile("(Bearer )\\S+");
+    private static final Pattern GOOGLE_ACCESS_TOKEN = Pattern.compile("ya29\\.[\\w.-]+");
+    private static final Pattern JWT = Pattern.compile("eyJ[\\w-]+\\.[\\w-]+\\.[\\w-]*");
+    
+    // Lines waiting for the console writer thread
+    private static final BlockingQueue<String> CONSOLE_QUEUE = new ArrayBlockingQueue<>(
+            Math.max(64, Integer.getInteger("chk.consoleQueueCapacity", CONSOLE_QUEUE_CAPACITY)));
+    private static final AtomicLong CONSOLE_DROPPED = new AtomicLong();
+    private static final AtomicLong CONSOLE_DROPPED_REPORTED = new AtomicLong();
+    private static volatile PrintStream console;
+    private static volatile Thread consoleWriter;
+    
+    private EventLog() {
+    }
+    
+    static final class Event {
+        final long seq;
+        final long epochMillis;
+        final String thread;
+        final String message;
+        
+        Event(long seq, long epochMillis, String thread, String message) {
+            this.seq = seq;
+            this.epochMillis = epochMillis;
+            this.thread = thread;
+            this.message = message;
+        }
+    }
+    
+    static void record(String message) {
+        long seq = NEXT.getAndIncrement();
+        RING.lazySet((int) (seq & MASK), new Event(seq, System.currentTimeMillis(), Thread.currentThread().getName(), message));
+    }
+    
+    /**
+     * Route System.out through the event log, echoing to the real console from a background thread
+     */
+    static synchronized void captureConsole() {
+        if (console != null) {
+            return;
+        }
+        console = System.out;
+        Thread writer = new Thread(EventLog::writeConsole, "console-writer");
+        writer.setDaemon(true);
+        consoleWriter = writer;
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(EventLog::flushConsole, "console-flush"));
+        System.setOut(new RecordingStream(true));
+    }
+    
+    /**
+     * A stream that only records into the event log (for output that would swamp the console)
+     */
+    static PrintStream silentStream() {
+        return new RecordingStream(false);
+    }
+    
+    /**
+     * Console lines dropped because the writer thread fell behind
+     */
+    static long consoleDropped() {
+        return CONSOLE_DROPPED.get();
+    }
+    
+    private static void echo(String line) {
+        if (!CONSOLE_QUEUE.offer(line)) {
+            CONSOLE_DROPPED.incrementAndGet();
+        }
+        Thread writer = consoleWriter;
+        if (writer != null) {
+            LockSupport.unpark(writer);
+        }
+    }
+    
+    private static void writeConsole() {
+        while (true) {
+            flushConsole();
+            LockSupport.park();
+        }
+    }
+    
+    private static synchronized void flushConsole() {
+        PrintStream out = console;
+        String line;
+        while ((line = CONSOLE_QUEUE.poll()) != null) {
+            out.println(line);
+        }
+        long dropped = CONSOLE_DROPPED.get();
+        long unreported = dropped - CONSOLE_DROPPED_REPORTED.getAndSet(dropped);
+        if (unreported > 0) {
+            out.println("⚠ Console fell behind, " + unreported + " line(s) not shown (still in the event log)");
+        }
+        out.flush();
+    }
+    
+    /**
+     * Events still in the ring, oldest first
+     */
+    static List<Event> snapshot() {
+        long end = NEXT.get();
+        List<Event> events = new ArrayList<>((int) Math.min(end, CAPACITY));
+        for (long seq = Math.max(0, end - CAPACITY); seq < end; seq++) {
+            Event event = RING.get((int) (seq & MASK));
+            // Skip slots claimed but not yet written, or already overwritten by a newer event
+            if (event != null && event.seq == seq) {
+                events.add(event);
+            }
+        }
+        return events;
+    }
+    
+    static String format(List<Event> events) {
+        StringBuilder out = new StringBuilder(events.size() * 80);
+        long dropped = events.isEmpty() ? NEXT.get() : events.get(0).seq;
+        out.append("# ").append(events.size()).append(" events");
+        if (dropped > 0) {
+            out.append(", ").append(dropped).append(" older events overwritten");
+        }
+        out.append('\n');
+        for (Event event : events) {
+            out.append(Instant.ofEpochMilli(event.epochMillis)).append(" [").append(event.thread).append("] ")
+                    .append(redact(event.message)).append('\n');
+        }
+        return out.toString();
+    }
+    
+    /**
+     * message with anything token-like replaced; lines are recorded as printed and only redacted on the way out
+     */
+    static String redact(String message) {
+        String redacted = TOKEN_PREVIEW.matcher(message).replaceAll("$1[redacted]");
+        redacted = BEARER.matcher(redacted).replaceAll("$1[redacted]");
+        redacted = GOOGLE_ACCESS_TOKEN.matcher(redacted).replaceAll("ya29.[redacted]");
+        return JWT.matcher(redacted).replaceAll("[redacted JWT]");
+    }
+    
+    /**
+     * Write the ring to EVENT_LOG_DIR (or -Dchk.eventLogDir); returns the file, or null if it could not be written
+     */
+    static Path dump(String reason) {
+        List<Event> events = snapshot();
+        String stamp = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss-SSS")
+                .withZone(ZoneOffset.UTC).format(Instant.now());
+        Path file = Paths.get(System.getProperty("chk.eventLogDir", EVENT_LOG_DIR),
+                "chk_jdbc_events-" + stamp + ".log");
+        try {
+            Files.createDirectories(file.getParent());
+            Files.writeString(file, "# " + reason + "\n" + format(events));
+            record("Event log written to " + file + " (" + reason + ")");
+            return file;
+        } catch (IOException | RuntimeException e) {
+            record("Could not write event log to " + file + ": " + e);
+            return null;
+        }
+    }
+    
+    /**
+     * dump and tell the user where it went
+     */
+    static void dumpOnFailure(String reason) {
+        LAST_FAILURE_DUMP.set(System.nanoTime());
+        Path file = dump(reason);
+        System.out.println(file != null ? "  Event log for this failure: " + file
+                : "  Event log could not be written (set -Dchk.eventLogDir)");
+    }
+    
+    /**
+     * dumpOnFailure for paths that can fail over and over (load cycles, connect attempts):
+     * at most once per EVENT_LOG_DUMP_INTERVAL
+     */
+    static void dumpOnRepeatedFailure(String reason) {
+        long now = System.nanoTime();
+        long last = LAST_FAILURE_DUMP.get();
+        if (now - last >= EVENT_LOG_DUMP_INTERVAL.toNanos() && LAST_FAILURE_DUMP.compareAndSet(last, now)) {
+            dumpOnFailure(reason);
+        }
+    }
+    
+    /**
+     * PrintStream that records each line. println(String) - nearly every call in this tool -
+     * goes straight to the ring without taking the PrintStream lock; other writes are
+     * assembled into lines first.
+     */
+    private static final class RecordingStream extends PrintStream {
+        private final boolean echo;
+        private final LineAssembler lines;
+        
+        RecordingStream(boolean echo) {
+            this(echo, new LineAssembler(echo));
+        }
+        
+        private RecordingStream(boolean echo, LineAssembler lines) {
+            super(lines, true, StandardCharsets.UTF_8);
+            this.echo = echo;
+            this.lines = lines;
+        }
+        
+        @Override
+        public void println(String line) {
+            if (lines.hasPartialLine()) {
+                super.println(line);
+                return;
+            }
+            String message = String.valueOf(line);
+            record(message);
+            if (echo) {
+                echo(message);
+            }
+        }
+        
+        @Override
+        public void println(Object value) {
+            println(String.valueOf(value));
+        }
+        
+        @Override
+        public void println() {
+            println("");
+        }
+    }
+    
+    private static final class LineAssembler extends OutputStream {
+        private final boolean echo;
+        private final ByteArrayOutputStream pending = new ByteArrayOutputStream(128);
+        
+        LineAssembler(boolean echo) {
+            this.echo = echo;
+        }
+        
+        synchronized boolean hasPartialLine() {
+            return pending.size() > 0;
+        }
+        
+        @Override
+        public synchronized void write(int b) {
+            if (b == '\n') {
+                String line = pending.toString(StandardCharsets.UTF_8);
+                pending.reset();
+                if (line.endsWith("\r")) {
+                    line = line.substring(0, line.length() - 1);
+                }
+                record(line);
+                if (echo) {
+                    echo(line);
+                }
+            } else {
+                pending.write(b);
+            }
+        }
+        
+        @Override
+        public synchronized void write(byte[] bytes, int offset, int length) {
+            for (int i = offset; i < offset + length; i++) {
+                write(bytes[i]);
+            }
+        }
+    }
+}
@@ -0,0 +1,197 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.security.CodeSource;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+
+/**
+ * Parallel-capable class loader over the driver jars that resolves classes and resources
+ * through DriverJarIndex: a lookup opens only the jars that contain the package instead
+ * of walking every jar in the bundle.
+ */
+final class IndexedDriverClassLoader extends URLClassLoader {
+    static {
+        ClassLoader.registerAsParallelCapable();
+    }
+    
+    private final File[] jarFiles;
+    private final URL[] jarUrls;
+    private final DriverJarIndex index;
+    private final AtomicReferenceArray<JarFile> openJars;
+    private final AtomicInteger definedClasses = new AtomicInteger();
+    private volatile boolean closed;
+    private Class<?> deregistrar;
+    
+    IndexedDriverClassLoader(File[] jarFiles, DriverJarIndex index, ClassLoader parent) throws IOException {
+        super(toUrls(jarFiles), parent);
+        this.jarFiles = jarFiles;
+        this.jarUrls = getURLs();
+        this.index = index;
+        this.openJars = new AtomicReferenceArray<>(jarFiles.length);
+    }
+    
+    private static URL[] toUrls(File[] jarFiles) throws IOException {
+        URL[] urls = new URL[jarFiles.length];
+        for (int i = 0; i < jarFiles.length; i++) {
+            urls[i] = jarFiles[i].toURI().toURL();
+        }
+        return urls;
+    }
+    
+    @Override
+    protected Class<?> findClass(String name) throws ClassNotFoundException {
+        String entryName = name.replace('.', '/') + ".class";
+        int[] jars = index.jarsFor(DriverJarIndex.directoryOf(entryName));
+        if (jars != null) {
+            for (int jar : jars) {
+                try {
+                    JarFile jarFile = jar(jar);
+                    JarEntry entry = jarFile.getJarEntry(entryName);
+                    if (entry != null) {
+                        return define(name, jar, jarFile, entry);
+                    }
+                } catch (IOException e) {
+                    throw new ClassNotFoundException(name, e);
+                }
+            }
+        }
+        throw new ClassNotFoundException(name);
+    }
+    
+    private Class<?> define(String name, int jar, JarFile jarFile, JarEntry entry) throws IOException {
+        byte[] bytes;
+        try (InputStream in = jarFile.getInputStream(entry)) {
+            bytes = in.readAllBytes();
+        }
+        int dot = name.lastIndexOf('.');
+        if (dot > 0) {
+            String packageName = name.substring(0, dot);
+            if (getDefinedPackage(packageName) == null) {
+                try {
+                    Manifest manifest = jarFile.getManifest();
+                    if (manifest != null) {
+                        definePackage(packageName, manifest, jarUrls[jar]);
+                    } else {
+                        definePackage(packageName, null, null, null, null, null, null, null);
+                    }
+                } catch (IllegalArgumentException e) {
+                    // Another thread defined it first
+                }
+            }
+        }
+        // Code signers are only available once the entry has been read
+        CodeSource codeSource = new CodeSource(jarUrls[jar], entry.getCodeSigners());
+        Class<?> defined = defineClass(name, bytes, 0, bytes.length, codeSource);
+        definedClasses.incrementAndGet();
+        return defined;
+    }
+    
+    int definedClassCount() {
+        return definedClasses.get();
+    }
+    
+    /**
+     * Remove every DriverManager entry for a driver class from this loader. DriverManager only
+     * lets code from the driver's own loader see and deregister it, so DriverDeregistrar is
+     * defined in this loader and run from here (the same trick servlet containers use).
+     */
+    synchronized int deregisterDrivers() {
+        try {
+            if (deregistrar == null) {
+                String resource = DriverDeregistrar.class.getName().replace('.', '/') + ".class";
+                byte[] bytes;
+                try (InputStream in = DriverDeregistrar.class.getClassLoader().getResourceAsStream(resource)) {
+                    if (in == null) {
+                        System.out.println("⚠ Cannot deregister drivers: " + resource + " not readable (run from compiled classes)");
+                        return 0;
+                    }
+                    bytes = in.readAllBytes();
+                }
+                deregistrar = defineClass(DriverDeregistrar.class.getName(), bytes, 0, bytes.length);
+            }
+            return (Integer) deregistrar.getMethod("deregisterAll").invoke(null);
+        } catch (IOException | ReflectiveOperationException | LinkageError e) {
+            System.out.println("⚠ Could not deregister drivers: " + e);
+            return 0;
+        }
+    }
+    
+    @Override
+    public URL findResource(String name) {
+        int[] jars = index.jarsFor(DriverJarIndex.directoryOf(name));
+        if (jars != null) {
+            for (int jar : jars) {
+                URL url = resourceUrl(jar, name);
+                if (url != null) {
+                    return url;
+                }
+            }
+        }
+        return null;
+    }
+    
+    @Override
+    public Enumeration<URL> findResources(String name) {
+        List<URL> urls = new ArrayList<>();
+        int[] jars = index.jarsFor(DriverJarIndex.directoryOf(name));
+        if (jars != null) {
+            for (int jar : jars) {
+                URL url = resourceUrl(jar, name);
+                if (url != null) {
+                    urls.add(url);
+                }
+            }
+        }
+        return Collections.enumeration(urls);
+    }
+    
+    private URL resourceUrl(int jar, String name) {
+        try {
+            if (jar(jar).getJarEntry(name) != null) {
+                return new URL("jar:" + jarUrls[jar] + "!/" + name);
+            }
+        } catch (IOException e) {
+            System.out.println("⚠ Could not read " + jarFiles[jar] + ": " + e.getMessage());
+        }
+        return null;
+    }
+    
+    private JarFile jar(int position) throws IOException {
+        JarFile jarFile = openJars.get(position);
+        if (jarFile == null) {
+            if (closed) {
+                throw new IOException("Driver class loader is closed");
+            }
+            JarFile opened = DriverJarIndex.openJar(jarFiles[position]);
+            if (openJars.compareAndSet(position, null, opened)) {
+                jarFile = opened;
+            } else {
+                opened.close();
+                jarFile = openJars.get(position);
+            }
+        }
+        return jarFile;
+    }
+    
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        for (int i = 0; i < openJars.length(); i++) {
+            JarFile jarFile = openJars.getAndSet(i, null);
+            if (jarFile != null) {
+                jarFile.close();
+            }
+        }
+        super.close();
+    }
+}
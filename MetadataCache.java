@@ -0,0 +1,783 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.Driver;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Caching layer for DatabaseMetaData on connections opened through openDriverConnection.
+ * Schema introspection (getTables / getColumns per table, ...) is one BigQuery API call per
+ * JDBC call; this answers repeats from memory.
+ * 
+ * - Results are materialized and cached per call, grouped by dataset (schema argument) and
+ *   scoped by URL, project and principal (see principal), so one identity never sees rows
+ *   listed under another's permissions
+ * - Fresh for the dataset's TTL (-Dchk.metadataTtlSeconds, or -Dchk.metadataTtlSeconds.<dataset>);
+ *   after that the cached rows are still served while a background refresh reloads them, up
+ *   to METADATA_CACHE_MAX_AGE, after which the caller waits for a reload on its own connection
+ * - Background refreshes of one scope and dataset run one at a time on a single connection
+ *   of their own (same driver, URL and properties, with a current token from the provider
+ *   registered through refreshWith)
+ * - Bounded to METADATA_CACHE_MAX_ROWS rows in total, least recently used results evicted first
+ * - Persisted to a snapshot file (-Dchk.metadataSnapshot) every METADATA_SNAPSHOT_INTERVAL and
+ *   at exit, and read back on first use, so a restarted process answers from the snapshot
+ *   right away and refreshes behind it
+ * 
+ * Off unless -Dchk.metadataCache=true: cached rows can lag behind DDL by up to the TTL.
+ */
+final class MetadataCache {
+    // Fresh for the TTL, then served while refreshed in the background up to MAX_AGE;
+    // snapshot written to METADATA_SNAPSHOT so a restarted process starts warm
+    private static final Duration METADATA_CACHE_TTL = Duration.ofMinutes(10);
+    private static final Duration METADATA_CACHE_MAX_AGE = Duration.ofHours(24);
+    private static final int METADATA_CACHE_MAX_ROWS = 500_000;
+    private static final String METADATA_SNAPSHOT = "/opt/denodo/work/eloi_work/chk_jdbc_metadata.snapshot";
+    private static final Duration METADATA_SNAPSHOT_INTERVAL = Duration.ofMinutes(1);
+    // Background refreshes running at once when virtual threads are unavailable
+    private static final int METADATA_REFRESH_THREADS = 4;
+    
+    private static final Set<String> CACHED_METHODS = Set.of(
+            "getTables", "getColumns", "getPrimaryKeys", "getSchemas", "getCatalogs", "getTableTypes");
+    private static final int SNAPSHOT_MAGIC = 0x43484B4D;
+    private static final int SNAPSHOT_VERSION = 3;
+    private static volatile MetadataCache shared;
+    private static volatile TokenProvider refreshTokens;
+    
+    /**
+     * One materialized metadata result set
+     */
+    static final class Result {
+        final String dataset;
+        final String[] labels;
+        final int[] types;
+        final String[] typeNames;
+        final List<Object[]> rows;
+        final long loadedMillis;
+        
+        Result(String dataset, String[] labels, int[] types, String[] typeNames, List<Object[]> rows, long loadedMillis) {
+            this.dataset = dataset;
+            this.labels = labels;
+            this.types = types;
+            this.typeNames = typeNames;
+            this.rows = rows;
+            this.loadedMillis = loadedMillis;
+        }
+        
+        static Result read(String dataset, ResultSet rs) throws SQLException {
+            try (ResultSet results = rs) {
+                ResultSetMetaData meta = results.getMetaData();
+                int columns = meta.getColumnCount();
+                String[] labels = new String[columns];
+                int[] types = new int[columns];
+                String[] typeNames = new String[columns];
+                for (int i = 0; i < columns; i++) {
+                    labels[i] = meta.getColumnLabel(i + 1);
+                    types[i] = meta.getColumnType(i + 1);
+                    typeNames[i] = String.valueOf(meta.getColumnTypeName(i + 1));
+                }
+                List<Object[]> rows = new ArrayList<>();
+                while (results.next()) {
+                    Object[] row = new Object[columns];
+                    for (int i = 0; i < columns; i++) {
+                        row[i] = normalize(results.getObject(i + 1));
+                    }
+                    rows.add(row);
+                }
+                return new Result(dataset, labels, types, typeNames, rows, System.currentTimeMillis());
+            }
+        }
+        
+        // Metadata columns are strings and small integers; anything else is kept as its string form
+        private static Object normalize(Object value) {
+            if (value == null || value instanceof String || value instanceof Integer || value instanceof Long
+                    || value instanceof Short || value instanceof Boolean || value instanceof Double) {
+                return value;
+            }
+            return value.toString();
+        }
+        
+        /**
+         * Forward-only, read-only ResultSet over the cached rows
+         */
+        ResultSet resultSet() {
+            ResultSetMetaData meta = proxy(ResultSetMetaData.class, (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "getColumnCount":
+                        return labels.length;
+                    case "getColumnName":
+                    case "getColumnLabel":
+                        return labels[(Integer) args[0] - 1];
+                    case "getColumnType":
+                        return types[(Integer) args[0] - 1];
+                    case "getColumnTypeName":
+                        return typeNames[(Integer) args[0] - 1];
+                    case "isNullable":
+                        return ResultSetMetaData.columnNullableUnknown;
+                    default:
+                        return chk_jdbc_fixed.defaultValue(method.getReturnType());
+                }
+            });
+            int[] cursor = {0};
+            boolean[] state = new boolean[2]; // closed, last value was null
+            return proxy(ResultSet.class, (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "next":
+                        if (state[0]) {
+                            throw new SQLException("ResultSet is closed");
+                        }
+                        return ++cursor[0] <= rows.size();
+                    case "close":
+                        state[0] = true;
+                        return null;
+                    case "isClosed":
+                        return state[0];
+                    case "wasNull":
+                        return state[1];
+                    case "getMetaData":
+                        return meta;
+                    case "findColumn":
+                        return column((String) args[0]);
+                    case "getRow":
+                        return cursor[0] <= rows.size() ? cursor[0] : 0;
+                    case "getType":
+                        return ResultSet.TYPE_FORWARD_ONLY;
+                    case "getConcurrency":
+                        return ResultSet.CONCUR_READ_ONLY;
+                    default:
+                        break;
+                }
+                if (method.getName().startsWith("get") && args != null && args.length >= 1
+                        && (args[0] instanceof Integer || args[0] instanceof String)) {
+                    if (cursor[0] < 1 || cursor[0] > rows.size()) {
+                        throw new SQLException("No current row");
+                    }
+                    int index = args[0] instanceof Integer ? (Integer) args[0] : column((String) args[0]);
+                    Object value = rows.get(cursor[0] - 1)[index - 1];
+                    state[1] = value == null;
+                    return convert(value, args.length == 2 && args[1] instanceof Class ? (Class<?>) args[1] : method.getReturnType());
+                }
+                return chk_jdbc_fixed.defaultValue(method.getReturnType());
+            });
+        }
+        
+        private int column(String label) throws SQLException {
+            for (int i = 0; i < labels.length; i++) {
+                if (labels[i].equalsIgnoreCase(label)) {
+                    return i + 1;
+                }
+            }
+            throw new SQLException("No column " + label);
+        }
+        
+        private static Object convert(Object value, Class<?> type) {
+            if (value == null) {
+                return chk_jdbc_fixed.defaultValue(type);
+            }
+            if (type == String.class) {
+                return value.toString();
+            }
+            if (type == int.class || type == Integer.class) {
+                return value instanceof Number ? ((Number) value).intValue() : Integer.parseInt(value.toString().trim());
+            }
+            if (type == long.class || type == Long.class) {
+                return value instanceof Number ? ((Number) value).longValue() : Long.parseLong(value.toString().trim());
+            }
+            if (type == short.class || type == Short.class) {
+                return value instanceof Number ? ((Number) value).shortValue() : Short.parseShort(value.toString().trim());
+            }
+            if (type == double.class || type == Double.class) {
+                return value instanceof Number ? ((Number) value).doubleValue() : Double.parseDouble(value.toString().trim());
+            }
+            if (type == boolean.class || type == Boolean.class) {
+                return value instanceof Boolean ? value : value instanceof Number ? ((Number) value).intValue() != 0
+                        : "true".equalsIgnoreCase(value.toString().trim()) || "1".equals(value.toString().trim());
+            }
+            return value;
+        }
+    }
+    
+    /**
+     * One cached call, re-run against whatever DatabaseMetaData it is handed
+     */
+    private interface Reader {
+        Result read(DatabaseMetaData metaData) throws Exception;
+    }
+    
+    /**
+     * Stale results of one scope and dataset, reloaded in order on one connection
+     */
+    private static final class Refresh {
+        final Callable<Connection> opener;
+        final ArrayDeque<Stale> pending = new ArrayDeque<>();
+        
+        Refresh(Callable<Connection> opener) {
+            this.opener = opener;
+        }
+    }
+    
+    private static final class Stale {
+        final String key;
+        final CompletableFuture<Result> future;
+        final Reader reader;
+        
+        Stale(String key, CompletableFuture<Result> future, Reader reader) {
+            this.key = key;
+            this.future = future;
+            this.reader = reader;
+        }
+    }
+    
+    private final LinkedHashMap<String, Result> entries = new LinkedHashMap<>(256, 0.75f, true);
+    private long totalRows;
+    private final ConcurrentHashMap<String, CompletableFuture<Result>> loading = new ConcurrentHashMap<>();
+    // scope + dataset -> stale results waiting for that dataset's refresh connection
+    private final Map<String, Refresh> refreshing = new HashMap<>();
+    private final ExecutorService refreshers = chk_jdbc_fixed.newVirtualThreadExecutor("metadata-refresh", METADATA_REFRESH_THREADS);
+    private final Path snapshotFile;
+    private final Duration ttl;
+    private final Duration maxAge;
+    private final int maxRows;
+    private volatile boolean dirty;
+    final LongAdder hits = new LongAdder();
+    final LongAdder misses = new LongAdder();
+    final LongAdder refreshes = new LongAdder();
+    final LongAdder evictions = new LongAdder();
+    
+    MetadataCache(Path snapshotFile, Duration ttl, Duration maxAge, int maxRows) {
+        this.snapshotFile = snapshotFile;
+        this.ttl = ttl;
+        this.maxAge = maxAge;
+        this.maxRows = maxRows;
+    }
+    
+    static MetadataCache shared() {
+        MetadataCache cache = shared;
+        if (cache == null) {
+            synchronized (MetadataCache.class) {
+                cache = shared;
+                if (cache == null) {
+                    cache = new MetadataCache(
+                            Paths.get(System.getProperty("chk.metadataSnapshot", METADATA_SNAPSHOT)),
+                            Duration.ofSeconds(Long.getLong("chk.metadataTtlSeconds", METADATA_CACHE_TTL.getSeconds())),
+                            METADATA_CACHE_MAX_AGE, Integer.getInteger("chk.metadataMaxRows", METADATA_CACHE_MAX_ROWS));
+                    cache.readSnapshot();
+                    cache.startSnapshots();
+                    shared = cache;
+                }
+            }
+        }
+        return cache;
+    }
+    
+    /**
+     * Background refreshes connecting with a Bearer token use the current token of provider
+     * instead of the one the original connection was opened with
+     */
+    static void refreshWith(TokenProvider provider) {
+        refreshTokens = provider;
+    }
+    
+    /**
+     * connection with getMetaData answered through the shared cache (when enabled); driver,
+     * url and props open the cache's own connection for background refreshes
+     */
+    static Connection wrap(Connection connection, Driver driver, String url, Properties props) {
+        if (!Boolean.getBoolean("chk.metadataCache")) {
+            return connection;
+        }
+        return shared().cached(connection, driver, url, props);
+    }
+    
+    Connection cached(Connection connection, Driver driver, String url, Properties props) {
+        // Calls with a null catalog mean the URL's project, so results are scoped by it
+        String scope = url.split(";", 2)[0] + "/" + chk_jdbc_fixed.jdbcUrlProperty(url, "ProjectId") + "/" + principal(url, props);
+        Properties connectProps = (Properties) props.clone();
+        Callable<Connection> opener = () -> refreshConnection(driver, url, connectProps);
+        AtomicReference<DatabaseMetaData> metaData = new AtomicReference<>();
+        return proxy(Connection.class, (proxy, method, args) -> {
+            if ("getMetaData".equals(method.getName())) {
+                DatabaseMetaData cached = metaData.get();
+                if (cached == null) {
+                    DatabaseMetaData live = connection.getMetaData();
+                    cached = metaData((Connection) proxy, live, scope, opener);
+                    if (!metaData.compareAndSet(null, cached)) {
+                        cached = metaData.get();
+                    }
+                }
+                return cached;
+            }
+            return invoke(connection, method, args);
+        });
+    }
+    
+    /**
+     * Connect like url / props did, with the Bearer token (in either) swapped for the current
+     * one from refreshWith's provider: the original may have expired by the time a refresh runs
+     */
+    private static Connection refreshConnection(Driver driver, String url, Properties props) throws Exception {
+        String original = props.getProperty("OAuthAccessToken", chk_jdbc_fixed.jdbcUrlProperty(url, "OAuthAccessToken"));
+        TokenProvider tokens = refreshTokens;
+        if (original == null || original.isEmpty() || tokens == null || tokens.isShutdown()) {
+            return chk_jdbc_fixed.connectInDriverLoader(driver, url, props);
+        }
+        String current = tokens.getToken().value;
+        Properties refreshProps = new Properties();
+        for (String name : props.stringPropertyNames()) {
+            // OAuthRefreshToken is sometimes set to the access token as well
+            String value = props.getProperty(name);
+            refreshProps.setProperty(name, value.equals(original) ? current : value);
+        }
+        return chk_jdbc_fixed.connectInDriverLoader(driver, url.replace(original, current), refreshProps);
+    }
+    
+    /**
+     * Who the connection authenticates as: the service account or user named in the
+     * properties, else the key / credentials file. Bearer tokens don't say whose they are;
+     * the ones this tool passes are always for the WIF service account, so that is the
+     * principal, and a refreshed token keeps the same scope.
+     */
+    static String principal(String url, Properties props) {
+        for (String name : new String[] {"OAuthServiceAcctEmail", "user", "KeyFile", "OAuthPvtKeyPath", "CredentialsPath"}) {
+            String value = props.getProperty(name);
+            if (value == null) {
+                value = chk_jdbc_fixed.jdbcUrlProperty(url, name);
+            }
+            if (value != null && !value.isEmpty()) {
+                return name + "=" + value;
+            }
+        }
+        String token = props.getProperty("OAuthAccessToken", chk_jdbc_fixed.jdbcUrlProperty(url, "OAuthAccessToken"));
+        if (token == null || token.isEmpty()) {
+            return "AuthenticationType=" + props.getProperty("AuthenticationType", chk_jdbc_fixed.jdbcUrlProperty(url, "AuthenticationType"));
+        }
+        return "serviceAccount=" + chk_jdbc_fixed.wifConfig().serviceAccount;
+    }
+    
+    private DatabaseMetaData metaData(Connection connection, DatabaseMetaData live, String scope, Callable<Connection> opener) {
+        return proxy(DatabaseMetaData.class, (proxy, method, args) -> {
+            String name = method.getName();
+            if ("getConnection".equals(name)) {
+                return connection;
+            }
+            if (!CACHED_METHODS.contains(name)) {
+                return invoke(live, method, args);
+            }
+            String dataset = ("getTables".equals(name) || "getColumns".equals(name) || "getPrimaryKeys".equals(name))
+                    && args[1] != null ? (String) args[1] : "";
+            StringBuilder key = new StringBuilder(scope).append('\u0000').append(name);
+            if (args != null) {
+                for (Object arg : args) {
+                    key.append('\u0000').append(arg instanceof Object[] ? Arrays.toString((Object[]) arg) : String.valueOf(arg));
+                }
+            }
+            Callable<Result> loader = () -> read(dataset, method, live, args);
+            // Refreshes outlive the caller's connection, so they never touch it
+            Reader refresher = own -> read(dataset, method, own, args);
+            return get(key.toString(), scope, dataset, loader, opener, refresher).resultSet();
+        });
+    }
+    
+    private static Result read(String dataset, Method method, DatabaseMetaData metaData, Object[] args) throws Exception {
+        try {
+            return Result.read(dataset, (ResultSet) method.invoke(metaData, args));
+        } catch (InvocationTargetException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+    }
+    
+    private Result get(String key, String scope, String dataset, Callable<Result> loader, Callable<Connection> opener,
+                       Reader refresher) throws SQLException {
+        Result cached;
+        synchronized (entries) {
+            cached = entries.get(key);
+        }
+        if (cached != null) {
+            long ageMillis = System.currentTimeMillis() - cached.loadedMillis;
+            if (ageMillis < ttl(dataset).toMillis()) {
+                hits.increment();
+                return cached;
+            }
+            if (ageMillis < maxAge.toMillis()) {
+                // Stale: answer now, reload behind it (one refresh per key)
+                hits.increment();
+                CompletableFuture<Result> reserved = new CompletableFuture<>();
+                if (loading.putIfAbsent(key, reserved) == null) {
+                    refreshLater(scope + '\u0000' + dataset, opener, new Stale(key, reserved, refresher));
+                }
+                return cached;
+            }
+        }
+        misses.increment();
+        return load(key, loader);
+    }
+    
+    /**
+     * Queue stale (its key already reserved in loading) for its dataset's refresh, starting
+     * one if none is running
+     */
+    private void refreshLater(String group, Callable<Connection> opener, Stale stale) {
+        Refresh refresh;
+        boolean start;
+        synchronized (refreshing) {
+            refresh = refreshing.get(group);
+            start = refresh == null;
+            if (start) {
+                refresh = new Refresh(opener);
+                refreshing.put(group, refresh);
+            }
+            refresh.pending.add(stale);
+        }
+        if (start) {
+            Refresh queued = refresh;
+            try {
+                refreshers.execute(() -> runRefresh(group, queued));
+            } catch (RejectedExecutionException e) {
+                failPending(group, queued, e);
+            }
+        }
+    }
+    
+    private void runRefresh(String group, Refresh refresh) {
+        Connection own = null;
+        try {
+            while (true) {
+                Stale next;
+                synchronized (refreshing) {
+                    next = refresh.pending.poll();
+                    if (next == null) {
+                        refreshing.remove(group);
+                        return;
+                    }
+                }
+                try {
+                    if (own == null) {
+                        own = refresh.opener.call();
+                    }
+                    refreshes.increment();
+                    Result result = next.reader.read(own.getMetaData());
+                    put(next.key, result);
+                    next.future.complete(result);
+                } catch (Exception e) {
+                    next.future.completeExceptionally(e);
+                    String dataset = group.substring(group.indexOf('\u0000') + 1);
+                    System.out.println("⚠ Metadata refresh for " + (dataset.isEmpty() ? "project" : dataset) + " failed: " + e.getMessage());
+                    if (own == null) {
+                        // Could not connect; the rest of the queue would fail the same way
+                        failPending(group, refresh, e);
+                        return;
+                    }
+                } finally {
+                    loading.remove(next.key, next.future);
+                }
+            }
+        } finally {
+            closeQuietly(own);
+        }
+    }
+    
+    private void failPending(String group, Refresh refresh, Exception cause) {
+        List<Stale> failed;
+        synchronized (refreshing) {
+            failed = new ArrayList<>(refresh.pending);
+            refresh.pending.clear();
+            refreshing.remove(group, refresh);
+        }
+        for (Stale stale : failed) {
+            stale.future.completeExceptionally(cause);
+            loading.remove(stale.key, stale.future);
+        }
+    }
+    
+    private static void closeQuietly(Connection connection) {
+        if (connection != null) {
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                // Only used for refreshes
+            }
+        }
+    }
+    
+    private Result load(String key, Callable<Result> loader) throws SQLException {
+        CompletableFuture<Result> future = new CompletableFuture<>();
+        CompletableFuture<Result> running = loading.putIfAbsent(key, future);
+        if (running != null) {
+            try {
+                return running.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted while loading metadata", e);
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof SQLException ? (SQLException) e.getCause() : new SQLException(e.getCause());
+            }
+        }
+        try {
+            Result result = loader.call();
+            put(key, result);
+            future.complete(result);
+            return result;
+        } catch (Exception e) {
+            future.completeExceptionally(e);
+            throw e instanceof SQLException ? (SQLException) e : new SQLException(e);
+        } finally {
+            loading.remove(key, future);
+        }
+    }
+    
+    private void put(String key, Result result) {
+        synchronized (entries) {
+            Result previous = entries.put(key, result);
+            totalRows += result.rows.size() - (previous != null ? previous.rows.size() : 0);
+            Iterator<Result> eldest = entries.values().iterator();
+            while (totalRows > maxRows && entries.size() > 1 && eldest.hasNext()) {
+                Result evicted = eldest.next();
+                if (evicted == result) {
+                    continue;
+                }
+                eldest.remove();
+                totalRows -= evicted.rows.size();
+                evictions.increment();
+            }
+        }
+        dirty = true;
+    }
+    
+    private Duration ttl(String dataset) {
+        if (dataset.isEmpty()) {
+            return ttl;
+        }
+        Long seconds = Long.getLong("chk.metadataTtlSeconds." + dataset);
+        return seconds != null ? Duration.ofSeconds(seconds) : ttl;
+    }
+    
+    String describe() {
+        int size;
+        long rows;
+        synchronized (entries) {
+            size = entries.size();
+            rows = totalRows;
+        }
+        return "Metadata cache: " + size + " results (" + rows + " rows), " + hits.sum() + " hits, "
+                + misses.sum() + " misses, " + refreshes.sum() + " background refreshes, " + evictions.sum() + " evictions";
+    }
+    
+    private void startSnapshots() {
+        ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "metadata-snapshot");
+            t.setDaemon(true);
+            return t;
+        });
+        long interval = METADATA_SNAPSHOT_INTERVAL.toMillis();
+        writer.scheduleWithFixedDelay(this::writeSnapshotIfDirty, interval, interval, TimeUnit.MILLISECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(this::writeSnapshotIfDirty, "metadata-snapshot-exit"));
+    }
+    
+    synchronized void writeSnapshotIfDirty() {
+        if (!dirty) {
+            return;
+        }
+        dirty = false;
+        List<Map.Entry<String, Result>> copy;
+        synchronized (entries) {
+            copy = new ArrayList<>(entries.entrySet());
+        }
+        try {
+            Path temp = snapshotFile.resolveSibling(snapshotFile.getFileName() + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    Files.newOutputStream(temp)))) {
+                out.writeInt(SNAPSHOT_MAGIC);
+                out.writeInt(SNAPSHOT_VERSION);
+                out.writeInt(copy.size());
+                for (Map.Entry<String, Result> entry : copy) {
+                    Result result = entry.getValue();
+                    writeString(out, entry.getKey());
+                    writeString(out, result.dataset);
+                    out.writeLong(result.loadedMillis);
+                    out.writeInt(result.labels.length);
+                    for (int i = 0; i < result.labels.length; i++) {
+                        writeString(out, result.labels[i]);
+                        out.writeInt(result.types[i]);
+                        writeString(out, result.typeNames[i]);
+                    }
+                    out.writeInt(result.rows.size());
+                    for (Object[] row : result.rows) {
+                        for (Object value : row) {
+                            writeValue(out, value);
+                        }
+                    }
+                }
+            }
+            Files.move(temp, snapshotFile, StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            dirty = true;
+            System.out.println("⚠ Could not write metadata snapshot " + snapshotFile + ": " + e.getMessage());
+        }
+    }
+    
+    void readSnapshot() {
+        if (!Files.isReadable(snapshotFile)) {
+            return;
+        }
+        long start = System.nanoTime();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                Files.newInputStream(snapshotFile)))) {
+            if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != SNAPSHOT_VERSION) {
+                System.out.println("⚠ Ignoring metadata snapshot " + snapshotFile + " (unknown format)");
+                return;
+            }
+            long oldest = System.currentTimeMillis() - maxAge.toMillis();
+            int count = in.readInt();
+            for (int n = 0; n < count; n++) {
+                String key = readString(in);
+                String dataset = readString(in);
+                long loadedMillis = in.readLong();
+                int columns = in.readInt();
+                String[] labels = new String[columns];
+                int[] types = new int[columns];
+                String[] typeNames = new String[columns];
+                for (int i = 0; i < columns; i++) {
+                    labels[i] = readString(in);
+                    types[i] = in.readInt();
+                    typeNames[i] = readString(in);
+                }
+                int rowCount = in.readInt();
+                List<Object[]> rows = new ArrayList<>(rowCount);
+                for (int r = 0; r < rowCount; r++) {
+                    Object[] row = new Object[columns];
+                    for (int i = 0; i < columns; i++) {
+                        row[i] = readValue(in);
+                    }
+                    rows.add(row);
+                }
+                if (loadedMillis > oldest) {
+                    Result result = new Result(dataset, labels, types, typeNames, rows, loadedMillis);
+                    synchronized (entries) {
+                        entries.put(key, result);
+                        totalRows += rows.size();
+                    }
+                }
+            }
+            System.out.println("✓ Metadata snapshot loaded: " + entries.size() + " results in "
+                    + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+        } catch (IOException | RuntimeException e) {
+            System.out.println("⚠ Ignoring metadata snapshot " + snapshotFile + ": " + e);
+            synchronized (entries) {
+                entries.clear();
+                totalRows = 0;
+            }
+        }
+    }
+    
+    // Length-prefixed UTF-8: REMARKS and similar columns can exceed writeUTF's 64 KB
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+    
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+    
+    private static void writeValue(DataOutputStream out, Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(0);
+        } else if (value instanceof Integer) {
+            out.writeByte(2);
+            out.writeInt((Integer) value);
+        } else if (value instanceof Long) {
+            out.writeByte(3);
+            out.writeLong((Long) value);
+        } else if (value instanceof Short) {
+            out.writeByte(4);
+            out.writeShort((Short) value);
+        } else if (value instanceof Boolean) {
+            out.writeByte(5);
+            out.writeBoolean((Boolean) value);
+        } else if (value instanceof Double) {
+            out.writeByte(6);
+            out.writeDouble((Double) value);
+        } else {
+            out.writeByte(1);
+            writeString(out, value.toString());
+        }
+    }
+    
+    private static Object readValue(DataInputStream in) throws IOException {
+        int tag = in.readUnsignedByte();
+        switch (tag) {
+            case 0: return null;
+            case 1: return readString(in);
+            case 2: return in.readInt();
+            case 3: return in.readLong();
+            case 4: return in.readShort();
+            case 5: return in.readBoolean();
+            case 6: return in.readDouble();
+            default: throw new IOException("Bad value tag " + tag);
+        }
+    }
+    
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+    
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "equals":
+                            return proxy == args[0];
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "toString":
+                            return "Cached" + type.getSimpleName() + "@" + Integer.toHexString(System.identityHashCode(proxy));
+                        default:
+                            return handler.invoke(proxy, method, args);
+                    }
+                }));
+    }
+}
@@ -0,0 +1,295 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ClassLoadingMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Low-overhead metrics for the connect pipeline, exposed in Prometheus text format.
+ * 
+ * - one fixed-bucket latency histogram per phase; record() only increments counters
+ * - success / failure counters per auth strategy
+ * - age and time-to-expiry of the last refreshed access token
+ * - total / idle / active counts of the watched connection pool
+ * - driver runtime generation / class counts and JVM metaspace, to catch class loader leaks
+ */
+final class Metrics {
+    
+    // Prometheus scrape endpoint, started when -Dchk.metricsPort is set; loopback only unless
+    // -Dchk.metricsBindAddress says otherwise. The event log is served only with -Dchk.metricsEvents=true
+    private static final String METRICS_PATH = "/metrics";
+    private static final String EVENTS_PATH = "/events";
+    
+    enum Phase {
+        LOAD_DRIVERS("load_drivers"),
+        STS_EXCHANGE("sts_exchange"),
+        IMPERSONATION("impersonation"),
+        DRIVER_CONNECT("driver_connect"),
+        VALIDATION("validation");
+        
+        final String label;
+        
+        Phase(String label) {
+            this.label = label;
+        }
+    }
+    
+    // Histogram bucket upper bounds, from fast local calls up to slow driver connects
+    private static final double[] BUCKET_BOUNDS_SECONDS = {
+            0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60};
+    private static final long[] BUCKET_BOUNDS_NANOS = new long[BUCKET_BOUNDS_SECONDS.length];
+    static {
+        for (int i = 0; i < BUCKET_BOUNDS_SECONDS.length; i++) {
+            BUCKET_BOUNDS_NANOS[i] = (long) (BUCKET_BOUNDS_SECONDS[i] * 1_000_000_000L);
+        }
+    }
+    
+    private static final Histogram[] PHASES = new Histogram[Phase.values().length];
+    static {
+        for (int i = 0; i < PHASES.length; i++) {
+            PHASES[i] = new Histogram();
+        }
+    }
+    
+    // strategy name -> {successes, failures}
+    private static final ConcurrentHashMap<String, LongAdder[]> OUTCOMES =
+            new ConcurrentHashMap<>();
+    
+    private static volatile long tokenIssuedMillis;
+    private static volatile long tokenExpiryMillis;
+    private static volatile ConnectionPool pool;
+    
+    private Metrics() {
+    }
+    
+    /**
+     * Record the time elapsed since startNanos (a System.nanoTime value) against phase
+     */
+    static void record(Phase phase, long startNanos) {
+        PHASES[phase.ordinal()].record(System.nanoTime() - startNanos);
+    }
+    
+    static void recordOutcome(String strategy, boolean succeeded) {
+        LongAdder[] counters = OUTCOMES.get(strategy);
+        if (counters == null) {
+            counters = OUTCOMES.computeIfAbsent(strategy, name -> new LongAdder[] {
+                    new LongAdder(), new LongAdder()});
+        }
+        counters[succeeded ? 0 : 1].increment();
+    }
+    
+    static void tokenRefreshed(AccessToken token) {
+        tokenExpiryMillis = token.expireTime.toEpochMilli();
+        tokenIssuedMillis = System.currentTimeMillis();
+    }
+    
+    static void watchPool(ConnectionPool connectionPool) {
+        pool = connectionPool;
+    }
+    
+    static void unwatchPool(ConnectionPool connectionPool) {
+        if (pool == connectionPool) {
+            pool = null;
+        }
+    }
+    
+    /**
+     * Serve GET /metrics (and, when enabled, /events) on port from a daemon thread
+     */
+    static HttpServer startEndpoint(int port) throws IOException {
+        String bindAddress = System.getProperty("chk.metricsBindAddress");
+        InetAddress address = bindAddress == null ? InetAddress.getLoopbackAddress()
+                : InetAddress.getByName(bindAddress.trim());
+        HttpServer server = HttpServer.create(new InetSocketAddress(address, port), 0);
+        server.createContext(METRICS_PATH, exchange -> {
+            try (InputStream in = exchange.getRequestBody()) {
+                in.readAllBytes();
+            }
+            byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        if (Boolean.getBoolean("chk.metricsEvents")) {
+            // Read-only view of the (redacted) ring; nothing here writes to disk
+            server.createContext(EVENTS_PATH, exchange -> {
+                try (InputStream in = exchange.getRequestBody()) {
+                    in.readAllBytes();
+                }
+                byte[] body = EventLog.format(EventLog.snapshot()).getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            });
+        }
+        server.setExecutor(Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "metrics-endpoint");
+            t.setDaemon(true);
+            return t;
+        }));
+        server.start();
+        System.out.println("✓ Metrics endpoint: http://" + server.getAddress().getHostString() + ":"
+                + server.getAddress().getPort() + METRICS_PATH);
+        return server;
+    }
+    
+    /**
+     * Current values in the Prometheus text exposition format
+     */
+    static String scrape() {
+        StringBuilder out = new StringBuilder(4096);
+        
+        out.append("# HELP chk_jdbc_phase_duration_seconds Latency of each connect pipeline phase\n");
+        out.append("# TYPE chk_jdbc_phase_duration_seconds histogram\n");
+        for (Phase phase : Phase.values()) {
+            PHASES[phase.ordinal()].appendTo(out, "chk_jdbc_phase_duration_seconds", phase.label);
+        }
+        
+        out.append("# HELP chk_jdbc_auth_attempts_total Connect attempts per authentication strategy\n");
+        out.append("# TYPE chk_jdbc_auth_attempts_total counter\n");
+        for (Map.Entry<String, LongAdder[]> entry : new TreeMap<>(OUTCOMES).entrySet()) {
+            String strategy = escapeLabel(entry.getKey());
+            out.append("chk_jdbc_auth_attempts_total{strategy=\"").append(strategy).append("\",outcome=\"success\"} ")
+                    .append(entry.getValue()[0].sum()).append('\n');
+            out.append("chk_jdbc_auth_attempts_total{strategy=\"").append(strategy).append("\",outcome=\"failure\"} ")
+                    .append(entry.getValue()[1].sum()).append('\n');
+        }
+        
+        chk_jdbc_fixed.ResilientEndpoint[] endpoints = {chk_jdbc_fixed.STS_ENDPOINT, chk_jdbc_fixed.IAM_ENDPOINT,
+                chk_jdbc_fixed.RESOURCE_MANAGER_ENDPOINT, chk_jdbc_fixed.BIGQUERY_API_ENDPOINT};
+        out.append("# HELP chk_jdbc_google_api_retries_total Google API attempts retried after a retryable failure\n");
+        out.append("# TYPE chk_jdbc_google_api_retries_total counter\n");
+        for (chk_jdbc_fixed.ResilientEndpoint endpoint : endpoints) {
+            out.append("chk_jdbc_google_api_retries_total{endpoint=\"").append(endpoint.name).append("\"} ")
+                    .append(endpoint.retries.sum()).append('\n');
+        }
+        out.append("# HELP chk_jdbc_google_api_hedges_total Hedged duplicate requests sent after the observed p95\n");
+        out.append("# TYPE chk_jdbc_google_api_hedges_total counter\n");
+        for (chk_jdbc_fixed.ResilientEndpoint endpoint : endpoints) {
+            out.append("chk_jdbc_google_api_hedges_total{endpoint=\"").append(endpoint.name).append("\",outcome=\"sent\"} ")
+                    .append(endpoint.hedges.sum()).append('\n');
+            out.append("chk_jdbc_google_api_hedges_total{endpoint=\"").append(endpoint.name).append("\",outcome=\"won\"} ")
+                    .append(endpoint.hedgeWins.sum()).append('\n');
+        }
+        out.append("# HELP chk_jdbc_google_api_rejected_total Calls failed fast by an open circuit\n");
+        out.append("# TYPE chk_jdbc_google_api_rejected_total counter\n");
+        for (chk_jdbc_fixed.ResilientEndpoint endpoint : endpoints) {
+            out.append("chk_jdbc_google_api_rejected_total{endpoint=\"").append(endpoint.name).append("\"} ")
+                    .append(endpoint.rejected.sum()).append('\n');
+        }
+        out.append("# HELP chk_jdbc_google_api_circuit_state Circuit breaker state (0 closed, 1 open, 2 half-open)\n");
+        out.append("# TYPE chk_jdbc_google_api_circuit_state gauge\n");
+        for (chk_jdbc_fixed.ResilientEndpoint endpoint : endpoints) {
+            out.append("chk_jdbc_google_api_circuit_state{endpoint=\"").append(endpoint.name).append("\"} ")
+                    .append(endpoint.breaker.state().ordinal()).append('\n');
+        }
+        
+        long issued = tokenIssuedMillis;
+        if (issued != 0) {
+            long now = System.currentTimeMillis();
+            out.append("# HELP chk_jdbc_token_age_seconds Time since the access token was last refreshed\n");
+            out.append("# TYPE chk_jdbc_token_age_seconds gauge\n");
+            out.append("chk_jdbc_token_age_seconds ").append((now - issued) / 1000.0).append('\n');
+            out.append("# HELP chk_jdbc_token_expiry_seconds Time until the current access token expires\n");
+            out.append("# TYPE chk_jdbc_token_expiry_seconds gauge\n");
+            out.append("chk_jdbc_token_expiry_seconds ").append((tokenExpiryMillis - now) / 1000.0).append('\n');
+        }
+        
+        if (!chk_jdbc_fixed.DRIVER_RUNTIMES.isEmpty()) {
+            out.append("# HELP chk_jdbc_driver_generation Driver class loader generation (increments on hot swap)\n");
+            out.append("# TYPE chk_jdbc_driver_generation gauge\n");
+            for (DriverRuntime runtime : chk_jdbc_fixed.DRIVER_RUNTIMES.values()) {
+                out.append("chk_jdbc_driver_generation{path=\"").append(escapeLabel(runtime.driverPath)).append("\"} ")
+                        .append(runtime.generation()).append('\n');
+            }
+            out.append("# HELP chk_jdbc_driver_loaded_classes Classes defined by the current driver class loader\n");
+            out.append("# TYPE chk_jdbc_driver_loaded_classes gauge\n");
+            for (DriverRuntime runtime : chk_jdbc_fixed.DRIVER_RUNTIMES.values()) {
+                out.append("chk_jdbc_driver_loaded_classes{path=\"").append(escapeLabel(runtime.driverPath)).append("\"} ")
+                        .append(runtime.classLoader().definedClassCount()).append('\n');
+            }
+            out.append("# HELP chk_jdbc_driver_retired_loaders Retired driver class loaders not yet garbage collected\n");
+            out.append("# TYPE chk_jdbc_driver_retired_loaders gauge\n");
+            for (DriverRuntime runtime : chk_jdbc_fixed.DRIVER_RUNTIMES.values()) {
+                out.append("chk_jdbc_driver_retired_loaders{path=\"").append(escapeLabel(runtime.driverPath)).append("\"} ")
+                        .append(runtime.retiredLoadersAlive()).append('\n');
+            }
+        }
+        ClassLoadingMXBean classes = ManagementFactory.getClassLoadingMXBean();
+        out.append("# HELP chk_jdbc_jvm_loaded_classes Classes currently loaded in the JVM\n");
+        out.append("# TYPE chk_jdbc_jvm_loaded_classes gauge\n");
+        out.append("chk_jdbc_jvm_loaded_classes ").append(classes.getLoadedClassCount()).append('\n');
+        out.append("# HELP chk_jdbc_jvm_unloaded_classes_total Classes unloaded since JVM start\n");
+        out.append("# TYPE chk_jdbc_jvm_unloaded_classes_total counter\n");
+        out.append("chk_jdbc_jvm_unloaded_classes_total ").append(classes.getUnloadedClassCount()).append('\n');
+        out.append("# HELP chk_jdbc_jvm_metaspace_used_bytes Metaspace in use\n");
+        out.append("# TYPE chk_jdbc_jvm_metaspace_used_bytes gauge\n");
+        out.append("chk_jdbc_jvm_metaspace_used_bytes ").append(DriverRuntime.metaspaceUsedBytes()).append('\n');
+        out.append("# HELP chk_jdbc_console_dropped_lines_total Console lines not echoed because the console writer fell behind\n");
+        out.append("# TYPE chk_jdbc_console_dropped_lines_total counter\n");
+        out.append("chk_jdbc_console_dropped_lines_total ").append(EventLog.consoleDropped()).append('\n');
+        
+        ConnectionPool connectionPool = pool;
+        if (connectionPool != null) {
+            out.append("# HELP chk_jdbc_pool_connections Pooled connections by state\n");
+            out.append("# TYPE chk_jdbc_pool_connections gauge\n");
+            out.append("chk_jdbc_pool_connections{state=\"total\"} ").append(connectionPool.getTotalCount()).append('\n');
+            out.append("chk_jdbc_pool_connections{state=\"idle\"} ").append(connectionPool.getIdleCount()).append('\n');
+            out.append("chk_jdbc_pool_connections{state=\"active\"} ").append(connectionPool.getActiveCount()).append('\n');
+            out.append("# HELP chk_jdbc_pool_max_connections Configured pool size limit\n");
+            out.append("# TYPE chk_jdbc_pool_max_connections gauge\n");
+            out.append("chk_jdbc_pool_max_connections ").append(connectionPool.getMaxSize()).append('\n');
+        }
+        return out.toString();
+    }
+    
+    private static String escapeLabel(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+    
+    /**
+     * Fixed-bucket histogram; the last slot counts observations above the largest bound
+     */
+    static final class Histogram {
+        private final AtomicLongArray buckets =
+                new AtomicLongArray(BUCKET_BOUNDS_NANOS.length + 1);
+        private final LongAdder sumNanos = new LongAdder();
+        
+        void record(long nanos) {
+            int bucket = 0;
+            while (bucket < BUCKET_BOUNDS_NANOS.length && nanos > BUCKET_BOUNDS_NANOS[bucket]) {
+                bucket++;
+            }
+            buckets.incrementAndGet(bucket);
+            sumNanos.add(nanos);
+        }
+        
+        void appendTo(StringBuilder out, String name, String phase) {
+            long cumulative = 0;
+            for (int i = 0; i < BUCKET_BOUNDS_SECONDS.length; i++) {
+                cumulative += buckets.get(i);
+                out.append(name).append("_bucket{phase=\"").append(phase).append("\",le=\"")
+                        .append(BUCKET_BOUNDS_SECONDS[i]).append("\"} ").append(cumulative).append('\n');
+            }
+            cumulative += buckets.get(BUCKET_BOUNDS_SECONDS.length);
+            out.append(name).append("_bucket{phase=\"").append(phase).append("\",le=\"+Inf\"} ").append(cumulative).append('\n');
+            out.append(name).append("_sum{phase=\"").append(phase).append("\"} ").append(sumNanos.sum() / 1e9).append('\n');
+            out.append(name).append("_count{phase=\"").append(phase).append("\"} ").append(cumulative).append('\n');
+        }
+    }
+}
@@ -0,0 +1,247 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.GroupPrincipal;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.nio.file.attribute.UserPrincipalLookupService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+import jdk.net.ExtendedSocketOptions;
+import jdk.net.UnixDomainPrincipal;
+
+/**
+ * Node-local token broker: keeps one token per (service account, scopes) in a TokenCache and
+ * serves the cached token to local processes over a Unix domain socket, so a node does one STS
+ * exchange + impersonation per token lifetime instead of one per JVM.
+ * 
+ * Protocol (big-endian, strings are DataOutput.writeUTF: u16 length + modified UTF-8),
+ * any number of requests per connection:
+ * 
+ *   request:  u8 version (1), u8 op (1 = get token), utf serviceAccount, utf scopes
+ *             (space-separated; empty serviceAccount / scopes mean the defaults)
+ *   response: u8 version, u8 status (0 = ok, 1 = error), then
+ *             ok:    i64 expireTime epoch millis, utf token
+ *             error: utf message
+ * 
+ * Anyone who can connect gets a token, so:
+ * - the socket file is owner-only, and connections from other users are dropped (peer
+ *   credentials), which also covers the moment between bind and chmod
+ * - other local users can be let in explicitly with -Dchk.brokerAllowUids / -Dchk.brokerAllowGids
+ *   (comma-separated user / group names or numeric ids); the socket file is then world-writable
+ *   so they can connect, and peer credentials are the only gate
+ * - only allow-listed service accounts are impersonated: -Dchk.brokerServiceAccounts
+ *   (comma-separated), default the one in the WIF configuration
+ */
+final class TokenBroker implements AutoCloseable {
+    static final int PROTOCOL_VERSION = 1;
+    static final int OP_GET_TOKEN = 1;
+    static final int STATUS_OK = 0;
+    static final int STATUS_ERROR = 1;
+    
+    // Each client connection holds a thread while it is open; on platform threads, clients
+    // beyond this wait for one to disconnect
+    private static final int MAX_CLIENT_THREADS = 64;
+    
+    // Service account ids end up in the IAM Credentials URL path
+    private static final Pattern SERVICE_ACCOUNT = Pattern.compile("[A-Za-z0-9._-]+@[A-Za-z0-9.-]+");
+    
+    private final Path socketPath;
+    private final ServerSocketChannel server;
+    private final ExecutorService connections = chk_jdbc_fixed.newVirtualThreadExecutor("token-broker-client", MAX_CLIENT_THREADS);
+    private final TokenCache tokens;
+    private final List<String> allowedAccounts = chk_jdbc_fixed.listProperty("chk.brokerServiceAccounts", null);
+    private final UserPrincipal owner;
+    private final List<UserPrincipal> allowedUsers = new ArrayList<>();
+    private final List<GroupPrincipal> allowedGroups = new ArrayList<>();
+    final LongAdder requests = new LongAdder();
+    final LongAdder errors = new LongAdder();
+    
+    TokenBroker(Path socketPath, TokenCache tokens) throws IOException {
+        this.socketPath = socketPath;
+        this.tokens = tokens;
+        // Names and numeric ids both resolve to principals that compare by id
+        UserPrincipalLookupService principals = FileSystems.getDefault().getUserPrincipalLookupService();
+        this.owner = principals.lookupPrincipalByName(System.getProperty("user.name"));
+        for (String user : chk_jdbc_fixed.listProperty("chk.brokerAllowUids", null)) {
+            allowedUsers.add(principals.lookupPrincipalByName(user));
+        }
+        for (String group : chk_jdbc_fixed.listProperty("chk.brokerAllowGids", null)) {
+            allowedGroups.add(principals.lookupPrincipalByGroupName(group));
+        }
+        if (Files.exists(socketPath, LinkOption.NOFOLLOW_LINKS)) {
+            if (Files.isRegularFile(socketPath, LinkOption.NOFOLLOW_LINKS)
+                    || Files.isDirectory(socketPath, LinkOption.NOFOLLOW_LINKS)) {
+                throw new IOException(socketPath + " exists and is not a socket");
+            }
+            // A socket file nobody answers on (refused, permission denied, ...) is left over from a broker that died
+            boolean live;
+            try {
+                SocketChannel.open(UnixDomainSocketAddress.of(socketPath)).close();
+                live = true;
+            } catch (IOException e) {
+                live = false;
+            }
+            if (live) {
+                throw new IOException("A token broker is already listening on " + socketPath);
+            }
+            Files.delete(socketPath);
+        }
+        this.server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        server.bind(UnixDomainSocketAddress.of(socketPath));
+        try {
+            boolean shared = !allowedUsers.isEmpty() || !allowedGroups.isEmpty();
+            Files.setPosixFilePermissions(socketPath, PosixFilePermissions.fromString(shared ? "rw-rw-rw-" : "rw-------"));
+        } catch (UnsupportedOperationException e) {
+            System.out.println("⚠ Could not restrict token broker socket permissions: " + e.getMessage());
+        }
+    }
+    
+    /**
+     * Accept clients until close(); each connection is served on its own (virtual) thread
+     */
+    void serve() throws IOException {
+        while (server.isOpen()) {
+            SocketChannel client;
+            try {
+                client = server.accept();
+            } catch (ClosedChannelException e) {
+                return;
+            }
+            if (!fromAllowedPeer(client)) {
+                errors.increment();
+                closeQuietly(client);
+                continue;
+            }
+            try {
+                connections.execute(() -> handle(client));
+            } catch (RejectedExecutionException e) {
+                // Accepted just as close() shut the executor down
+                closeQuietly(client);
+                return;
+            }
+        }
+    }
+    
+    private boolean fromAllowedPeer(SocketChannel client) {
+        try {
+            UnixDomainPrincipal peer = client.getOption(ExtendedSocketOptions.SO_PEERCRED);
+            if (allows(peer)) {
+                return true;
+            }
+            System.out.println("⚠ Token broker refused a connection from user " + peer.user().getName()
+                    + " (group " + peer.group().getName() + ")");
+        } catch (IOException | UnsupportedOperationException e) {
+            System.out.println("⚠ Token broker refused a connection without peer credentials: " + e.getMessage());
+        }
+        return false;
+    }
+    
+    /**
+     * The broker's own user, or a user / group on the allow-lists
+     */
+    boolean allows(UnixDomainPrincipal peer) {
+        return peer.user().equals(owner) || allowedUsers.contains(peer.user()) || allowedGroups.contains(peer.group());
+    }
+    
+    private static void closeQuietly(SocketChannel client) {
+        try {
+            client.close();
+        } catch (IOException e) {
+            // Dropping it anyway
+        }
+    }
+    
+    private void handle(SocketChannel client) {
+        try (SocketChannel channel = client;
+             DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)))) {
+            while (true) {
+                int version;
+                try {
+                    version = in.readUnsignedByte();
+                } catch (EOFException e) {
+                    return;
+                }
+                int op = in.readUnsignedByte();
+                String serviceAccount = in.readUTF();
+                String scopes = in.readUTF();
+                requests.increment();
+                out.writeByte(PROTOCOL_VERSION);
+                if (version != PROTOCOL_VERSION || op != OP_GET_TOKEN) {
+                    errors.increment();
+                    out.writeByte(STATUS_ERROR);
+                    out.writeUTF("Unsupported request: version " + version + ", op " + op);
+                    out.flush();
+                    return;
+                }
+                try {
+                    AccessToken token = provider(serviceAccount, scopes).getToken();
+                    out.writeByte(STATUS_OK);
+                    out.writeLong(token.expireTime.toEpochMilli());
+                    out.writeUTF(token.value);
+                } catch (Exception e) {
+                    errors.increment();
+                    out.writeByte(STATUS_ERROR);
+                    out.writeUTF(String.valueOf(e.getMessage()));
+                }
+                out.flush();
+            }
+        } catch (IOException e) {
+            // Client went away mid-request
+        }
+    }
+    
+    private TokenProvider provider(String serviceAccount, String scopeList) throws IOException {
+        String account = serviceAccount.isEmpty() ? chk_jdbc_fixed.wifConfig().serviceAccount : serviceAccount;
+        if (!SERVICE_ACCOUNT.matcher(account).matches()) {
+            throw new IOException("Invalid service account: " + account);
+        }
+        if (!(allowedAccounts.isEmpty() ? account.equals(chk_jdbc_fixed.wifConfig().serviceAccount) : allowedAccounts.contains(account))) {
+            throw new IOException("Service account not allowed by this broker: " + account);
+        }
+        List<String> scopes = scopeList.trim().isEmpty() ? chk_jdbc_fixed.DEFAULT_TOKEN_SCOPES
+                : Arrays.asList(scopeList.trim().split("\\s+"));
+        return tokens.provider(new TokenCache.Key(chk_jdbc_fixed.wifConfig().audience, account, scopes));
+    }
+    
+    String describe() {
+        return "Token broker on " + socketPath + ": " + requests.sum() + " requests, " + errors.sum() + " errors. "
+                + tokens.describe();
+    }
+    
+    @Override
+    public void close() {
+        try {
+            server.close();
+        } catch (IOException e) {
+            // Closing anyway
+        }
+        connections.shutdownNow();
+        tokens.close();
+        try {
+            Files.deleteIfExists(socketPath);
+        } catch (IOException e) {
+            System.out.println("⚠ Could not remove " + socketPath + ": " + e.getMessage());
+        }
+    }
+}
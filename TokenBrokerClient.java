@@ -0,0 +1,84 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.List;
+
+/**
+ * Client side of the token broker protocol. Keeps one connection open, so a lookup is a
+ * write and a read on a local socket (tens of microseconds); reconnects once if the broker
+ * was restarted. Callers normally wrap it in a TokenProvider, which answers from memory
+ * until the token needs refreshing.
+ */
+final class TokenBrokerClient implements AutoCloseable {
+    private final Path socketPath;
+    private SocketChannel channel;
+    private DataInputStream in;
+    private DataOutputStream out;
+    
+    TokenBrokerClient(Path socketPath) {
+        this.socketPath = socketPath;
+    }
+    
+    AccessToken fetch() throws IOException {
+        return fetch("", List.of());
+    }
+    
+    synchronized AccessToken fetch(String serviceAccount, List<String> scopes) throws IOException {
+        for (int attempt = 1; ; attempt++) {
+            boolean answered = false;
+            try {
+                if (channel == null) {
+                    connect();
+                }
+                out.writeByte(TokenBroker.PROTOCOL_VERSION);
+                out.writeByte(TokenBroker.OP_GET_TOKEN);
+                out.writeUTF(serviceAccount);
+                out.writeUTF(String.join(" ", scopes));
+                out.flush();
+                in.readUnsignedByte();
+                int status = in.readUnsignedByte();
+                answered = true;
+                if (status != TokenBroker.STATUS_OK) {
+                    throw new IOException("Token broker: " + in.readUTF());
+                }
+                long expireMillis = in.readLong();
+                return new AccessToken(in.readUTF(), Instant.ofEpochMilli(expireMillis));
+            } catch (IOException e) {
+                if (answered) {
+                    throw e;
+                }
+                close();
+                if (attempt >= 2) {
+                    throw e;
+                }
+            }
+        }
+    }
+    
+    private void connect() throws IOException {
+        channel = SocketChannel.open(UnixDomainSocketAddress.of(socketPath));
+        in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+        out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+    }
+    
+    @Override
+    public synchronized void close() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Already gone
+            }
+            channel = null;
+            in = null;
+            out = null;
+        }
+    }
+}
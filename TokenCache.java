@@ -0,0 +1,260 @@
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+/**
+ * Token cache for many tenants in one JVM, keyed by (audience, service account, scopes).
+ * 
+ * - One TokenProvider per key, so refreshes stay single-flight per tenant
+ * - Keys are spread over lock stripes; a stripe lock covers only the map lookup, never a
+ *   refresh, so a slow tenant doesn't block the others
+ * - Each stripe is an access-ordered LinkedHashMap; maxEntries bounds the whole cache, and
+ *   a miss on a full cache evicts the least recently used tenant of its own stripe (or of
+ *   the next non-empty one) and cancels its refresh timer
+ * - The federated STS token is cached once per audience and reused by every
+ *   impersonation under it, instead of one STS exchange per tenant; audiences are
+ *   bounded the same way, to MAX_AUDIENCES
+ * - All providers share one timer thread and one refresh executor
+ */
+final class TokenCache implements AutoCloseable {
+    
+    // Tenant entries are LRU-ordered per lock stripe; federated STS tokens are kept one per
+    // audience, least recently used evicted first
+    private static final int STRIPES = 16;
+    private static final int MAX_AUDIENCES = 64;
+    // Concurrent STS / IAM refreshes when virtual threads are unavailable
+    private static final int REFRESH_THREADS = 8;
+    
+    static final class Key {
+        final String audience;
+        final String serviceAccount;
+        final List<String> scopes;
+        
+        Key(String audience, String serviceAccount, Collection<String> scopes) {
+            this.audience = audience;
+            this.serviceAccount = serviceAccount;
+            // Scope order doesn't change the token, so it mustn't change the key
+            this.scopes = scopes.stream().sorted().distinct().collect(Collectors.toUnmodifiableList());
+        }
+        
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return audience.equals(other.audience) && serviceAccount.equals(other.serviceAccount) && scopes.equals(other.scopes);
+        }
+        
+        @Override
+        public int hashCode() {
+            return (audience.hashCode() * 31 + serviceAccount.hashCode()) * 31 + scopes.hashCode();
+        }
+        
+        @Override
+        public String toString() {
+            return serviceAccount + " " + scopes;
+        }
+    }
+    
+    /**
+     * Access-ordered providers, the least recently used one shut down once over capacity
+     */
+    private static final class BoundedProviders<K> extends LinkedHashMap<K, TokenProvider> {
+        private static final long serialVersionUID = 1L;
+        private final int capacity;
+        private final transient LongAdder evictions;
+        
+        BoundedProviders(int capacity, LongAdder evictions) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+            this.evictions = evictions;
+        }
+        
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<K, TokenProvider> eldest) {
+            if (size() <= capacity) {
+                return false;
+            }
+            eldest.getValue().shutdown();
+            evictions.increment();
+            return true;
+        }
+    }
+    
+    private static final class Stripe extends LinkedHashMap<Key, TokenProvider> {
+        private static final long serialVersionUID = 1L;
+        
+        Stripe() {
+            super(16, 0.75f, true);
+        }
+    }
+    
+    private final Supplier<String> subjectToken;
+    private final chk_jdbc_fixed.ProjectedTokenSource rotation;
+    private final Stripe[] stripes;
+    private final int maxEntries;
+    private final AtomicInteger entries = new AtomicInteger();
+    private final BoundedProviders<String> federated;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "token-cache-refresh");
+        t.setDaemon(true);
+        return t;
+    });
+    private final ExecutorService refreshers = chk_jdbc_fixed.newVirtualThreadExecutor("token-cache-refresh", REFRESH_THREADS);
+    final LongAdder hits = new LongAdder();
+    final LongAdder misses = new LongAdder();
+    final LongAdder evictions = new LongAdder();
+    final LongAdder audienceEvictions = new LongAdder();
+    
+    /**
+     * @param subjectToken Kubernetes token presented to STS
+     * @param rotation     refresh federated tokens when this projected token rotates (may be null)
+     */
+    TokenCache(Supplier<String> subjectToken, chk_jdbc_fixed.ProjectedTokenSource rotation, int maxEntries) {
+        this.subjectToken = subjectToken;
+        this.rotation = rotation;
+        int stripeCount = Integer.highestOneBit(Math.max(1, Math.min(STRIPES, maxEntries)));
+        this.stripes = new Stripe[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            stripes[i] = new Stripe();
+        }
+        this.maxEntries = Math.max(1, maxEntries);
+        this.federated = new BoundedProviders<>(Integer.getInteger("chk.tokenCacheMaxAudiences", MAX_AUDIENCES), audienceEvictions);
+    }
+    
+    AccessToken getToken(String audience, String serviceAccount, Collection<String> scopes) throws Exception {
+        return provider(new Key(audience, serviceAccount, scopes)).getToken();
+    }
+    
+    TokenProvider provider(Key key) {
+        int h = key.hashCode();
+        int index = (h ^ (h >>> 16)) & (stripes.length - 1);
+        Stripe stripe = stripes[index];
+        TokenProvider provider;
+        synchronized (stripe) {
+            provider = stripe.get(key);
+            if (provider != null && !provider.isShutdown()) {
+                hits.increment();
+                return provider;
+            }
+            misses.increment();
+            provider = new TokenProvider(() -> impersonate(key), chk_jdbc_fixed.TOKEN_REFRESH_SKEW, scheduler, refreshers);
+            if (stripe.put(key, provider) != null || entries.incrementAndGet() <= maxEntries || evictEldest(stripe, key)) {
+                return provider;
+            }
+        }
+        // Nothing else in this stripe; take the room from the next stripes, one lock at a time
+        for (int i = 1; i < stripes.length && entries.get() > maxEntries; i++) {
+            Stripe other = stripes[(index + i) & (stripes.length - 1)];
+            synchronized (other) {
+                evictEldest(other, null);
+            }
+        }
+        return provider;
+    }
+    
+    /**
+     * Evict the least recently used tenant of stripe unless it is keep; caller holds the stripe lock
+     */
+    private boolean evictEldest(Stripe stripe, Key keep) {
+        Iterator<Map.Entry<Key, TokenProvider>> eldest = stripe.entrySet().iterator();
+        if (!eldest.hasNext()) {
+            return false;
+        }
+        Map.Entry<Key, TokenProvider> entry = eldest.next();
+        if (entry.getKey().equals(keep)) {
+            return false;
+        }
+        eldest.remove();
+        entry.getValue().shutdown();
+        evictions.increment();
+        entries.decrementAndGet();
+        return true;
+    }
+    
+    private AccessToken impersonate(Key key) throws Exception {
+        AccessToken federatedToken = federatedProvider(key.audience).getToken();
+        AccessToken token;
+        try {
+            token = chk_jdbc_fixed.federatedOrImpersonated(federatedToken, key.audience, key.serviceAccount, key.scopes).join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+        if (token == null) {
+            throw new IOException("Impersonation of " + key.serviceAccount + " was rejected");
+        }
+        return token;
+    }
+    
+    private TokenProvider federatedProvider(String audience) {
+        synchronized (federated) {
+            TokenProvider provider = federated.get(audience);
+            if (provider != null && !provider.isShutdown()) {
+                return provider;
+            }
+            provider = new TokenProvider(() -> {
+                AccessToken token = chk_jdbc_fixed.federatedToken(subjectToken.get(), audience);
+                if (token == null) {
+                    throw new IOException("STS rejected the subject token for " + audience);
+                }
+                return token;
+            }, chk_jdbc_fixed.TOKEN_REFRESH_SKEW, scheduler, refreshers);
+            if (rotation != null) {
+                rotation.refreshOnRotation(provider);
+            }
+            federated.put(audience, provider);
+            return provider;
+        }
+    }
+    
+    private int audiences() {
+        synchronized (federated) {
+            return federated.size();
+        }
+    }
+    
+    int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.size();
+            }
+        }
+        return size;
+    }
+    
+    String describe() {
+        return "Token cache: " + size() + " tenants, " + audiences() + " federated tokens, "
+                + hits.sum() + " hits, " + misses.sum() + " misses, " + evictions.sum() + " evictions, "
+                + audienceEvictions.sum() + " audience evictions";
+    }
+    
+    @Override
+    public void close() {
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                stripe.values().forEach(TokenProvider::shutdown);
+                entries.addAndGet(-stripe.size());
+                stripe.clear();
+            }
+        }
+        synchronized (federated) {
+            federated.values().forEach(TokenProvider::shutdown);
+            federated.clear();
+        }
+        scheduler.shutdownNow();
+        refreshers.shutdownNow();
+    }
+}
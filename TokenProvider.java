@@ -0,0 +1,204 @@
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Thread-safe cache for the impersonated access token.
+ * 
+ * - Callers get the cached token while it is outside the refresh window
+ * - A refresh is scheduled in the background refreshSkew before expireTime
+ * - Concurrent callers share one in-flight refresh (single-flight), so a pod with
+ *   hundreds of connections does one STS exchange + impersonation per token lifetime
+ * - A failed refresh (STS / IAM outage, open circuit) keeps serving the cached token
+ *   while it is still valid and retries in the background
+ * - Standalone providers own a refresh thread; TokenCache entries share its timer and
+ *   refresh executor instead
+ */
+final class TokenProvider {
+    // Longest wait before retrying a failed refresh while the cached token is still valid
+    private static final Duration REFRESH_RETRY = Duration.ofSeconds(30);
+    
+    private final Callable<AccessToken> source;
+    final Duration refreshSkew;
+    private final ScheduledExecutorService scheduler;
+    private final Executor refreshExecutor;
+    private final boolean ownsScheduler;
+    private final AtomicReference<CompletableFuture<AccessToken>> inFlight = new AtomicReference<>();
+    private final List<Runnable> onShutdown = new CopyOnWriteArrayList<>();
+    private volatile AccessToken current;
+    private volatile ScheduledFuture<?> scheduledRefresh;
+    private volatile long retryRefreshAtNanos = System.nanoTime();
+    private volatile boolean closed;
+    
+    TokenProvider(Callable<AccessToken> source, Duration refreshSkew) {
+        this.source = source;
+        this.refreshSkew = refreshSkew;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "token-refresh");
+            t.setDaemon(true);
+            return t;
+        });
+        this.refreshExecutor = scheduler;
+        this.ownsScheduler = true;
+    }
+    
+    /**
+     * Provider on shared threads: scheduler only fires refresh timers, refreshExecutor runs
+     * the (blocking) source, so one slow refresh doesn't hold up the others
+     */
+    TokenProvider(Callable<AccessToken> source, Duration refreshSkew, ScheduledExecutorService scheduler,
+                  Executor refreshExecutor) {
+        this.source = source;
+        this.refreshSkew = refreshSkew;
+        this.scheduler = scheduler;
+        this.refreshExecutor = refreshExecutor;
+        this.ownsScheduler = false;
+    }
+    
+    /**
+     * Return a valid token, blocking only when there is no usable cached token
+     */
+    AccessToken getToken() throws Exception {
+        try {
+            return getTokenAsync().get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+    }
+    
+    /**
+     * Non-blocking variant: already complete when a usable token is cached
+     */
+    CompletableFuture<AccessToken> getTokenAsync() {
+        AccessToken token = current;
+        if (token != null && !token.expiresWithin(refreshSkew)) {
+            return CompletableFuture.completedFuture(token);
+        }
+        if (token != null && !token.isExpired()) {
+            // Inside the refresh window but still valid - refresh in the background,
+            // unless a failed refresh already has a retry scheduled
+            if (System.nanoTime() - retryRefreshAtNanos >= 0) {
+                refresh();
+            }
+            return CompletableFuture.completedFuture(token);
+        }
+        return refresh();
+    }
+    
+    /**
+     * Convenience for the connect approaches, which report failures as null
+     */
+    String getAccessTokenOrNull() {
+        try {
+            return getToken().value;
+        } catch (Exception e) {
+            System.out.println("✗ Could not obtain access token: " + e.getMessage());
+            return null;
+        }
+    }
+    
+    /**
+     * Start a refresh, or join the one already running
+     */
+    CompletableFuture<AccessToken> refresh() {
+        while (true) {
+            CompletableFuture<AccessToken> running = inFlight.get();
+            if (running != null) {
+                return running;
+            }
+            CompletableFuture<AccessToken> future = new CompletableFuture<>();
+            if (inFlight.compareAndSet(null, future)) {
+                refreshExecutor.execute(() -> runRefresh(future));
+                return future;
+            }
+        }
+    }
+    
+    private void runRefresh(CompletableFuture<AccessToken> future) {
+        try {
+            AccessToken token = source.call();
+            if (token == null) {
+                throw new Exception("Token exchange returned no token");
+            }
+            current = token;
+            Metrics.tokenRefreshed(token);
+            scheduleRefresh(token);
+            inFlight.set(null);
+            future.complete(token);
+        } catch (Throwable e) {
+            AccessToken stale = current;
+            if (stale != null && !stale.isExpired()) {
+                // STS / IAM outage (or open circuit): callers keep the cached token, try again before it runs out
+                long retryMillis = Math.max(1000, Math.min(REFRESH_RETRY.toMillis(),
+                        Duration.between(Instant.now(), stale.expireTime).toMillis() / 2));
+                System.out.println("⚠ Token refresh failed (" + e.getMessage() + "), serving cached token until "
+                        + stale.expireTime + ", retrying in " + retryMillis + " ms");
+                retryRefreshAtNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(retryMillis);
+                scheduleRefresh(retryMillis);
+            }
+            inFlight.set(null);
+            future.completeExceptionally(e);
+        }
+    }
+    
+    private void scheduleRefresh(AccessToken token) {
+        long delayMillis = Duration.between(Instant.now(), token.expireTime).minus(refreshSkew).toMillis();
+        if (delayMillis < 1000) {
+            // Source handed out a token already inside our refresh window (e.g. a broker with a shorter
+            // skew): use it, but don't turn every call into another refresh
+            retryRefreshAtNanos = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+            delayMillis = 1000;
+        }
+        scheduleRefresh(delayMillis);
+    }
+    
+    private void scheduleRefresh(long delayMillis) {
+        ScheduledFuture<?> previous = scheduledRefresh;
+        if (previous != null) {
+            previous.cancel(false);
+        }
+        if (!closed && !scheduler.isShutdown()) {
+            scheduledRefresh = scheduler.schedule(this::refresh, delayMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+    
+    void shutdown() {
+        closed = true;
+        ScheduledFuture<?> pending = scheduledRefresh;
+        if (pending != null) {
+            pending.cancel(false);
+        }
+        if (ownsScheduler) {
+            scheduler.shutdownNow();
+        }
+        for (Runnable action : onShutdown) {
+            action.run();
+        }
+        onShutdown.clear();
+    }
+    
+    /**
+     * Run action when this provider is shut down (e.g. to drop it from a rotation watcher);
+     * runs right away if it already is
+     */
+    void onShutdown(Runnable action) {
+        onShutdown.add(action);
+        if (closed && onShutdown.remove(action)) {
+            action.run();
+        }
+    }
+    
+    boolean isShutdown() {
+        return closed;
+    }
+}
@@ -1,14 +1,107 @@
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URI;
+import java.net.URLClassLoader;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.FileTime;
+import java.security.CodeSource;
 import java.sql.Connection;
-import java.sql.DriverManager;
-import java.sql.SQLException;
 import java.sql.DatabaseMetaData;
 import java.sql.Driver;
+import java.sql.DriverPropertyInfo;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Properties;
-import java.io.FileInputStream;
-import java.io.IOException;
-import java.io.File;
-import java.net.URL;
-import java.net.URLClassLoader;
+import java.util.Queue;
+import java.util.ServiceLoader;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import javax.sql.ConnectionEvent;
+import javax.sql.ConnectionEventListener;
+import javax.sql.ConnectionPoolDataSource;
+import javax.sql.DataSource;
+import javax.sql.StatementEventListener;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
 
 /**
  * CRITICAL: Simba BigQuery JDBC Driver ALWAYS requires BOTH:
@@ -25,9 +118,126 @@ public class chk_jdbc_fixed {
     private static final String DB_URL = "jdbc:bigquery://https://private.googleapis.com/bigquery/v2:443;ProjectId=tnn-sb-to970548-1;DefaultDataset=bq_test_ds1";
     private static final String CREDENTIAL_FILE_PATH = "/opt/denodo/work/eloi_work/wif-credentials.json";
     private static final String SERVICE_ACCOUNT_TOKEN_FILE = "/var/run/service-account/token";
-    private static final String BIGQUERY_DRIVER_PATH = "/opt/denodo/lib/extensions/jdbc-drivers-external/bigquery";
+    private static final String BIGQUERY_DRIVER_PATH = "/opt/denodo/lib/extensions/jdbc-drivers-external/bigquery"; // -Dchk.driverPath
+    private static final String BIGQUERY_DRIVER_CLASS = "com.simba.googlebigquery.jdbc.Driver";
+    private static final String DRIVER_INDEX_DIR = "/opt/denodo/work/eloi_work";
+    
+    // Driver instances by (class loader, driver class), called directly instead of through DriverManager
+    static final Map<Map.Entry<ClassLoader, String>, Driver> DRIVER_INSTANCES = new ConcurrentHashMap<>();
+    
+    // Projected service account token, re-read only when kubelet rotates it (see projectedToken())
+    private static volatile ProjectedTokenSource projectedToken;
+    
+    // Parsed WIF credential file, replaced when the file's mtime changes (checked at most once a second, see wifConfig())
+    private static volatile WifConfig wifConfig;
+    private static volatile long wifConfigCheckedNanos;
+    
+    // One managed driver runtime (class loader + drivers) per driver directory
+    static final Map<String, DriverRuntime> DRIVER_RUNTIMES = new ConcurrentHashMap<>();
+    
+    // Google endpoints, used when the WIF credential file doesn't name them -
+    // overridable with -Dchk.stsUrl / -Dchk.iamCredentialsUrl (e.g. a local stand-in)
+    private static final String STS_TOKEN_URL = "https://sts.googleapis.com/v1/token";
+    private static final String IAM_CREDENTIALS_URL = "https://iamcredentials.googleapis.com";
+    
+    // Service account impersonated and audience exchanged for when the WIF credential file doesn't say,
+    // and scopes requested when a caller doesn't name its own
+    private static final String DEFAULT_SERVICE_ACCOUNT = "aks-denodo-updater-sa@tnn-sb-to970548-1.iam.gserviceaccount.com";
+    static final List<String> DEFAULT_TOKEN_SCOPES = List.of(
+            "https://www.googleapis.com/auth/bigquery", "https://www.googleapis.com/auth/cloud-platform");
+    private static final String DEFAULT_WIF_AUDIENCE =
+            "//iam.googleapis.com/projects/618647108376/locations/global/workloadIdentityPools/automation/providers/aks-aks-denodo-updater-sa";
+    
+    // Multi-tenant token cache: one entry per (audience, service account, scopes), see TokenCache
+    private static final int TOKEN_CACHE_MAX_ENTRIES = 1024;
+    
+    // REST endpoints for the permission audit - overridable with -Dchk.resourceManagerUrl / -Dchk.bigQueryApiUrl
+    private static final String RESOURCE_MANAGER_URL = "https://cloudresourcemanager.googleapis.com";
+    private static final String BIGQUERY_API_URL = "https://bigquery.googleapis.com";
+    private static final Duration PERMISSION_CACHE_TTL = Duration.ofMinutes(5);
+    private static final int PERMISSION_MAX_TABLES_PER_DATASET = 100;
+    private static final int PERMISSION_MAX_CONCURRENCY = 64;
+    
+    // One HTTP client for all STS / IAM calls: pooled keep-alive connections, HTTP/2 where offered
+    private static final Duration HTTP_CONNECT_TIMEOUT = Duration.ofSeconds(10);
+    private static final Duration HTTP_REQUEST_TIMEOUT = Duration.ofSeconds(10);
+    private static final HttpClient HTTP_CLIENT = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_2)
+            .connectTimeout(HTTP_CONNECT_TIMEOUT)
+            .build();
+    
+    // STS / IAM resilience: HTTP_REQUEST_TIMEOUT bounds one attempt, the call deadline bounds all retries
+    // (overridable with -Dchk.tokenCallDeadlineMillis / -Dchk.tokenCallMaxAttempts)
+    private static final Duration TOKEN_CALL_DEADLINE = Duration.ofSeconds(25);
+    private static final int TOKEN_CALL_MAX_ATTEMPTS = 4;
+    private static final Duration RETRY_BASE_BACKOFF = Duration.ofMillis(200);
+    private static final Duration RETRY_MAX_BACKOFF = Duration.ofSeconds(5);
+    private static final Duration HEDGE_MIN_DELAY = Duration.ofMillis(50);
+    private static final int HEDGE_MIN_SAMPLES = 20;
+    private static final int HEDGE_BUDGET_PERCENT = 10;
+    private static final int BREAKER_FAILURE_THRESHOLD = 5;
+    private static final Duration BREAKER_OPEN_DURATION = Duration.ofSeconds(30);
+    static final ResilientEndpoint STS_ENDPOINT = new ResilientEndpoint("sts");
+    static final ResilientEndpoint IAM_ENDPOINT = new ResilientEndpoint("iam");
+    static final ResilientEndpoint RESOURCE_MANAGER_ENDPOINT = new ResilientEndpoint("resourcemanager");
+    static final ResilientEndpoint BIGQUERY_API_ENDPOINT = new ResilientEndpoint("bigquery");
+    
+    // Platform-thread fallback for newVirtualThreadExecutor before Java 21: idle threads exit after this
+    private static final Duration PLATFORM_THREAD_KEEP_ALIVE = Duration.ofSeconds(30);
+    private static final AtomicBoolean VIRTUAL_THREADS_UNAVAILABLE_NOTED = new AtomicBoolean();
+    
+    // Token caching - refresh impersonated tokens this long before they expire
+    static final Duration TOKEN_REFRESH_SKEW = Duration.ofMinutes(5);
+    static final Duration DEFAULT_TOKEN_LIFETIME = Duration.ofHours(1);
+    
+    // -Dchk.tokenMode: impersonate (default), direct (federated token straight to BigQuery) or auto (probe, see DirectTokenMode)
+    private static final String DEFAULT_TOKEN_MODE = "impersonate";
+    private static final Duration DIRECT_TOKEN_PROBE_TTL = Duration.ofMinutes(30);
+    
+    // Node-local token broker ('broker' mode) - clients use it whenever the socket exists (-Dchk.brokerSocket).
+    // Clients refresh later than the broker does, so they always find a token the broker already renewed
+    private static final String TOKEN_BROKER_SOCKET = "/opt/denodo/work/eloi_work/chk_jdbc_token_broker.sock";
+    private static final int TOKEN_BROKER_MAX_TOKEN_SETS = 256;
+    private static final Duration TOKEN_BROKER_CLIENT_SKEW = Duration.ofMinutes(2);
+    
+    // Connection pool settings
+    private static final int POOL_MIN_IDLE = 2;
+    private static final int POOL_MAX_SIZE = 10;
+    private static final Duration POOL_BORROW_TIMEOUT = Duration.ofSeconds(30);
+    private static final Duration POOL_IDLE_TIMEOUT = Duration.ofMinutes(10);
+    private static final Duration POOL_MAINTENANCE_INTERVAL = Duration.ofSeconds(30);
+    private static final int POOL_VALIDATION_TIMEOUT_SECONDS = 5;
+    private static final Duration POOL_HEALTH_MIN_INTERVAL = Duration.ofSeconds(5);
+    private static final Duration POOL_HEALTH_MAX_INTERVAL = Duration.ofMinutes(2);
+    private static final Duration POOL_RECENT_USE_WINDOW = Duration.ofSeconds(30);
+    
+    // Race mode and remembered winning strategy (per JDBC URL)
+    private static final Duration RACE_TIMEOUT = Duration.ofMinutes(2);
+    private static final String STRATEGY_STATE_FILE = "/opt/denodo/work/eloi_work/chk_jdbc_state.properties";
+    private static final String STATE_LATENCY_SUFFIX = "#latencyMillis";
+    private static final String STATE_UPDATED_SUFFIX = "#updated";
+    
+    // Deadline for connectAsync in the 'async' mode, e.g. a readiness-probe budget
+    private static final Duration ASYNC_CONNECT_DEADLINE = Duration.ofSeconds(60);
+    
+    // Load mode defaults - overridable with -Dchk.loadThreads / -Dchk.loadDurationSeconds / -Dchk.loadQuery
+    private static final int LOAD_DEFAULT_THREADS = 100;
+    private static final Duration LOAD_DEFAULT_DURATION = Duration.ofSeconds(60);
+    private static final String LOAD_DEFAULT_QUERY = "SELECT 1";
+    
+    // Simba driver logging: errors only by default (-Dchk.driverLogLevel), trace only for the retry after a failed connect
+    private static final String DRIVER_LOG_LEVEL = "2";
+    private static final String DRIVER_TRACE_LOG_LEVEL = "6";
+    private static final String DRIVER_LOG_PATH = "/opt/denodo/work/eloi_work/bigquery_jdbc.log";
+    private static final Duration DRIVER_TRACE_COOLDOWN = Duration.ofMinutes(5);
+    
+    // Class-data-sharing archive for the tool + driver classes ('train' writes it, 'launch' uses it)
+    private static final String CDS_DIR = "/opt/denodo/work/eloi_work";
+    private static final String CDS_ARCHIVE_NAME = "chk_jdbc_fixed.jsa";
+    private static final String CDS_JAR_NAME = "chk_jdbc_fixed.jar";
     
     public static void main(String[] args) {
+        EventLog.captureConsole();
         try {
             // Set the environment variable at OS level using ProcessBuilder
             ProcessBuilder pb = new ProcessBuilder();
@@ -44,19 +254,75 @@ public class chk_jdbc_fixed {
             System.out.println("Warning: Could not set environment variable: " + e.getMessage());
         }
         
-        testBigQueryJdbcConnection();
+        String metricsPort = System.getProperty("chk.metricsPort");
+        if (metricsPort != null) {
+            try {
+                Metrics.startEndpoint(Integer.parseInt(metricsPort.trim()));
+            } catch (IOException | RuntimeException e) {
+                System.out.println("Warning: Could not start metrics endpoint: " + e.getMessage());
+            }
+        }
+        
+        String mode = args.length > 0 ? args[0] : "check";
+        switch (mode) {
+            case "pool":
+                testConnectionPool();
+                break;
+            case "race":
+                testBigQueryJdbcConnection(true);
+                break;
+            case "async":
+                testAsyncConnection();
+                break;
+            case "load":
+                runLoadTest();
+                break;
+            case "driver":
+                testDriverRuntime(args.length > 1 && "reload".equals(args[1]));
+                break;
+            case "permissions":
+                auditPermissions();
+                break;
+            case "metadata":
+                testMetadataCache();
+                break;
+            case "broker":
+                if (args.length > 1 && "lookup".equals(args[1])) {
+                    lookupBrokerToken();
+                } else {
+                    runTokenBroker();
+                }
+                break;
+            case "train":
+                System.exit(trainCdsArchive(args.length > 1 ? args[1] : "check"));
+                break;
+            case "launch":
+                System.exit(launchWithCdsArchive(Arrays.copyOfRange(args, 1, args.length)));
+                break;
+            default:
+                testBigQueryJdbcConnection();
+                break;
+        }
     }
     
     /**
      * Tests JDBC connection to BigQuery using WIF authentication
      */
     public static void testBigQueryJdbcConnection() {
-        Connection connection = null;
+        testBigQueryJdbcConnection(false);
+    }
+    
+    /**
+     * Tests JDBC connection to BigQuery using WIF authentication.
+     * With race=true all approaches start at once and the first valid connection wins.
+     */
+    public static void testBigQueryJdbcConnection(boolean race) {
+        TokenProvider tokenProvider = null;
         
         try {
             System.out.println("Testing BigQuery JDBC connection with WIF authentication...");
             System.out.println("Database URL: " + DB_URL);
-            System.out.println("Service Account Token File: " + SERVICE_ACCOUNT_TOKEN_FILE);
+            System.out.println("Service Account Token File: " + serviceAccountTokenFile());
             System.out.println("-".repeat(50));
             
             // Load BigQuery drivers first and get the class loader
@@ -75,141 +341,39 @@ public class chk_jdbc_fixed {
             String serviceAccountToken = readServiceAccountToken();
             
             // Set GOOGLE_APPLICATION_CREDENTIALS environment variable for ADC
-            System.setProperty("GOOGLE_APPLICATION_CREDENTIALS", CREDENTIAL_FILE_PATH);
-            
-            // Try multiple authentication approaches
-            // Approach 1: Direct token usage (if we have a token)
-            if (serviceAccountToken != null && !serviceAccountToken.trim().isEmpty()) {
-                System.out.println("\n--- Approach 1: Using Kubernetes Service Account Token Directly ---");
-                Connection tokenConnection = tryDirectTokenAuth(serviceAccountToken, driverClassLoader);
-                if (tokenConnection != null) {
-                    System.out.println("✓ Connection successful with direct token!");
-                    testConnectionSuccess(tokenConnection);
-                    return;
-                }
-            }
+            System.setProperty("GOOGLE_APPLICATION_CREDENTIALS", credentialFile());
             
-            // Approach 1b: URL token approach
-            if (serviceAccountToken != null && !serviceAccountToken.trim().isEmpty()) {
-                System.out.println("\n--- Approach 1b: Using Access Token in JDBC URL ---");
-                Connection urlTokenConnection = tryUrlTokenAuth(serviceAccountToken, driverClassLoader);
-                if (urlTokenConnection != null) {
-                    System.out.println("✓ Connection successful with URL token!");
-                    testConnectionSuccess(urlTokenConnection);
-                    return;
-                }
-            }
+            // One cached token provider shared by every approach: the STS exchange and
+            // impersonation run once per token lifetime instead of once per attempt
+            boolean hasServiceAccountToken = serviceAccountToken != null && !serviceAccountToken.trim().isEmpty();
+            TokenProvider provider = newServiceAccountTokenProvider();
+            tokenProvider = provider;
             
-            // Approach 2: UserAccount + OAuthType=2 + STS Token
-            System.out.println("\n--- Approach 2: UserAccount + OAuthType=2 + STS Token ---");
-            if (serviceAccountToken != null && !serviceAccountToken.trim().isEmpty()) {
-                // Get Google access token via STS
-                String googleAccessToken = exchangeTokenWithSTS(serviceAccountToken);
-                if (googleAccessToken != null) {
-                    Properties props = new Properties();
-                    
-                    // Use UserAccount authentication with WIF OAuth type and STS token
-                    props.setProperty("AuthenticationType", "2"); // UserAccount (REQUIRED for WIF!)
-                    props.setProperty("OAuthType", "2"); // WIF/Workload Identity Federation (REQUIRED)
-                    props.setProperty("OAuthAccessToken", googleAccessToken); // STS exchanged token
-                    props.setProperty("OAuthRefreshToken", googleAccessToken); // Same token as refresh (may help)
-                    props.setProperty("LogLevel", "6"); // Enable detailed logging
-                    props.setProperty("LogPath", "/opt/denodo/work/eloi_work/bigquery_jdbc.log"); // Log file location
-                    
-                    System.out.println("Connection properties (UserAccount=2 + OAuthType=2 + STS token):");
-                    System.out.println("  AuthenticationType: " + props.getProperty("AuthenticationType") + " (UserAccount - REQUIRED for WIF!)");
-                    System.out.println("  OAuthType: " + props.getProperty("OAuthType") + " (WIF/Workload Identity Federation - REQUIRED)");
-                    System.out.println("  OAuthAccessToken: [STS_EXCHANGED_TOKEN_PROVIDED]");
-                    System.out.println("  OAuthRefreshToken: [STS_EXCHANGED_TOKEN_PROVIDED]");
-                    System.out.println("  Note: Using STS-exchanged token with UserAccount + WIF combination");
-                    
-                    // Try to load BigQuery driver
-                    try {
-                        System.out.println("Loading BigQuery JDBC driver...");
-                        Class<?> driverClassObj = Class.forName("com.simba.googlebigquery.jdbc.Driver", true, driverClassLoader);
-                        
-                        // Instantiate the driver to register it with DriverManager
-                        java.sql.Driver driver = (java.sql.Driver) driverClassObj.getDeclaredConstructor().newInstance();
-                        DriverManager.registerDriver(new DriverShim(driver));
-                        
-                        System.out.println("✓ Successfully loaded and registered BigQuery driver");
-                        
-                        // Create the connection using our custom class loader
-                        Thread.currentThread().setContextClassLoader(driverClassLoader);
-                        connection = DriverManager.getConnection(DB_URL, props);
-                        
-                        if (connection != null) {
-                            System.out.println("✓ BigQuery connection successful with UserAccount + WIF + STS token!");
-                            testConnectionSuccess(connection);
-                            return;
-                        }
-                        
-                    } catch (Exception e) {
-                        System.out.println("✗ UserAccount + WIF approach failed: " + e.getMessage());
-                    }
-                } else {
-                    System.out.println("✗ Could not get STS token for UserAccount approach");
-                }
-            }
+            // Try multiple authentication approaches, each behind the AuthStrategy interface.
+            // Approaches 1, 1b and 2 need the Kubernetes token; Approach 3 lets the driver do WIF itself
+            AuthContext context = new AuthContext(driverClassLoader, provider, hasServiceAccountToken);
+            List<AuthStrategy> strategies = selectStrategies(context);
             
-            // Approach 3: Try native WIF with CredentialsPath (no manual token exchange)
-            System.out.println("\n--- Approach 3: Native WIF with CredentialsPath ---");
-            try {
-                Properties props = new Properties();
-                props.setProperty("AuthenticationType", "4"); // External Account for WIF
-                props.setProperty("CredentialsPath", CREDENTIAL_FILE_PATH); // WIF credential file
-                props.setProperty("OAuthType", "2"); // WIF OAuth type
-                props.setProperty("LogLevel", "6");
-                props.setProperty("LogPath", "/opt/denodo/work/eloi_work/bigquery_jdbc.log");
-                
-                System.out.println("Connection properties (Native WIF with CredentialsPath):");
-                System.out.println("  AuthenticationType: 4 (External Account for WIF)");
-                System.out.println("  CredentialsPath: " + CREDENTIAL_FILE_PATH);
-                System.out.println("  OAuthType: 2 (WIF/Workload Identity Federation)");
-                System.out.println("  Note: Let driver handle WIF token exchange internally");
-                
-                System.out.println("Loading BigQuery JDBC driver...");
-                Class.forName("com.simba.googlebigquery.jdbc.Driver");
-                System.out.println("✓ Successfully loaded and registered BigQuery driver");
-                
-                connection = DriverManager.getConnection(DB_URL, props);
-                
-                if (connection != null && connection.isValid(5)) {
-                    System.out.println("✓ Native WIF approach SUCCESS!");
-                    System.out.println("✓ BigQuery JDBC connection established successfully!");
-                    
-                    // Test basic connection info
-                    DatabaseMetaData metaData = connection.getMetaData();
-                    System.out.println("Driver Name: " + metaData.getDriverName());
-                    System.out.println("Driver Version: " + metaData.getDriverVersion());
-                    System.out.println("Database Product: " + metaData.getDatabaseProductName());
-                    return; // Success!
-                } else {
-                    System.out.println("✗ Connection validation failed");
-                }
-                
-            } catch (SQLException e) {
-                System.out.println("✗ Native WIF approach failed: " + e.getMessage());
-            } catch (ClassNotFoundException e) {
-                System.out.println("✗ Driver not found: " + e.getMessage());
+            AuthOutcome winner = race ? raceStrategies(strategies, context) : runStrategiesInOrder(strategies, context);
+            if (winner != null) {
+                System.out.println("✓ Connection successful with " + winner.strategy.name() + "!");
+                saveWinningStrategy(winner);
+                testConnectionSuccess(winner.connection);
+                return;
             }
             
             // If we get here, all approaches failed
             System.out.println("\n✗ All authentication approaches failed!");
+            EventLog.dumpOnFailure("all authentication approaches failed");
             
         } catch (Exception e) {
             System.out.println("✗ Unexpected error occurred: " + e.getMessage());
             e.printStackTrace();
+            EventLog.dumpOnFailure("unexpected error: " + e);
             
         } finally {
-            // Close connection
-            if (connection != null) {
-                try {
-                    connection.close();
-                    System.out.println("✓ Connection closed successfully");
-                } catch (SQLException e) {
-                    System.out.println("✗ Error closing connection: " + e.getMessage());
-                }
+            if (tokenProvider != null) {
+                tokenProvider.shutdown();
             }
         }
         
@@ -226,425 +390,3711 @@ public class chk_jdbc_fixed {
         System.out.println("• Check the workload identity binding between KSA and GSA");
     }
     
-    // Add all the helper methods from the original file here...
-    // (I'll continue with the key methods needed)
-    
     /**
-     * Load BigQuery JDBC drivers from the specified path
+     * Report the driver runtime's class and metaspace figures; with reload=true also hot-swap
+     * the driver from the driver path and check that the old generation is collected
      */
-    private static URLClassLoader loadBigQueryDrivers() {
+    public static void testDriverRuntime(boolean reload) {
+        DriverRuntime runtime = driverRuntime(driverPath());
+        if (runtime == null) {
+            System.out.println("✗ Failed to load BigQuery drivers");
+            return;
+        }
         try {
-            File driverDir = new File(BIGQUERY_DRIVER_PATH);
-            if (!driverDir.exists() || !driverDir.isDirectory()) {
-                System.out.println("✗ BigQuery driver directory not found: " + BIGQUERY_DRIVER_PATH);
-                return null;
-            }
-            
-            File[] jarFiles = driverDir.listFiles((dir, name) -> name.toLowerCase().endsWith(".jar"));
-            if (jarFiles == null || jarFiles.length == 0) {
-                System.out.println("✗ No JAR files found in BigQuery driver directory");
-                return null;
-            }
-            
-            URL[] jarUrls = new URL[jarFiles.length];
-            for (int i = 0; i < jarFiles.length; i++) {
-                jarUrls[i] = jarFiles[i].toURI().toURL();
-            }
-            
-            URLClassLoader classLoader = new URLClassLoader(jarUrls, ClassLoader.getSystemClassLoader());
-            System.out.println("✓ BigQuery drivers loaded from: " + BIGQUERY_DRIVER_PATH);
-            return classLoader;
-            
-        } catch (Exception e) {
-            System.out.println("✗ Failed to load BigQuery drivers: " + e.getMessage());
-            return null;
+            runtime.driver();
+            System.out.println("✓ Driver " + driverClassName() + " loaded");
+        } catch (SQLException e) {
+            System.out.println("✗ " + e.getMessage());
+        }
+        System.out.println(runtime.report());
+        if (reload) {
+            System.out.println("-".repeat(50));
+            runtime.reload();
+            System.out.println(runtime.report());
         }
     }
     
     /**
-     * Test Google credentials loading (if available)
+     * Permission audit for the impersonated service account, replacing test_bigquery_permissions.sh.
+     * One batched testIamPermissions call per project and per table, every resource probed
+     * concurrently. Projects and datasets default to ProjectId / DefaultDataset from DB_URL and
+     * can be listed with -Dchk.permissionProjects / -Dchk.permissionDatasets (project.dataset).
      */
-    private static void testGoogleCredentials() {
+    public static void auditPermissions() {
+        TokenProvider tokenProvider = null;
         try {
-            System.out.println("Testing Google Credentials directly...");
-            
-            // Try to use reflection to load Google credentials without requiring the dependency at compile time
-            Class<?> googleCredentialsClass = Class.forName("com.google.auth.oauth2.GoogleCredentials");
-            java.lang.reflect.Method fromStreamMethod = googleCredentialsClass.getMethod("fromStream", java.io.InputStream.class);
-            java.lang.reflect.Method createScopedMethod = googleCredentialsClass.getMethod("createScoped", java.util.Collection.class);
-            java.lang.reflect.Method refreshMethod = googleCredentialsClass.getMethod("refreshAccessToken");
+            tokenProvider = newServiceAccountTokenProvider();
+            String defaultProject = jdbcUrlProperty(DB_URL, "ProjectId");
+            List<String> projects = listProperty("chk.permissionProjects", defaultProject);
+            List<String> datasets = listProperty("chk.permissionDatasets", jdbcUrlProperty(DB_URL, "DefaultDataset"));
+            PermissionProbe probe = new PermissionProbe(tokenProvider, defaultProject,
+                    Duration.ofSeconds(Long.getLong("chk.permissionCacheSeconds", PERMISSION_CACHE_TTL.getSeconds())),
+                    Integer.getInteger("chk.permissionMaxTables", PERMISSION_MAX_TABLES_PER_DATASET));
             
-            Object credentials = fromStreamMethod.invoke(null, new FileInputStream(CREDENTIAL_FILE_PATH));
-            credentials = createScopedMethod.invoke(credentials, java.util.Arrays.asList("https://www.googleapis.com/auth/cloud-platform"));
+            // Impersonate first so the timing below is the audit itself
+            tokenProvider.getToken();
+            System.out.println("-".repeat(50));
+            System.out.println("Permission audit: projects " + projects + ", datasets " + datasets);
             
-            System.out.println("✓ Google credentials loaded successfully");
-            System.out.println("  Credential type: " + credentials.getClass().getSimpleName());
+            long start = System.nanoTime();
+            List<PermissionProbe.Result> results = probe.audit(projects, datasets)
+                    .get(TOKEN_CALL_DEADLINE.toMillis() * 2, TimeUnit.MILLISECONDS);
+            long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
             
-            // Try to get an access token
-            Object accessToken = refreshMethod.invoke(credentials);
-            System.out.println("✓ Access token obtained successfully");
+            Set<String> missingRoles = new TreeSet<>();
+            for (PermissionProbe.Result result : results) {
+                System.out.println(result.describe());
+                for (String permission : result.missing()) {
+                    missingRoles.add(PermissionProbe.grantingRole(permission));
+                }
+            }
+            System.out.println("✓ Audited " + results.size() + " resources in " + elapsedMillis + " ms");
+            if (!missingRoles.isEmpty()) {
+                System.out.println("\nMissing permissions are granted by: " + String.join(", ", missingRoles));
+                System.out.println("e.g. gcloud projects add-iam-policy-binding " + defaultProject
+                        + " --member=\"serviceAccount:<service account>\" --role=\"" + missingRoles.iterator().next() + "\"");
+            }
             
-        } catch (ClassNotFoundException e) {
-            System.out.println("× Google Auth library not found in classpath");
-            System.out.println("  This is expected - continuing with JDBC driver's internal auth");
+        } catch (TimeoutException e) {
+            System.out.println("✗ Permission audit did not finish in time");
         } catch (Exception e) {
-            System.out.println("× Failed to load Google credentials: " + e.getMessage());
-            if (e.getCause() != null) {
-                System.out.println("  Root cause: " + e.getCause().getMessage());
+            System.out.println("✗ Permission audit failed: " + e.getMessage());
+            EventLog.dumpOnFailure("permission audit failed: " + e);
+        } finally {
+            if (tokenProvider != null) {
+                tokenProvider.shutdown();
             }
         }
     }
     
     /**
-     * Validate that required credential files exist and are readable
+     * Comma-separated list from a system property, else the single default (if any)
      */
-    private static void validateCredentialFiles() throws Exception {
-        // Check WIF credential file
-        File credFile = new File(CREDENTIAL_FILE_PATH);
-        if (!credFile.exists()) {
-            throw new Exception("WIF credential file not found: " + CREDENTIAL_FILE_PATH);
+    static List<String> listProperty(String name, String defaultValue) {
+        String value = System.getProperty(name, defaultValue == null ? "" : defaultValue);
+        List<String> values = new ArrayList<>();
+        for (String item : value.split(",")) {
+            if (!item.trim().isEmpty()) {
+                values.add(item.trim());
+            }
         }
-        if (!credFile.canRead()) {
-            throw new Exception("WIF credential file not readable: " + CREDENTIAL_FILE_PATH);
+        return values;
+    }
+    
+    /**
+     * Run the node-local token broker until the process is stopped. Other runs of this tool on
+     * the node pick it up automatically through the socket (see newServiceAccountTokenProvider).
+     */
+    public static void runTokenBroker() {
+        try {
+            TokenCache tokens = new TokenCache(() -> projectedToken().current(), projectedToken(), TOKEN_BROKER_MAX_TOKEN_SETS);
+            TokenBroker broker = new TokenBroker(tokenBrokerSocket(), tokens);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                System.out.println(broker.describe());
+                broker.close();
+            }, "token-broker-shutdown"));
+            System.out.println("✓ Token broker listening on " + tokenBrokerSocket());
+            broker.serve();
+        } catch (Exception e) {
+            System.out.println("✗ Token broker failed: " + e.getMessage());
+            EventLog.dumpOnFailure("token broker failed: " + e);
         }
-        System.out.println("✓ WIF credential file found: " + CREDENTIAL_FILE_PATH);
-        
-        // Check service account token file
-        File tokenFile = new File(SERVICE_ACCOUNT_TOKEN_FILE);
-        if (!tokenFile.exists()) {
-            System.out.println("⚠ Warning: Service account token file not found: " + SERVICE_ACCOUNT_TOKEN_FILE);
-            System.out.println("  This may be normal if running outside Kubernetes");
-        } else {
-            System.out.println("✓ Service account token file found: " + SERVICE_ACCOUNT_TOKEN_FILE);
+    }
+    
+    /**
+     * Fetch a token from a running broker (-Dchk.brokerLookups times) and report lookup latency.
+     * -Dchk.brokerServiceAccount / -Dchk.brokerScopes (comma-separated) select another token set.
+     */
+    public static void lookupBrokerToken() {
+        String serviceAccount = System.getProperty("chk.brokerServiceAccount", "");
+        List<String> scopes = listProperty("chk.brokerScopes", null);
+        int lookups = Math.max(1, Integer.getInteger("chk.brokerLookups", 1000));
+        try (TokenBrokerClient client = new TokenBrokerClient(tokenBrokerSocket())) {
+            long start = System.nanoTime();
+            AccessToken token = client.fetch(serviceAccount, scopes);
+            System.out.println("✓ First lookup " + (System.nanoTime() - start) / 1000 + " µs, token expires " + token.expireTime);
+            
+            long[] micros = new long[lookups];
+            for (int i = 0; i < lookups; i++) {
+                long t = System.nanoTime();
+                client.fetch(serviceAccount, scopes);
+                micros[i] = (System.nanoTime() - t) / 1000;
+            }
+            Arrays.sort(micros);
+            System.out.println("✓ " + lookups + " lookups: p50 " + micros[lookups / 2] + " µs, p99 "
+                    + micros[Math.min(lookups - 1, lookups * 99 / 100)] + " µs, max " + micros[lookups - 1] + " µs");
+        } catch (IOException e) {
+            System.out.println("✗ Token broker lookup failed: " + e.getMessage());
         }
     }
     
     /**
-     * Test a successful connection and display information
+     * Schema introspection the way Denodo does it - getTables for the dataset, then getColumns
+     * per table - run twice through the metadata cache (see MetadataCache, switched on for this
+     * mode). The dataset is -Dchk.metadataDataset, default DefaultDataset from DB_URL.
      */
-    private static void testConnectionSuccess(Connection connection) {
+    public static void testMetadataCache() {
+        System.setProperty("chk.metadataCache", "true");
+        String dataset = System.getProperty("chk.metadataDataset", jdbcUrlProperty(DB_URL, "DefaultDataset"));
+        TokenProvider tokenProvider = null;
+        Connection connection = null;
         try {
-            if (connection != null && connection.isValid(5)) {
-                System.out.println("✓ BigQuery connection successful!");
+            URLClassLoader driverClassLoader = loadBigQueryDrivers();
+            if (driverClassLoader == null) {
+                throw new Exception("Failed to load BigQuery drivers");
+            }
+            tokenProvider = newServiceAccountTokenProvider();
+            connection = tryDirectTokenAuth(tokenProvider, driverClassLoader);
+            if (connection == null) {
+                throw new Exception("Could not connect");
+            }
+            System.out.println("-".repeat(50));
+            System.out.println("Introspecting dataset " + dataset + "...");
+            for (int pass = 1; pass <= 2; pass++) {
+                long start = System.nanoTime();
                 DatabaseMetaData metaData = connection.getMetaData();
-                System.out.println("Driver Name: " + metaData.getDriverName());
-                System.out.println("Driver Version: " + metaData.getDriverVersion());
-                System.out.println("Database Product: " + metaData.getDatabaseProductName());
+                List<String> tables = new ArrayList<>();
+                try (ResultSet rs = metaData.getTables(null, dataset, "%", null)) {
+                    while (rs.next()) {
+                        tables.add(rs.getString("TABLE_NAME"));
+                    }
+                }
+                int columns = 0;
+                for (String table : tables) {
+                    try (ResultSet rs = metaData.getColumns(null, dataset, table, "%")) {
+                        while (rs.next()) {
+                            columns++;
+                        }
+                    }
+                }
+                System.out.println("✓ Pass " + pass + ": " + tables.size() + " tables, " + columns + " columns in "
+                        + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
             }
-        } catch (SQLException e) {
-            System.out.println("✗ Error testing connection: " + e.getMessage());
+            MetadataCache.shared().writeSnapshotIfDirty();
+            System.out.println(MetadataCache.shared().describe());
+            
+        } catch (Exception e) {
+            System.out.println("✗ Metadata introspection failed: " + e.getMessage());
+            EventLog.dumpOnFailure("metadata introspection failed: " + e);
         } finally {
-            try {
-                if (connection != null) {
-                    connection.close();
-                    System.out.println("✓ Connection closed successfully");
-                }
-            } catch (SQLException e) {
-                System.out.println("✗ Error closing connection: " + e.getMessage());
+            closeQuietly(connection);
+            if (tokenProvider != null) {
+                tokenProvider.shutdown();
             }
         }
     }
     
     /**
-     * Read the Kubernetes service account token directly
+     * Connect through connectAsync and report how long it took against the deadline
      */
-    private static String readServiceAccountToken() {
+    public static void testAsyncConnection() {
+        TokenProvider tokenProvider = newServiceAccountTokenProvider();
         try {
-            File tokenFile = new File(SERVICE_ACCOUNT_TOKEN_FILE);
-            if (!tokenFile.exists()) {
-                System.out.println("⚠ Service account token file not found: " + SERVICE_ACCOUNT_TOKEN_FILE);
-                return null;
-            }
+            System.out.println("Testing asynchronous BigQuery JDBC connection (deadline " + ASYNC_CONNECT_DEADLINE.getSeconds() + " s)...");
+            System.out.println("Database URL: " + DB_URL);
+            System.out.println("-".repeat(50));
             
-            String token = new String(java.nio.file.Files.readAllBytes(tokenFile.toPath())).trim();
-            System.out.println("✓ Read service account token (" + token.length() + " characters)");
-            System.out.println("  Token preview: " + token.substring(0, Math.min(50, token.length())) + "...");
-            return token;
+            long start = System.nanoTime();
+            Connection connection = connectAsync(tokenProvider, ASYNC_CONNECT_DEADLINE).get();
+            System.out.println("✓ Asynchronous connect completed in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+            testConnectionSuccess(connection);
             
-        } catch (Exception e) {
-            System.out.println("✗ Failed to read service account token: " + e.getMessage());
-            return null;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof TimeoutException) {
+                System.out.println("✗ Connect did not finish within " + ASYNC_CONNECT_DEADLINE.getSeconds() + " s");
+            } else {
+                System.out.println("✗ Asynchronous connect failed: " + cause.getMessage());
+            }
+            EventLog.dumpOnFailure("asynchronous connect failed: " + cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.out.println("✗ Interrupted while waiting for connection");
+        } finally {
+            tokenProvider.shutdown();
         }
     }
     
     /**
-     * Try direct token authentication using manually exchanged STS token
+     * Establish a connection without blocking the caller.
+     * 
+     * Driver class loading, credential file validation and the Kubernetes token read + STS
+     * exchange run in parallel; the strategies run once all three have finished. The future
+     * fails with a TimeoutException after the deadline. Cancelling it, or hitting the deadline,
+     * interrupts the work still running and closes a connection that arrives too late.
      */
-    private static Connection tryDirectTokenAuth(String kubernetesToken, URLClassLoader driverClassLoader) {
-        try {
-            System.out.println("Trying STS token exchange for WIF...");
-            
-            // Step 1: Exchange Kubernetes token for Google Cloud access token via STS
-            String googleAccessToken = exchangeTokenWithSTS(kubernetesToken);
-            if (googleAccessToken == null) {
-                System.out.println("✗ STS token exchange failed");
-                return null;
+    public static CompletableFuture<Connection> connectAsync(TokenProvider tokenProvider, Duration deadline) {
+        // Driver loading and the credential check side by side, then the strategies one at a time
+        ExecutorService executor = newVirtualThreadExecutor("connect-async", 2);
+        CompletableFuture<Connection> result = new CompletableFuture<>();
+        
+        CompletableFuture<URLClassLoader> drivers = CompletableFuture.supplyAsync(() -> {
+            URLClassLoader loader = loadBigQueryDrivers();
+            if (loader == null) {
+                throw new CompletionException(new Exception("Failed to load BigQuery drivers"));
             }
+            return loader;
+        }, executor);
+        CompletableFuture<Void> credentials = CompletableFuture.runAsync(() -> {
+            try {
+                validateCredentialFiles();
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        }, executor);
+        // Approach 3 works without the Kubernetes token, so a failed exchange only narrows the strategies
+        CompletableFuture<Boolean> token = tokenProvider.getTokenAsync().handle((accessToken, error) -> error == null);
+        
+        CompletableFuture.allOf(drivers, credentials, token).thenRunAsync(() -> {
+            if (result.isDone()) {
+                return;
+            }
+            AuthContext context = new AuthContext(drivers.join(), tokenProvider, token.join());
+            AuthOutcome outcome = runStrategiesInOrder(selectStrategies(context), context);
+            if (outcome == null) {
+                result.completeExceptionally(new SQLException("All authentication strategies failed"));
+                return;
+            }
+            saveWinningStrategy(outcome);
+            if (!result.complete(outcome.connection)) {
+                // Cancelled or past the deadline while connecting
+                closeQuietly(outcome.connection);
+            }
+        }, executor).whenComplete((ignored, error) -> {
+            if (error != null) {
+                result.completeExceptionally(error instanceof CompletionException && error.getCause() != null
+                        ? error.getCause() : error);
+            }
+        });
+        
+        result.orTimeout(deadline.toMillis(), TimeUnit.MILLISECONDS);
+        result.whenComplete((connection, error) -> {
+            if (error != null) {
+                // Interrupt anything still loading, exchanging or connecting
+                executor.shutdownNow();
+            } else {
+                executor.shutdown();
+            }
+        });
+        return result;
+    }
+    
+    /**
+     * Run a representative connect in a child JVM that dumps a dynamic CDS archive at exit.
+     * The archive covers the tool classes and the driver classes it loaded, so later
+     * 'launch' runs map them from the archive instead of parsing and verifying them again.
+     */
+    public static int trainCdsArchive(String trainingMode) {
+        try {
+            File cdsDir = new File(System.getProperty("chk.cdsDir", CDS_DIR));
+            File archive = new File(cdsDir, CDS_ARCHIVE_NAME);
+            File toolJar = packageToolJar(new File(cdsDir, CDS_JAR_NAME));
             
-            // Step 2: Use the Google access token with JDBC driver
-            System.out.println("Using exchanged Google access token with JDBC driver...");
-            Properties props = new Properties();
-            props.setProperty("AuthenticationType", "1"); // Service Account (REQUIRED)
-            props.setProperty("OAuthType", "1"); // Bearer Token (REQUIRED)
-            props.setProperty("OAuthAccessToken", googleAccessToken); // Google access token
-            props.setProperty("LogLevel", "6");
-            props.setProperty("LogPath", "/opt/denodo/work/eloi_work/bigquery_jdbc.log");
-            
-            System.out.println("  AuthenticationType: 1 (Service Account - REQUIRED)");
-            System.out.println("  OAuthType: 1 (Bearer Token - REQUIRED)");
-            System.out.println("  OAuthAccessToken: [GOOGLE_ACCESS_TOKEN_PROVIDED]");
+            System.out.println("Training CDS archive with a '" + trainingMode + "' run...");
+            System.out.println("  Tool jar: " + toolJar);
+            System.out.println("  Archive:  " + archive);
             
-            // Register the driver with DriverManager using the custom class loader
-            System.out.println("Re-registering BigQuery driver for token auth...");
-            Thread.currentThread().setContextClassLoader(driverClassLoader);
-            Class<?> driverClass = driverClassLoader.loadClass("com.simba.googlebigquery.jdbc.Driver");
-            Driver driver = (Driver) driverClass.getDeclaredConstructor().newInstance();
-            DriverManager.registerDriver(new DriverShim(driver));
-            System.out.println("✓ BigQuery driver registered for token auth");
+            List<String> command = new ArrayList<>();
+            command.add(javaExecutable());
+            command.add("-XX:ArchiveClassesAtExit=" + archive.getPath());
+            command.addAll(forwardedSystemProperties());
+            command.add("-cp");
+            command.add(toolJar.getPath());
+            command.add(chk_jdbc_fixed.class.getName());
+            command.add(trainingMode);
             
-            // Create the connection
-            return DriverManager.getConnection(DB_URL, props);
+            long start = System.nanoTime();
+            int exitCode = runChildJvm(command);
+            long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            if (exitCode == 0 && archive.isFile()) {
+                System.out.println("✓ CDS archive written (" + archive.length() / 1024 + " KB) after " + millis + " ms training run");
+                System.out.println("  Start with: java -XX:SharedArchiveFile=" + archive + " -cp " + toolJar + " "
+                        + chk_jdbc_fixed.class.getName() + " [mode]   (or use the 'launch' mode)");
+            } else {
+                System.out.println("✗ Training run exited with " + exitCode + "; no usable archive at " + archive);
+            }
+            return exitCode;
             
-        } catch (SQLException e) {
-            System.out.println("✗ Direct token auth failed: " + e.getMessage());
-            return null;
         } catch (Exception e) {
-            System.out.println("✗ Unexpected error in direct token auth: " + e.getMessage());
-            return null;
+            System.out.println("✗ CDS training failed: " + e.getMessage());
+            return 1;
         }
     }
     
     /**
-     * Try using access token embedded in JDBC URL
+     * Re-run the tool in a child JVM mapped onto the trained CDS archive (falls back to a
+     * plain start when there is no archive)
      */
-    private static Connection tryUrlTokenAuth(String kubernetesToken, URLClassLoader driverClassLoader) {
+    public static int launchWithCdsArchive(String[] modeArgs) {
         try {
-            System.out.println("Trying STS token exchange for URL embedding...");
-            
-            // Step 1: Exchange Kubernetes token for Google Cloud access token via STS
-            String googleAccessToken = exchangeTokenWithSTS(kubernetesToken);
-            if (googleAccessToken == null) {
-                System.out.println("✗ STS token exchange failed");
-                return null;
+            File cdsDir = new File(System.getProperty("chk.cdsDir", CDS_DIR));
+            File archive = new File(cdsDir, CDS_ARCHIVE_NAME);
+            File toolJar = new File(cdsDir, CDS_JAR_NAME);
+            if (!toolJar.isFile()) {
+                toolJar = packageToolJar(toolJar);
             }
             
-            // Step 2: Embed token in JDBC URL
-            String urlWithToken = DB_URL + ";AuthenticationType=1;OAuthType=1;OAuthAccessToken=" + googleAccessToken;
-            
-            System.out.println("Using JDBC URL with embedded access token...");
-            System.out.println("  URL: " + DB_URL + ";AuthenticationType=1;OAuthType=1;OAuthAccessToken=[TOKEN]");
-            
-            Properties props = new Properties();
-            props.setProperty("LogLevel", "6");
-            props.setProperty("LogPath", "/opt/denodo/work/eloi_work/bigquery_jdbc.log");
-            
-            // Register driver
-            Thread.currentThread().setContextClassLoader(driverClassLoader);
-            Class<?> driverClass = driverClassLoader.loadClass("com.simba.googlebigquery.jdbc.Driver");
-            Driver driver = (Driver) driverClass.getDeclaredConstructor().newInstance();
-            DriverManager.registerDriver(new DriverShim(driver));
-            
-            // Create connection
-            return DriverManager.getConnection(urlWithToken, props);
+            List<String> command = new ArrayList<>();
+            command.add(javaExecutable());
+            if (archive.isFile()) {
+                command.add("-XX:SharedArchiveFile=" + archive.getPath());
+                command.add("-Xshare:auto");
+                System.out.println("✓ Launching with CDS archive: " + archive);
+            } else {
+                System.out.println("⚠ No CDS archive at " + archive + " - run 'train' first; launching without it");
+            }
+            command.addAll(forwardedSystemProperties());
+            command.add("-cp");
+            command.add(toolJar.getPath());
+            command.add(chk_jdbc_fixed.class.getName());
+            command.addAll(Arrays.asList(modeArgs));
+            return runChildJvm(command);
             
-        } catch (SQLException e) {
-            System.out.println("✗ URL token auth failed: " + e.getMessage());
-            return null;
         } catch (Exception e) {
-            System.out.println("✗ Unexpected error in URL token auth: " + e.getMessage());
-            return null;
+            System.out.println("✗ CDS launch failed: " + e.getMessage());
+            return 1;
         }
     }
     
     /**
-     * Exchange Kubernetes service account token for Google Cloud access token via STS
+     * CDS only archives classes from jar files, so package the compiled tool classes (every class
+     * in the directory chk_jdbc_fixed was loaded from - the tool lives in the default package)
+     * into one. When the tool already runs from a jar, that jar is used as is.
      */
-    private static String exchangeTokenWithSTS(String kubernetesToken) {
-        try {
-            System.out.println("Performing STS token exchange...");
-            
-                        // STS endpoint and parameters (from your WIF credentials)
-            String stsUrl = "https://sts.googleapis.com/v1/token";
-            String audience = "//iam.googleapis.com/projects/618647108376/locations/global/workloadIdentityPools/automation/providers/aks-aks-denodo-updater-sa";
-            // Request specific BigQuery scopes instead of generic cloud-platform
-            String scope = "https://www.googleapis.com/auth/bigquery https://www.googleapis.com/auth/cloud-platform";
-            
-            // Build the POST request body
-            String requestBody = "audience=" + java.net.URLEncoder.encode(audience, "UTF-8") +
-                "&grant_type=" + java.net.URLEncoder.encode("urn:ietf:params:oauth:grant-type:token-exchange", "UTF-8") +
-                "&requested_token_type=" + java.net.URLEncoder.encode("urn:ietf:params:oauth:token-type:access_token", "UTF-8") +
-                "&scope=" + java.net.URLEncoder.encode(scope, "UTF-8") +
-                "&subject_token_type=" + java.net.URLEncoder.encode("urn:ietf:params:oauth:token-type:jwt", "UTF-8") +
-                "&subject_token=" + java.net.URLEncoder.encode(kubernetesToken, "UTF-8");
-            
-            // Make the HTTP request to STS
-            java.net.URL url = new java.net.URL(stsUrl);
-            java.net.HttpURLConnection conn = (java.net.HttpURLConnection) url.openConnection();
-            conn.setRequestMethod("POST");
-            conn.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
-            conn.setDoOutput(true);
-            
-            // Send request
-            try (java.io.OutputStream os = conn.getOutputStream()) {
-                os.write(requestBody.getBytes("UTF-8"));
-            }
-            
-            // Read response
-            int responseCode = conn.getResponseCode();
-            System.out.println("  STS response code: " + responseCode);
-            
-            if (responseCode == 200) {
-                try (java.io.BufferedReader br = new java.io.BufferedReader(
-                    new java.io.InputStreamReader(conn.getInputStream(), "UTF-8"))) {
-                    StringBuilder response = new StringBuilder();
-                    String line;
-                    while ((line = br.readLine()) != null) {
-                        response.append(line);
-                    }
-                    
-                    // Parse JSON response to extract access_token
-                    String responseStr = response.toString();
-                    System.out.println("  STS response: " + responseStr.substring(0, Math.min(200, responseStr.length())) + "...");
-                    
-                    // Better JSON parsing for access_token - handle whitespace and formatting
-                    if (responseStr.contains("access_token")) {
-                        // Find the access_token field, handling various JSON formatting
-                        int startIdx = responseStr.indexOf("\"access_token\"");
-                        if (startIdx > -1) {
-                            // Find the start of the token value (after the quote)
-                            int valueStart = responseStr.indexOf("\"", responseStr.indexOf(":", startIdx)) + 1;
-                            // Find the end of the token value (next quote)
-                            int valueEnd = responseStr.indexOf("\"", valueStart);
-                            
-                            if (valueStart > 0 && valueEnd > valueStart) {
-                                String federatedToken = responseStr.substring(valueStart, valueEnd);
-                                System.out.println("✓ Got federated token, now impersonating service account...");
-                                System.out.println("  Federated token length: " + federatedToken.length());
-                                System.out.println("  Federated token preview: " + federatedToken.substring(0, Math.min(50, federatedToken.length())) + "...");
-                                
-                                // Now use the federated token to impersonate the service account
-                                return impersonateServiceAccount(federatedToken);
-                            } else {
-                                System.out.println("✗ Failed to find token boundaries in STS response");
-                                System.out.println("  valueStart: " + valueStart + ", valueEnd: " + valueEnd);
-                                return null;
-                            }
-                        } else {
-                            System.out.println("✗ access_token field not found in STS response");
-                            return null;
-                        }
-                    } else {
-                        System.out.println("✗ No access_token in STS response");
-                        return null;
-                    }
+    private static File packageToolJar(File target) throws Exception {
+        CodeSource codeSource = chk_jdbc_fixed.class.getProtectionDomain().getCodeSource();
+        if (codeSource == null || codeSource.getLocation() == null || !"file".equals(codeSource.getLocation().getProtocol())) {
+            throw new Exception("Tool classes are not on disk (source-file launch?) - compile first: javac -d classes -sourcepath . chk_jdbc_fixed.java");
+        }
+        File location = new File(codeSource.getLocation().toURI());
+        if (location.isFile()) {
+            return location;
+        }
+        
+        File[] classFiles = location.listFiles((dir, name) -> name.endsWith(".class"));
+        if (classFiles == null || classFiles.length == 0) {
+            throw new Exception("No compiled tool classes found in " + location);
+        }
+        target.getParentFile().mkdirs();
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        manifest.getMainAttributes().put(Attributes.Name.MAIN_CLASS, chk_jdbc_fixed.class.getName());
+        try (JarOutputStream out = new JarOutputStream(new FileOutputStream(target), manifest)) {
+            for (File classFile : classFiles) {
+                out.putNextEntry(new JarEntry(classFile.getName()));
+                out.write(Files.readAllBytes(classFile.toPath()));
+                out.closeEntry();
+            }
+        }
+        return target;
+    }
+    
+    private static String javaExecutable() {
+        return new File(new File(System.getProperty("java.home"), "bin"), "java").getPath();
+    }
+    
+    /**
+     * Pass our -Dchk.* settings on to the child JVM
+     */
+    private static List<String> forwardedSystemProperties() {
+        List<String> options = new ArrayList<>();
+        for (String name : System.getProperties().stringPropertyNames()) {
+            if (name.startsWith("chk.")) {
+                options.add("-D" + name + "=" + System.getProperty(name));
+            }
+        }
+        return options;
+    }
+    
+    private static int runChildJvm(List<String> command) throws IOException, InterruptedException {
+        ProcessBuilder builder = new ProcessBuilder(command).inheritIO();
+        builder.environment().put("GOOGLE_APPLICATION_CREDENTIALS", credentialFile());
+        return builder.start().waitFor();
+    }
+    
+    /**
+     * Built-in authentication strategies, in default fallback order
+     */
+    static List<AuthStrategy> builtInStrategies() {
+        List<AuthStrategy> strategies = new ArrayList<>();
+        strategies.add(new SimpleAuthStrategy("direct-token", "Approach 1: Using Kubernetes Service Account Token Directly",
+                true, true, context -> tryDirectTokenAuth(context.tokenProvider, context.driverClassLoader)));
+        strategies.add(new SimpleAuthStrategy("url-token", "Approach 1b: Using Access Token in JDBC URL",
+                true, true, context -> tryUrlTokenAuth(context.tokenProvider, context.driverClassLoader)));
+        strategies.add(new SimpleAuthStrategy("user-account-wif", "Approach 2: UserAccount + OAuthType=2 + STS Token",
+                true, true, context -> tryUserAccountWifAuth(context.tokenProvider, context.driverClassLoader)));
+        strategies.add(new SimpleAuthStrategy("native-wif", "Approach 3: Native WIF with CredentialsPath",
+                false, true, context -> tryNativeWifAuth(context.driverClassLoader)));
+        // Methods from chk_jdbc; only run when named in -Dchk.strategies
+        strategies.add(new SimpleAuthStrategy("adc", "ADC with External Account (AuthenticationType=0, OAuthType=3)",
+                false, false, context -> tryADCAuth(context.driverClassLoader)));
+        strategies.add(new SimpleAuthStrategy("service-account-key", "Service Account Key (AuthenticationType=1, KeyFile)",
+                false, false, context -> tryServiceAccountAuth(context.driverClassLoader)));
+        return strategies;
+    }
+    
+    /**
+     * Pick the strategies to run:
+     * - built-ins plus any AuthStrategy registered through ServiceLoader
+     * - the names in -Dchk.strategies, or every default strategy when unset
+     * - only strategies applicable to the context (token-based ones need the Kubernetes token)
+     * - the last winning strategy for DB_URL first, so restarts go straight to it
+     */
+    private static List<AuthStrategy> selectStrategies(AuthContext context) {
+        Map<String, AuthStrategy> available = new LinkedHashMap<>();
+        for (AuthStrategy strategy : builtInStrategies()) {
+            available.put(strategy.name(), strategy);
+        }
+        for (AuthStrategy strategy : ServiceLoader.load(AuthStrategy.class)) {
+            available.putIfAbsent(strategy.name(), strategy);
+            System.out.println("✓ Loaded authentication strategy plugin: " + strategy.name());
+        }
+        
+        List<AuthStrategy> selected = new ArrayList<>();
+        String configured = System.getProperty("chk.strategies");
+        if (configured != null && !configured.trim().isEmpty()) {
+            for (String name : configured.trim().split("\\s*,\\s*")) {
+                AuthStrategy strategy = available.get(name);
+                if (strategy == null) {
+                    System.out.println("⚠ Unknown authentication strategy: " + name + " (available: " + available.keySet() + ")");
+                } else {
+                    selected.add(strategy);
                 }
-            } else {
-                // Read error response
-                try (java.io.BufferedReader br = new java.io.BufferedReader(
-                    new java.io.InputStreamReader(conn.getErrorStream(), "UTF-8"))) {
-                    StringBuilder errorResponse = new StringBuilder();
-                    String line;
-                    while ((line = br.readLine()) != null) {
-                        errorResponse.append(line);
+            }
+        } else {
+            for (AuthStrategy strategy : available.values()) {
+                if (strategy.isDefault()) {
+                    selected.add(strategy);
+                }
+            }
+        }
+        selected.removeIf(strategy -> !strategy.isApplicable(context));
+        
+        Properties state = loadStrategyState();
+        String preferred = state.getProperty(DB_URL);
+        for (AuthStrategy strategy : selected) {
+            if (strategy.name().equals(preferred)) {
+                selected.remove(strategy);
+                selected.add(0, strategy);
+                System.out.println("✓ Trying last winning strategy first: " + preferred
+                        + " (" + state.getProperty(DB_URL + STATE_LATENCY_SUFFIX, "?") + " ms last time)");
+                break;
+            }
+        }
+        return selected;
+    }
+    
+    /**
+     * Run one strategy, timing it and capturing its outcome
+     */
+    static AuthOutcome runStrategy(AuthStrategy strategy, AuthContext context) {
+        long start = System.nanoTime();
+        Connection connection = null;
+        Exception error = null;
+        ConnectEvents.CURRENT_STRATEGY.set(strategy.name());
+        try {
+            connection = strategy.connect(context);
+        } catch (Exception e) {
+            error = e;
+        } finally {
+            ConnectEvents.CURRENT_STRATEGY.remove();
+        }
+        AuthOutcome outcome = new AuthOutcome(strategy, connection, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), error);
+        Metrics.recordOutcome(strategy.name(), outcome.succeeded());
+        System.out.println((outcome.succeeded() ? "  ✓ " : "  ✗ ") + strategy.name() + " " + outcome.describe()
+                + " in " + outcome.latencyMillis + " ms");
+        return outcome;
+    }
+    
+    /**
+     * Try each strategy in turn; return the first that yields a connection
+     */
+    private static AuthOutcome runStrategiesInOrder(List<AuthStrategy> strategies, AuthContext context) {
+        for (AuthStrategy strategy : strategies) {
+            System.out.println("\n--- " + strategy.description() + " ---");
+            AuthOutcome outcome = runStrategy(strategy, context);
+            if (outcome.succeeded()) {
+                return outcome;
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Start every strategy at once on virtual threads and take the first connection that
+     * passes isValid. Losing strategies are cancelled, and connections they still produce are closed.
+     */
+    private static AuthOutcome raceStrategies(List<AuthStrategy> strategies, AuthContext context) {
+        System.out.println("\n--- Racing " + strategies.size() + " authentication strategies ---");
+        if (strategies.isEmpty()) {
+            return null;
+        }
+        ExecutorService executor = newVirtualThreadExecutor("auth-race", strategies.size());
+        CompletableFuture<AuthOutcome> winner = new CompletableFuture<>();
+        AtomicInteger remaining = new AtomicInteger(strategies.size());
+        List<Future<?>> running = new ArrayList<>();
+        
+        try {
+            for (AuthStrategy strategy : strategies) {
+                running.add(executor.submit(() -> {
+                    System.out.println("  Starting " + strategy.description());
+                    AuthOutcome outcome = runStrategy(strategy, context);
+                    ConnectEvents.CURRENT_STRATEGY.set(strategy.name());
+                    try {
+                        if (outcome.succeeded() && !winner.isDone() && isValid(outcome.connection, 5)
+                                && winner.complete(outcome)) {
+                            return;
+                        }
+                    } catch (SQLException e) {
+                        System.out.println("  ✗ " + strategy.name() + " validation failed: " + e.getMessage());
+                    } finally {
+                        ConnectEvents.CURRENT_STRATEGY.remove();
                     }
-                    System.out.println("✗ STS token exchange failed: " + errorResponse.toString());
+                    closeQuietly(outcome.connection);
+                    if (remaining.decrementAndGet() == 0) {
+                        winner.complete(null);
+                    }
+                }));
+            }
+            return winner.get(RACE_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS);
+            
+        } catch (TimeoutException e) {
+            System.out.println("✗ No strategy connected within " + RACE_TIMEOUT.getSeconds() + " s");
+            return null;
+        } catch (Exception e) {
+            System.out.println("✗ Race failed: " + e.getMessage());
+            return null;
+        } finally {
+            // Cancel the losers; any connection they still produce is closed by the task itself
+            for (Future<?> future : running) {
+                future.cancel(true);
+            }
+            executor.shutdownNow();
+        }
+    }
+    
+    /**
+     * Virtual-thread-per-task executor on JDK 21+, threads named name-0, name-1, ...; on older
+     * runtimes a daemon pool of at most maxPlatformThreads threads (further tasks queue)
+     */
+    static ExecutorService newVirtualThreadExecutor(String name, int maxPlatformThreads) {
+        try {
+            Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderType.getMethod("name", String.class, long.class).invoke(builder, name + "-", 0L);
+            ThreadFactory factory = (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+            return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class).invoke(null, factory);
+        } catch (ReflectiveOperationException e) {
+            if (VIRTUAL_THREADS_UNAVAILABLE_NOTED.compareAndSet(false, true)) {
+                System.out.println("⚠ Virtual threads need Java 21 (running " + Runtime.version().feature()
+                        + "); using bounded platform thread pools");
+            }
+            AtomicInteger count = new AtomicInteger();
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(maxPlatformThreads, maxPlatformThreads,
+                    PLATFORM_THREAD_KEEP_ALIVE.toMillis(), TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), r -> {
+                        Thread t = new Thread(r, name + "-" + count.getAndIncrement());
+                        t.setDaemon(true);
+                        return t;
+                    });
+            pool.allowCoreThreadTimeOut(true);
+            return pool;
+        }
+    }
+    
+    private static void closeQuietly(Connection connection) {
+        if (connection != null) {
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                System.out.println("⚠ Error closing losing connection: " + e.getMessage());
+            }
+        }
+    }
+    
+    /**
+     * Zero / false / null for a method return type, for proxies that answer calls they do not implement
+     */
+    static Object defaultValue(Class<?> type) {
+        if (type == boolean.class) {
+            return false;
+        } else if (type == int.class) {
+            return 0;
+        } else if (type == long.class) {
+            return 0L;
+        } else if (type == short.class) {
+            return (short) 0;
+        } else if (type == byte.class) {
+            return (byte) 0;
+        } else if (type == double.class) {
+            return 0.0d;
+        } else if (type == float.class) {
+            return 0.0f;
+        } else if (type == char.class) {
+            return '\0';
+        }
+        return null;
+    }
+    
+    private static Properties loadStrategyState() {
+        Properties state = new Properties();
+        File stateFile = new File(STRATEGY_STATE_FILE);
+        if (stateFile.isFile()) {
+            try (FileInputStream in = new FileInputStream(stateFile)) {
+                state.load(in);
+            } catch (IOException e) {
+                System.out.println("⚠ Could not read strategy state: " + e.getMessage());
+            }
+        }
+        return state;
+    }
+    
+    /**
+     * Record the winning strategy and its latency for DB_URL in the state file
+     */
+    private static void saveWinningStrategy(AuthOutcome outcome) {
+        Properties state = loadStrategyState();
+        state.setProperty(DB_URL, outcome.strategy.name());
+        state.setProperty(DB_URL + STATE_LATENCY_SUFFIX, Long.toString(outcome.latencyMillis));
+        state.setProperty(DB_URL + STATE_UPDATED_SUFFIX, Instant.now().toString());
+        
+        // Write to a temp file and move it into place so a crash never leaves a half-written state file
+        File stateFile = new File(STRATEGY_STATE_FILE);
+        File tempFile = new File(STRATEGY_STATE_FILE + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tempFile)) {
+            state.store(out, "Last winning authentication strategy per JDBC URL");
+        } catch (IOException e) {
+            System.out.println("⚠ Could not save strategy state: " + e.getMessage());
+            return;
+        }
+        try {
+            Files.move(tempFile.toPath(), stateFile.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.out.println("⚠ Could not save strategy state: " + e.getMessage());
+        }
+    }
+    
+    /**
+     * Warm a connection pool and show that borrows after warm-up skip the connect cost
+     */
+    public static void testConnectionPool() {
+        TokenProvider tokenProvider = null;
+        ConnectionPool pool = null;
+        try {
+            System.out.println("Testing pooled BigQuery JDBC connections...");
+            System.out.println("Database URL: " + DB_URL);
+            System.out.println("-".repeat(50));
+            
+            URLClassLoader driverClassLoader = loadBigQueryDrivers();
+            if (driverClassLoader == null) {
+                throw new Exception("Failed to load BigQuery drivers");
+            }
+            validateCredentialFiles();
+            
+            tokenProvider = newServiceAccountTokenProvider();
+            pool = new ConnectionPool(createBearerTokenConnectionFactory(driverClassLoader), tokenProvider,
+                    POOL_MIN_IDLE, POOL_MAX_SIZE, POOL_BORROW_TIMEOUT, POOL_IDLE_TIMEOUT,
+                    POOL_MAINTENANCE_INTERVAL, POOL_VALIDATION_TIMEOUT_SECONDS,
+                    POOL_HEALTH_MIN_INTERVAL, POOL_HEALTH_MAX_INTERVAL, POOL_RECENT_USE_WINDOW);
+            
+            long warmStart = System.nanoTime();
+            pool.start();
+            System.out.println("✓ Pool warmed with " + pool.getIdleCount() + " idle connections in "
+                    + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - warmStart) + " ms");
+            
+            for (int i = 1; i <= 3; i++) {
+                long borrowStart = System.nanoTime();
+                try (Connection connection = pool.borrow()) {
+                    long borrowMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - borrowStart);
+                    DatabaseMetaData metaData = connection.getMetaData();
+                    System.out.println("✓ Borrow " + i + " took " + borrowMillis + " ms (" + metaData.getDatabaseProductName() + ")");
                 }
-                return null;
             }
+            System.out.println("Pool state: total=" + pool.getTotalCount() + ", idle=" + pool.getIdleCount() + ", active=" + pool.getActiveCount());
             
         } catch (Exception e) {
-            System.out.println("✗ STS token exchange error: " + e.getMessage());
+            System.out.println("✗ Connection pool test failed: " + e.getMessage());
+            EventLog.dumpOnFailure("connection pool test failed: " + e);
             e.printStackTrace();
-            return null;
+        } finally {
+            if (pool != null) {
+                pool.close();
+                System.out.println("✓ Connection pool closed");
+            }
+            if (tokenProvider != null) {
+                tokenProvider.shutdown();
+            }
         }
     }
     
     /**
-     * Impersonate service account using the federated token
+     * Connection factory for the pool: one BigQueryDataSource over the shared driver instance,
+     * connecting with the same Bearer token properties as Approach 1
+     */
+    private static ConnectionPool.ConnectionFactory createBearerTokenConnectionFactory(URLClassLoader driverClassLoader) throws Exception {
+        Properties props = new Properties();
+        props.setProperty("AuthenticationType", "1"); // Service Account (REQUIRED)
+        props.setProperty("OAuthType", "1"); // Bearer Token (REQUIRED)
+        BigQueryDataSource dataSource = new BigQueryDataSource(bigQueryDriver(driverClassLoader), DB_URL, props);
+        System.out.println("✓ BigQuery driver loaded for pooled connections");
+        
+        return dataSource::getConnectionWithAccessToken;
+    }
+    
+    /**
+     * Load / soak test: chk.loadThreads virtual threads each run auth -> connect -> query -> close
+     * until chk.loadDurationSeconds elapse or chk.loadIterations cycles are done, paced to
+     * chk.loadRate cycles per second overall (0 = as fast as possible). -Dchk.loadColdTokens=true
+     * gives every cycle its own token provider, like a fleet of pods starting at once.
      */
-    private static String impersonateServiceAccount(String federatedToken) {
+    public static void runLoadTest() {
+        int threads = Integer.getInteger("chk.loadThreads", LOAD_DEFAULT_THREADS);
+        Duration duration = Duration.ofSeconds(Long.getLong("chk.loadDurationSeconds", LOAD_DEFAULT_DURATION.getSeconds()));
+        long iterations = Long.getLong("chk.loadIterations", 0L);
+        double rate = Double.parseDouble(System.getProperty("chk.loadRate", "0"));
+        String query = System.getProperty("chk.loadQuery", LOAD_DEFAULT_QUERY);
+        boolean coldTokens = Boolean.getBoolean("chk.loadColdTokens");
+        
+        PrintStream console = System.out;
+        TokenProvider sharedProvider = null;
+        ExecutorService workers = null;
+        ScheduledExecutorService progress = null;
+        LoadRecorder recorder = new LoadRecorder();
+        
         try {
-            System.out.println("Impersonating service account...");
-            
-            // Service account to impersonate
-            String serviceAccountEmail = "aks-denodo-updater-sa@tnn-sb-to970548-1.iam.gserviceaccount.com";
-            String scope = "https://www.googleapis.com/auth/bigquery https://www.googleapis.com/auth/cloud-platform";
-            
-            // Build the impersonation request
-            String requestBody = "{" +
-                    "\"scope\":[\"https://www.googleapis.com/auth/bigquery\",\"https://www.googleapis.com/auth/cloud-platform\"]," +
-                    "\"delegates\":[]," +
-                    "\"includeEmail\":true" +
-                    "}";
-            
-            // Make service account impersonation request
-            String impersonateUrl = "https://iamcredentials.googleapis.com/v1/projects/-/serviceAccounts/" + 
-                    serviceAccountEmail + ":generateAccessToken";
-            java.net.URL url = new java.net.URL(impersonateUrl);
-            java.net.HttpURLConnection connection = (java.net.HttpURLConnection) url.openConnection();
-            connection.setRequestMethod("POST");
-            connection.setRequestProperty("Content-Type", "application/json");
-            connection.setRequestProperty("Authorization", "Bearer " + federatedToken);
-            connection.setDoOutput(true);
-            
-            try (java.io.OutputStream os = connection.getOutputStream()) {
-                os.write(requestBody.getBytes("UTF-8"));
-            }
-            
-            int responseCode = connection.getResponseCode();
-            System.out.println("  Impersonation response code: " + responseCode);
-            
-            if (responseCode == 200) {
-                try (java.io.BufferedReader reader = new java.io.BufferedReader(new java.io.InputStreamReader(connection.getInputStream()))) {
-                    StringBuilder response = new StringBuilder();
-                    String line;
-                    while ((line = reader.readLine()) != null) {
-                        response.append(line);
-                    }
-                    String responseStr = response.toString();
-                    System.out.println("  Impersonation response: " + responseStr.substring(0, Math.min(200, responseStr.length())) + "...");
-                    
-                    // Parse the access token
-                    if (responseStr.contains("accessToken")) {
-                        int startIdx = responseStr.indexOf("\"accessToken\"");
-                        if (startIdx > -1) {
-                            int valueStart = responseStr.indexOf("\"", responseStr.indexOf(":", startIdx)) + 1;
-                            int valueEnd = responseStr.indexOf("\"", valueStart);
-                            
-                            if (valueStart > 0 && valueEnd > valueStart) {
-                                String impersonatedToken = responseStr.substring(valueStart, valueEnd);
-                                System.out.println("✓ Successfully impersonated service account");
-                                System.out.println("  Impersonated token length: " + impersonatedToken.length());
-                                System.out.println("  Impersonated token preview: " + impersonatedToken.substring(0, Math.min(50, impersonatedToken.length())) + "...");
-                                return impersonatedToken;
+            console.println("Load test: " + threads + " threads, "
+                    + (iterations > 0 ? iterations + " iterations" : duration.getSeconds() + " s")
+                    + ", target rate " + (rate > 0 ? rate + "/s" : "unlimited") + ", query: " + query);
+            console.println("-".repeat(50));
+            
+            URLClassLoader driverClassLoader = loadBigQueryDrivers();
+            if (driverClassLoader == null) {
+                throw new Exception("Failed to load BigQuery drivers");
+            }
+            validateCredentialFiles();
+            Callable<AccessToken> tokenSource = () -> exchangeTokenWithSTS(projectedToken().current());
+            boolean hasToken = readServiceAccountToken() != null;
+            sharedProvider = new TokenProvider(tokenSource, TOKEN_REFRESH_SKEW);
+            projectedToken().refreshOnRotation(sharedProvider);
+            List<AuthStrategy> strategies = selectStrategies(new AuthContext(driverClassLoader, sharedProvider, hasToken));
+            if (strategies.isEmpty()) {
+                throw new Exception("No applicable authentication strategies");
+            }
+            console.println("Strategies: " + strategies.stream().map(AuthStrategy::name).collect(Collectors.joining(", ")));
+            
+            LoadRecorder.MemorySnapshot before = LoadRecorder.MemorySnapshot.capture();
+            
+            // Per-cycle output from the auth path would swamp the console and the measurements;
+            // it still goes to the event log, so a failure dump shows what led up to it
+            System.setOut(EventLog.silentStream());
+            
+            long startNanos = System.nanoTime();
+            long deadlineNanos = iterations > 0 ? Long.MAX_VALUE : startNanos + duration.toNanos();
+            AtomicLong remaining = new AtomicLong(iterations > 0 ? iterations : Long.MAX_VALUE);
+            LoadRecorder.RatePacer pacer = new LoadRecorder.RatePacer(rate, startNanos);
+            long reportMillis = Long.getLong("chk.loadReportSeconds", 10L) * 1000;
+            progress = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "load-progress");
+                t.setDaemon(true);
+                return t;
+            });
+            progress.scheduleAtFixedRate(() -> console.println(recorder.progressLine(System.nanoTime() - startNanos)),
+                    reportMillis, reportMillis, TimeUnit.MILLISECONDS);
+            
+            TokenProvider provider = sharedProvider;
+            URLClassLoader loader = driverClassLoader;
+            workers = newVirtualThreadExecutor("load-worker", threads);
+            List<Future<?>> running = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                running.add(workers.submit(() -> {
+                    LoadRecorder.Samples samples = recorder.newSamples();
+                    while (remaining.getAndDecrement() > 0 && pacer.awaitSlot(deadlineNanos)) {
+                        TokenProvider cycleProvider = coldTokens ? new TokenProvider(tokenSource, TOKEN_REFRESH_SKEW) : provider;
+                        try {
+                            runLoadCycle(strategies, new AuthContext(loader, cycleProvider, hasToken), query, recorder, samples);
+                        } finally {
+                            if (coldTokens) {
+                                cycleProvider.shutdown();
                             }
                         }
                     }
-                    System.out.println("✗ Failed to parse impersonation response");
-                }
-            } else {
-                try (java.io.BufferedReader reader = new java.io.BufferedReader(new java.io.InputStreamReader(connection.getErrorStream()))) {
-                    StringBuilder error = new StringBuilder();
-                    String line;
-                    while ((line = reader.readLine()) != null) {
-                        error.append(line);
-                    }
-                    System.out.println("  Impersonation error: " + error.toString());
-                }
+                    return null;
+                }));
+            }
+            for (Future<?> future : running) {
+                future.get();
             }
+            long elapsedNanos = System.nanoTime() - startNanos;
+            
+            progress.shutdownNow();
+            System.setOut(console);
+            LoadRecorder.MemorySnapshot after = LoadRecorder.MemorySnapshot.capture();
+            console.println("-".repeat(50));
+            console.println(recorder.report(elapsedNanos, before, after));
+            
         } catch (Exception e) {
-            System.out.println("  Service account impersonation failed: " + e.getMessage());
+            System.setOut(console);
+            console.println("✗ Load test failed: " + e.getMessage());
+            EventLog.dumpOnFailure("load test failed: " + e);
+            e.printStackTrace();
+        } finally {
+            System.setOut(console);
+            if (progress != null) {
+                progress.shutdownNow();
+            }
+            if (workers != null) {
+                workers.shutdownNow();
+            }
+            if (sharedProvider != null) {
+                sharedProvider.shutdown();
+            }
+        }
+    }
+    
+    /**
+     * One auth -> connect -> query -> close cycle; strategies are tried in order as in check mode
+     */
+    private static void runLoadCycle(List<AuthStrategy> strategies, AuthContext context, String query,
+                                     LoadRecorder recorder, LoadRecorder.Samples samples) {
+        long start = System.nanoTime();
+        AuthOutcome winner = null;
+        for (AuthStrategy strategy : strategies) {
+            AuthOutcome outcome = runStrategy(strategy, context);
+            if (outcome.succeeded()) {
+                winner = outcome;
+                break;
+            }
+            recorder.recordError(strategy.name(), outcome.describe());
+        }
+        if (winner == null) {
+            recorder.recordFailure();
+            EventLog.dumpOnRepeatedFailure("load cycle: all authentication approaches failed");
+            return;
+        }
+        try (Connection connection = winner.connection;
+             Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery(query)) {
+            while (resultSet.next()) {
+                resultSet.getObject(1);
+            }
+        } catch (SQLException e) {
+            recorder.recordError(winner.strategy.name() + " (query)", "failed: " + e.getMessage());
+            recorder.recordFailure();
+            EventLog.dumpOnRepeatedFailure("load cycle: query failed: " + e.getMessage());
+            return;
+        }
+        recorder.recordSuccess(winner.strategy.name(), samples, System.nanoTime() - start);
+    }
+    
+    // Add all the helper methods from the original file here...
+    // (I'll continue with the key methods needed)
+    
+    private static String stsTokenUrl() {
+        String override = System.getProperty("chk.stsUrl");
+        return override != null ? override : wifConfig().tokenUrl;
+    }
+    
+    private static String iamCredentialsUrl() {
+        String override = System.getProperty("chk.iamCredentialsUrl");
+        return override != null ? override : wifConfig().iamCredentialsUrl;
+    }
+    
+    private static String resourceManagerUrl() {
+        return System.getProperty("chk.resourceManagerUrl", RESOURCE_MANAGER_URL);
+    }
+    
+    private static String bigQueryApiUrl() {
+        return System.getProperty("chk.bigQueryApiUrl", BIGQUERY_API_URL);
+    }
+    
+    /**
+     * Value of a Key=Value property in a Simba JDBC URL, or null
+     */
+    static String jdbcUrlProperty(String url, String key) {
+        for (String part : url.split(";")) {
+            int eq = part.indexOf('=');
+            if (eq > 0 && part.substring(0, eq).trim().equalsIgnoreCase(key)) {
+                return part.substring(eq + 1).trim();
+            }
         }
         return null;
     }
     
+    private static String driverClassName() {
+        return System.getProperty("chk.driverClass", BIGQUERY_DRIVER_CLASS);
+    }
+    
+    /**
+     * One driver instance per driver class loader, shared by every strategy and data source
+     */
+    static Driver bigQueryDriver(ClassLoader driverClassLoader) throws SQLException {
+        return bigQueryDriver(driverClassLoader, driverClassName());
+    }
+    
+    static Driver bigQueryDriver(ClassLoader driverClassLoader, String className) throws SQLException {
+        Map.Entry<ClassLoader, String> key = new AbstractMap.SimpleImmutableEntry<>(driverClassLoader, className);
+        Driver driver = DRIVER_INSTANCES.get(key);
+        if (driver != null) {
+            return driver;
+        }
+        try {
+            Class<?> driverClass = Class.forName(className, true, driverClassLoader);
+            Driver created = (Driver) driverClass.getDeclaredConstructor().newInstance();
+            Driver existing = DRIVER_INSTANCES.putIfAbsent(key, created);
+            return existing != null ? existing : created;
+        } catch (ReflectiveOperationException | LinkageError e) {
+            throw new SQLException("Failed to load BigQuery driver " + className + ": " + e, "08001", e);
+        }
+    }
+    
+    /**
+     * Load BigQuery JDBC drivers from the specified path
+     */
+    private static URLClassLoader loadBigQueryDrivers() {
+        return loadBigQueryDrivers(driverPath());
+    }
+    
+    private static String driverPath() {
+        return System.getProperty("chk.driverPath", BIGQUERY_DRIVER_PATH);
+    }
+    
+    /**
+     * Shared, indexed class loader for driverPath: the current generation of its DriverRuntime
+     */
+    private static URLClassLoader loadBigQueryDrivers(String driverPath) {
+        DriverRuntime runtime = driverRuntime(driverPath);
+        return runtime != null ? runtime.classLoader() : null;
+    }
+    
+    /**
+     * Managed runtime for driverPath; created on first use and closed by a shutdown hook
+     */
+    static DriverRuntime driverRuntime(String driverPath) {
+        String key = new File(driverPath).getAbsolutePath();
+        DriverRuntime cached = DRIVER_RUNTIMES.get(key);
+        if (cached != null) {
+            return cached;
+        }
+        synchronized (DRIVER_RUNTIMES) {
+            cached = DRIVER_RUNTIMES.get(key);
+            if (cached != null) {
+                return cached;
+            }
+            IndexedDriverClassLoader classLoader = createDriverClassLoader(driverPath);
+            if (classLoader == null) {
+                return null;
+            }
+            if (DRIVER_RUNTIMES.isEmpty()) {
+                Runtime.getRuntime().addShutdownHook(new Thread(chk_jdbc_fixed::closeDriverRuntimes, "driver-runtime-shutdown"));
+            }
+            DriverRuntime runtime = new DriverRuntime(driverPath, classLoader);
+            DRIVER_RUNTIMES.put(key, runtime);
+            long reloadSeconds = Long.getLong("chk.driverReloadSeconds", 0L);
+            if (reloadSeconds > 0) {
+                runtime.startReloadPolling(Duration.ofSeconds(reloadSeconds));
+            }
+            return runtime;
+        }
+    }
+    
+    private static void closeDriverRuntimes() {
+        synchronized (DRIVER_RUNTIMES) {
+            for (DriverRuntime runtime : DRIVER_RUNTIMES.values()) {
+                runtime.close();
+            }
+            DRIVER_RUNTIMES.clear();
+        }
+    }
+    
+    /**
+     * Build a new indexed class loader over the jars in driverPath (not cached)
+     */
+    static IndexedDriverClassLoader createDriverClassLoader(String driverPath) {
+        long start = System.nanoTime();
+        ConnectEvents.DriverLoad event = new ConnectEvents.DriverLoad();
+        event.begin();
+        event.driverPath = driverPath;
+        try {
+            File driverDir = new File(driverPath);
+            if (!driverDir.exists() || !driverDir.isDirectory()) {
+                System.out.println("✗ BigQuery driver directory not found: " + driverPath);
+                return null;
+            }
+            
+            File[] jarFiles = driverDir.listFiles((dir, name) -> name.toLowerCase().endsWith(".jar"));
+            if (jarFiles == null || jarFiles.length == 0) {
+                System.out.println("✗ No JAR files found in BigQuery driver directory");
+                return null;
+            }
+            // Stable order so the on-disk index lines up with the jar list
+            Arrays.sort(jarFiles);
+            
+            DriverJarIndex index = DriverJarIndex.loadOrBuild(jarFiles, driverIndexFile(driverDir));
+            IndexedDriverClassLoader classLoader = new IndexedDriverClassLoader(jarFiles, index, ClassLoader.getSystemClassLoader());
+            event.jarCount = jarFiles.length;
+            event.packageCount = index.packageCount();
+            event.success = true;
+            System.out.println("✓ BigQuery drivers loaded from: " + driverPath + " (" + jarFiles.length + " jars, "
+                    + index.packageCount() + " indexed packages)");
+            return classLoader;
+            
+        } catch (Exception e) {
+            System.out.println("✗ Failed to load BigQuery drivers: " + e.getMessage());
+            return null;
+        } finally {
+            Metrics.record(Metrics.Phase.LOAD_DRIVERS, start);
+            event.commit();
+        }
+    }
+    
+    /**
+     * Index file for a driver directory; kept in the work directory since the driver directory may be read-only
+     */
+    private static File driverIndexFile(File driverDir) {
+        String dirName = System.getProperty("chk.driverIndexDir", DRIVER_INDEX_DIR);
+        return new File(dirName, "driver-index-" + Integer.toHexString(driverDir.getAbsolutePath().hashCode()) + ".idx");
+    }
+    
+    /**
+     * Load the hot driver classes on a background thread so the first connect finds them ready.
+     * Extra classes can be listed with -Dchk.preloadClasses=a.B,c.D
+     */
+    static void preloadDriverClasses(ClassLoader classLoader) {
+        List<String> classNames = new ArrayList<>();
+        classNames.add(driverClassName());
+        String extra = System.getProperty("chk.preloadClasses");
+        if (extra != null && !extra.trim().isEmpty()) {
+            classNames.addAll(Arrays.asList(extra.trim().split("\\s*,\\s*")));
+        }
+        Thread preloader = new Thread(() -> {
+            long start = System.nanoTime();
+            int loaded = 0;
+            for (String className : classNames) {
+                try {
+                    Class.forName(className, false, classLoader);
+                    loaded++;
+                } catch (ClassNotFoundException | LinkageError e) {
+                    System.out.println("⚠ Could not preload " + className + ": " + e);
+                }
+            }
+            System.out.println("✓ Preloaded " + loaded + " driver classes in "
+                    + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+        }, "driver-class-preload");
+        preloader.setDaemon(true);
+        preloader.start();
+    }
+    
+    /**
+     * Test Google credentials loading (if available)
+     */
+    private static void testGoogleCredentials() {
+        try {
+            System.out.println("Testing Google Credentials directly...");
+            
+            // Try to use reflection to load Google credentials without requiring the dependency at compile time
+            Class<?> googleCredentialsClass = Class.forName("com.google.auth.oauth2.GoogleCredentials");
+            Method fromStreamMethod = googleCredentialsClass.getMethod("fromStream", InputStream.class);
+            Method createScopedMethod = googleCredentialsClass.getMethod("createScoped", Collection.class);
+            Method refreshMethod = googleCredentialsClass.getMethod("refreshAccessToken");
+            
+            // From the parsed snapshot's bytes rather than another read of the file
+            WifConfig config = wifConfig();
+            if (config.content == null) {
+                System.out.println("× No WIF credential file to load");
+                return;
+            }
+            Object credentials = fromStreamMethod.invoke(null, new ByteArrayInputStream(config.content));
+            credentials = createScopedMethod.invoke(credentials, Arrays.asList("https://www.googleapis.com/auth/cloud-platform"));
+            
+            System.out.println("✓ Google credentials loaded successfully");
+            System.out.println("  Credential type: " + credentials.getClass().getSimpleName());
+            
+            // Try to get an access token
+            Object accessToken = refreshMethod.invoke(credentials);
+            System.out.println("✓ Access token obtained successfully");
+            
+        } catch (ClassNotFoundException e) {
+            System.out.println("× Google Auth library not found in classpath");
+            System.out.println("  This is expected - continuing with JDBC driver's internal auth");
+        } catch (Exception e) {
+            System.out.println("× Failed to load Google credentials: " + e.getMessage());
+            if (e.getCause() != null) {
+                System.out.println("  Root cause: " + e.getCause().getMessage());
+            }
+        }
+    }
+    
+    /**
+     * Validate that required credential files exist and are readable
+     */
+    private static void validateCredentialFiles() throws Exception {
+        ConnectEvents.CredentialValidation event = new ConnectEvents.CredentialValidation();
+        event.begin();
+        event.credentialFile = credentialFile();
+        try {
+            // Check WIF credential file
+            File credFile = new File(credentialFile());
+            if (!credFile.exists()) {
+                throw new Exception("WIF credential file not found: " + credentialFile());
+            }
+            if (!credFile.canRead()) {
+                throw new Exception("WIF credential file not readable: " + credentialFile());
+            }
+            System.out.println("✓ WIF credential file found: " + credentialFile());
+        
+            // Check service account token file
+            System.out.println("  WIF settings: " + wifConfig().describe());
+            File tokenFile = new File(serviceAccountTokenFile());
+            event.tokenFilePresent = tokenFile.exists();
+            if (!tokenFile.exists()) {
+                System.out.println("⚠ Warning: Service account token file not found: " + serviceAccountTokenFile());
+                System.out.println("  This may be normal if running outside Kubernetes");
+            } else {
+                System.out.println("✓ Service account token file found: " + serviceAccountTokenFile());
+            }
+            event.success = true;
+        } finally {
+            event.commit();
+        }
+    }
+    
+    /**
+     * driver.connect with the driver's class loader as context class loader; never returns null
+     */
+    static Connection connectInDriverLoader(Driver driver, String url, Properties props) throws SQLException {
+        Connection connection;
+        Thread thread = Thread.currentThread();
+        ClassLoader previous = thread.getContextClassLoader();
+        thread.setContextClassLoader(driver.getClass().getClassLoader());
+        try {
+            connection = driver.connect(url, props);
+        } finally {
+            thread.setContextClassLoader(previous);
+        }
+        if (connection == null) {
+            throw new SQLException("Driver " + driver.getClass().getName() + " does not accept URL " + url.split(";", 2)[0], "08001");
+        }
+        return connection;
+    }
+    
+    /**
+     * driver.connect under the driver's class loader, timed as the driver_connect phase.
+     * The driver log level is chosen here (see DriverLogging) unless props sets LogLevel.
+     */
+    private static Connection openDriverConnection(Driver driver, String url, Properties props) throws SQLException {
+        long start = System.nanoTime();
+        ConnectEvents.DriverConnect event = new ConnectEvents.DriverConnect();
+        event.begin();
+        event.strategy = ConnectEvents.CURRENT_STRATEGY.get();
+        event.authenticationType = props.getProperty("AuthenticationType");
+        try {
+            Properties attemptProps = DriverLogging.forAttempt(props);
+            Connection connection = connectInDriverLoader(driver, url, attemptProps);
+            event.success = true;
+            return MetadataCache.wrap(connection, driver, url, attemptProps);
+        } catch (SQLException | RuntimeException e) {
+            DriverLogging.connectFailed(e);
+            throw e;
+        } finally {
+            Metrics.record(Metrics.Phase.DRIVER_CONNECT, start);
+            event.commit();
+        }
+    }
+    
+    /**
+     * Connection.isValid, timed as the validation phase
+     */
+    static boolean isValid(Connection connection, int timeoutSeconds) throws SQLException {
+        long start = System.nanoTime();
+        ConnectEvents.Validation event = new ConnectEvents.Validation();
+        event.begin();
+        event.strategy = ConnectEvents.CURRENT_STRATEGY.get();
+        event.timeoutSeconds = timeoutSeconds;
+        try {
+            event.valid = connection.isValid(timeoutSeconds);
+            return event.valid;
+        } finally {
+            Metrics.record(Metrics.Phase.VALIDATION, start);
+            event.commit();
+        }
+    }
+    
+    /**
+     * Test a successful connection and display information
+     */
+    private static void testConnectionSuccess(Connection connection) {
+        try {
+            if (connection != null && isValid(connection, 5)) {
+                System.out.println("✓ BigQuery connection successful!");
+                DatabaseMetaData metaData = connection.getMetaData();
+                System.out.println("Driver Name: " + metaData.getDriverName());
+                System.out.println("Driver Version: " + metaData.getDriverVersion());
+                System.out.println("Database Product: " + metaData.getDatabaseProductName());
+            }
+        } catch (SQLException e) {
+            System.out.println("✗ Error testing connection: " + e.getMessage());
+        } finally {
+            try {
+                if (connection != null) {
+                    connection.close();
+                    System.out.println("✓ Connection closed successfully");
+                }
+            } catch (SQLException e) {
+                System.out.println("✗ Error closing connection: " + e.getMessage());
+            }
+        }
+    }
+    
+    /**
+     * Read the Kubernetes service account token (in-memory copy, see ProjectedTokenSource)
+     */
+    private static String readServiceAccountToken() {
+        String token = projectedToken().current();
+        if (token == null) {
+            System.out.println("⚠ Service account token file not found: " + serviceAccountTokenFile());
+            return null;
+        }
+        System.out.println("✓ Read service account token (" + token.length() + " characters)");
+        System.out.println("  Token preview: " + token.substring(0, Math.min(50, token.length())) + "...");
+        return token;
+    }
+    
+    /**
+     * Watched, in-memory copy of the projected token file, started on first use
+     */
+    private static ProjectedTokenSource projectedToken() {
+        ProjectedTokenSource source = projectedToken;
+        if (source == null) {
+            synchronized (chk_jdbc_fixed.class) {
+                source = projectedToken;
+                if (source == null) {
+                    source = new ProjectedTokenSource(Paths.get(serviceAccountTokenFile()));
+                    projectedToken = source;
+                }
+            }
+        }
+        return source;
+    }
+    
+    /**
+     * Token provider fed by the projected Kubernetes token; refreshes early when kubelet rotates it
+     */
+    private static TokenProvider newServiceAccountTokenProvider() {
+        Path brokerSocket = tokenBrokerSocket();
+        if (Files.exists(brokerSocket)) {
+            // A broker on this node already holds the token; ask it, and only go to STS ourselves when it's down
+            System.out.println("Using token broker at " + brokerSocket);
+            TokenBrokerClient client = new TokenBrokerClient(brokerSocket);
+            TokenProvider provider = new TokenProvider(() -> {
+                try {
+                    return client.fetch();
+                } catch (IOException e) {
+                    System.out.println("⚠ Token broker unavailable (" + e.getMessage() + "), exchanging directly");
+                    return exchangeTokenWithSTS(projectedToken().current());
+                }
+            }, TOKEN_BROKER_CLIENT_SKEW);
+            MetadataCache.refreshWith(provider);
+            return provider;
+        }
+        TokenProvider provider = new TokenProvider(() -> exchangeTokenWithSTS(projectedToken().current()), TOKEN_REFRESH_SKEW);
+        projectedToken().refreshOnRotation(provider);
+        MetadataCache.refreshWith(provider);
+        return provider;
+    }
+    
+    private static Path tokenBrokerSocket() {
+        return Paths.get(System.getProperty("chk.brokerSocket", TOKEN_BROKER_SOCKET));
+    }
+    
+    private static String serviceAccountTokenFile() {
+        return System.getProperty("chk.tokenFile", wifConfig().tokenFile);
+    }
+    
+    private static String credentialFile() {
+        return System.getProperty("chk.credentialFile", CREDENTIAL_FILE_PATH);
+    }
+    
+    /**
+     * Current WIF credential snapshot: at most one stat a second, a re-parse only when the file changed
+     */
+    static WifConfig wifConfig() {
+        WifConfig current = wifConfig;
+        long now = System.nanoTime();
+        if (current != null && now - wifConfigCheckedNanos < TimeUnit.SECONDS.toNanos(1)
+                && current.file.toString().equals(credentialFile())) {
+            return current;
+        }
+        wifConfigCheckedNanos = now;
+        Path file = Paths.get(credentialFile());
+        FileTime lastModified;
+        try {
+            lastModified = Files.getLastModifiedTime(file);
+        } catch (IOException e) {
+            lastModified = null;
+        }
+        WifConfig config = wifConfig;
+        if (config != null && config.file.equals(file) && Objects.equals(config.lastModified, lastModified)) {
+            return config;
+        }
+        synchronized (WifConfig.class) {
+            config = wifConfig;
+            if (config == null || !config.file.equals(file) || !Objects.equals(config.lastModified, lastModified)) {
+                config = WifConfig.load(file, lastModified, config);
+                wifConfig = config;
+            }
+            return config;
+        }
+    }
+    
+    /**
+     * Try direct token authentication using manually exchanged STS token
+     */
+    private static Connection tryDirectTokenAuth(TokenProvider tokenProvider, URLClassLoader driverClassLoader) {
+        try {
+            System.out.println("Trying STS token exchange for WIF...");
+            
+            // Step 1: Get the Google Cloud access token (cached STS exchange + impersonation)
+            String googleAccessToken = tokenProvider.getAccessTokenOrNull();
+            if (googleAccessToken == null) {
+                System.out.println("✗ STS token exchange failed");
+                return null;
+            }
+            
+            // Step 2: Use the Google access token with JDBC driver
+            System.out.println("Using exchanged Google access token with JDBC driver...");
+            Properties props = new Properties();
+            props.setProperty("AuthenticationType", "1"); // Service Account (REQUIRED)
+            props.setProperty("OAuthType", "1"); // Bearer Token (REQUIRED)
+            props.setProperty("OAuthAccessToken", googleAccessToken); // Google access token
+            
+            System.out.println("  AuthenticationType: 1 (Service Account - REQUIRED)");
+            System.out.println("  OAuthType: 1 (Bearer Token - REQUIRED)");
+            System.out.println("  OAuthAccessToken: [GOOGLE_ACCESS_TOKEN_PROVIDED]");
+            
+            // Connect through the shared driver instance; nothing is registered with DriverManager
+            return new BigQueryDataSource(bigQueryDriver(driverClassLoader), DB_URL, props).getConnection();
+            
+        } catch (SQLException e) {
+            System.out.println("✗ Direct token auth failed: " + e.getMessage());
+            return null;
+        } catch (Exception e) {
+            System.out.println("✗ Unexpected error in direct token auth: " + e.getMessage());
+            return null;
+        }
+    }
+    
+    /**
+     * Try using access token embedded in JDBC URL
+     */
+    private static Connection tryUrlTokenAuth(TokenProvider tokenProvider, URLClassLoader driverClassLoader) {
+        try {
+            System.out.println("Trying STS token exchange for URL embedding...");
+            
+            // Step 1: Get the Google Cloud access token (cached STS exchange + impersonation)
+            String googleAccessToken = tokenProvider.getAccessTokenOrNull();
+            if (googleAccessToken == null) {
+                System.out.println("✗ STS token exchange failed");
+                return null;
+            }
+            
+            // Step 2: Embed token in JDBC URL
+            String urlWithToken = DB_URL + ";AuthenticationType=1;OAuthType=1;OAuthAccessToken=" + googleAccessToken;
+            
+            System.out.println("Using JDBC URL with embedded access token...");
+            System.out.println("  URL: " + DB_URL + ";AuthenticationType=1;OAuthType=1;OAuthAccessToken=[TOKEN]");
+            
+            Properties props = new Properties();
+            
+            // Create connection
+            return new BigQueryDataSource(bigQueryDriver(driverClassLoader), urlWithToken, props).getConnection();
+            
+        } catch (SQLException e) {
+            System.out.println("✗ URL token auth failed: " + e.getMessage());
+            return null;
+        } catch (Exception e) {
+            System.out.println("✗ Unexpected error in URL token auth: " + e.getMessage());
+            return null;
+        }
+    }
+    
+    /**
+     * Approach 2: UserAccount + OAuthType=2 with the STS-exchanged token
+     */
+    private static Connection tryUserAccountWifAuth(TokenProvider tokenProvider, URLClassLoader driverClassLoader) {
+        // Get Google access token via STS (served from the token cache when still fresh)
+        String googleAccessToken = tokenProvider.getAccessTokenOrNull();
+        if (googleAccessToken == null) {
+            System.out.println("✗ Could not get STS token for UserAccount approach");
+            return null;
+        }
+        
+        Properties props = new Properties();
+        
+        // Use UserAccount authentication with WIF OAuth type and STS token
+        props.setProperty("AuthenticationType", "2"); // UserAccount (REQUIRED for WIF!)
+        props.setProperty("OAuthType", "2"); // WIF/Workload Identity Federation (REQUIRED)
+        props.setProperty("OAuthAccessToken", googleAccessToken); // STS exchanged token
+        props.setProperty("OAuthRefreshToken", googleAccessToken); // Same token as refresh (may help)
+        
+        System.out.println("Connection properties (UserAccount=2 + OAuthType=2 + STS token):");
+        System.out.println("  AuthenticationType: " + props.getProperty("AuthenticationType") + " (UserAccount - REQUIRED for WIF!)");
+        System.out.println("  OAuthType: " + props.getProperty("OAuthType") + " (WIF/Workload Identity Federation - REQUIRED)");
+        System.out.println("  OAuthAccessToken: [STS_EXCHANGED_TOKEN_PROVIDED]");
+        System.out.println("  OAuthRefreshToken: [STS_EXCHANGED_TOKEN_PROVIDED]");
+        System.out.println("  Note: Using STS-exchanged token with UserAccount + WIF combination");
+        
+        // Try to load BigQuery driver
+        try {
+            System.out.println("Loading BigQuery JDBC driver...");
+            BigQueryDataSource dataSource = new BigQueryDataSource(bigQueryDriver(driverClassLoader), DB_URL, props);
+            System.out.println("✓ Successfully loaded BigQuery driver");
+            
+            // Create the connection through the driver instance from our custom class loader
+            Connection connection = dataSource.getConnection();
+            if (connection != null) {
+                System.out.println("✓ BigQuery connection successful with UserAccount + WIF + STS token!");
+            }
+            return connection;
+            
+        } catch (Exception e) {
+            System.out.println("✗ UserAccount + WIF approach failed: " + e.getMessage());
+            return null;
+        }
+    }
+    
+    /**
+     * ADC with External Account (Method 1 in chk_jdbc)
+     */
+    private static Connection tryADCAuth(URLClassLoader driverClassLoader) throws Exception {
+        System.setProperty("GOOGLE_APPLICATION_CREDENTIALS", credentialFile());
+        
+        Properties props = new Properties();
+        props.setProperty("AuthenticationType", "0"); // ADC
+        props.setProperty("OAuthType", "3"); // External Account
+        
+        return new BigQueryDataSource(bigQueryDriver(driverClassLoader), DB_URL, props).getConnection();
+    }
+    
+    /**
+     * Service Account Key (Method 2 in chk_jdbc)
+     */
+    private static Connection tryServiceAccountAuth(URLClassLoader driverClassLoader) throws Exception {
+        Properties props = new Properties();
+        props.setProperty("AuthenticationType", "1"); // Service Account
+        props.setProperty("KeyFile", credentialFile());
+        
+        return new BigQueryDataSource(bigQueryDriver(driverClassLoader), DB_URL, props).getConnection();
+    }
+    
+    /**
+     * Approach 3: native WIF with CredentialsPath (no manual token exchange)
+     */
+    private static Connection tryNativeWifAuth(URLClassLoader driverClassLoader) {
+        try {
+            Properties props = new Properties();
+            props.setProperty("AuthenticationType", "4"); // External Account for WIF
+            props.setProperty("CredentialsPath", credentialFile()); // WIF credential file
+            props.setProperty("OAuthType", "2"); // WIF OAuth type
+            
+            System.out.println("Connection properties (Native WIF with CredentialsPath):");
+            System.out.println("  AuthenticationType: 4 (External Account for WIF)");
+            System.out.println("  CredentialsPath: " + credentialFile());
+            System.out.println("  OAuthType: 2 (WIF/Workload Identity Federation)");
+            System.out.println("  Note: Let driver handle WIF token exchange internally");
+            
+            // Load through the driver class loader so this approach also works on its own (race mode)
+            System.out.println("Loading BigQuery JDBC driver...");
+            BigQueryDataSource dataSource = new BigQueryDataSource(bigQueryDriver(driverClassLoader), DB_URL, props);
+            System.out.println("✓ Successfully loaded BigQuery driver");
+            
+            Connection connection = dataSource.getConnection();
+            if (connection != null) {
+                System.out.println("✓ Native WIF approach SUCCESS!");
+            }
+            return connection;
+            
+        } catch (SQLException e) {
+            System.out.println("✗ Native WIF approach failed: " + e.getMessage());
+            return null;
+        }
+    }
+    
+    /**
+     * Exchange Kubernetes service account token for Google Cloud access token via STS
+     */
+    static AccessToken exchangeTokenWithSTS(String kubernetesToken) {
+        return exchangeTokenWithSTS(kubernetesToken, wifConfig().serviceAccount, DEFAULT_TOKEN_SCOPES);
+    }
+    
+    /**
+     * STS exchange, then impersonation of serviceAccountEmail with the given scopes
+     */
+    static AccessToken exchangeTokenWithSTS(String kubernetesToken, String serviceAccountEmail, List<String> scopes) {
+        if (kubernetesToken == null) {
+            System.out.println("✗ No Kubernetes token available for STS exchange");
+            return null;
+        }
+        try {
+            return exchangeTokenWithSTSAsync(kubernetesToken, serviceAccountEmail, scopes).join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause() != null ? e.getCause() : e;
+            System.out.println("✗ STS token exchange error: " + cause.getMessage());
+            return null;
+        }
+    }
+    
+    /**
+     * STS exchange followed by impersonation as one non-blocking pipeline on the shared HTTP client.
+     * Completes with null when either service rejects the request.
+     */
+    private static CompletableFuture<AccessToken> exchangeTokenWithSTSAsync(String kubernetesToken, String serviceAccountEmail,
+                                                                           List<String> scopes) {
+        String audience = wifConfig().audience;
+        return federatedTokenAsync(kubernetesToken, audience).thenCompose(federated -> {
+            if (federated == null) {
+                return CompletableFuture.completedFuture(null);
+            }
+            return federatedOrImpersonated(federated, audience, serviceAccountEmail, scopes);
+        });
+    }
+    
+    /**
+     * The federated token itself when it may stand in for serviceAccountEmail (the credential file's
+     * own account, DirectTokenMode allows it), otherwise an impersonated token
+     */
+    static CompletableFuture<AccessToken> federatedOrImpersonated(AccessToken federated, String audience,
+                                                                          String serviceAccountEmail, List<String> scopes) {
+        CompletableFuture<Boolean> direct = serviceAccountEmail.equals(wifConfig().serviceAccount)
+                ? DirectTokenMode.useFederatedToken(federated, audience) : CompletableFuture.completedFuture(false);
+        return direct.thenCompose(useFederated -> {
+            if (useFederated) {
+                return CompletableFuture.completedFuture(federated);
+            }
+            // Now use the federated token to impersonate the service account
+            System.out.println("✓ Got federated token, now impersonating service account...");
+            return impersonateServiceAccountAsync(federated.value, serviceAccountEmail, scopes);
+        });
+    }
+    
+    /**
+     * STS exchange alone: the federated token for one workload identity pool provider (audience),
+     * or null when STS rejects the subject token. One federated token can back any number of
+     * impersonations (see TokenCache).
+     */
+    static AccessToken federatedToken(String kubernetesToken, String audience) {
+        if (kubernetesToken == null) {
+            System.out.println("✗ No Kubernetes token available for STS exchange");
+            return null;
+        }
+        try {
+            return federatedTokenAsync(kubernetesToken, audience).join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause() != null ? e.getCause() : e;
+            System.out.println("✗ STS token exchange error: " + cause.getMessage());
+            return null;
+        }
+    }
+    
+    private static CompletableFuture<AccessToken> federatedTokenAsync(String kubernetesToken, String audience) {
+        System.out.println("Performing STS token exchange...");
+        
+        // STS endpoint and parameters from the WIF credential file; only the subject token varies per call
+        String stsUrl = stsTokenUrl();
+        Charset utf8 = StandardCharsets.UTF_8;
+        String requestBody = wifConfig().stsBody(audience, kubernetesToken);
+        
+        HttpRequest request = HttpRequest.newBuilder(URI.create(stsUrl))
+                .timeout(HTTP_REQUEST_TIMEOUT)
+                .header("Content-Type", "application/x-www-form-urlencoded")
+                .POST(HttpRequest.BodyPublishers.ofString(requestBody, utf8))
+                .build();
+        
+        long start = System.nanoTime();
+        ConnectEvents.StsExchange event = new ConnectEvents.StsExchange();
+        event.begin();
+        event.url = stsUrl;
+        return STS_ENDPOINT.send(request)
+                .whenComplete((response, error) -> {
+                    Metrics.record(Metrics.Phase.STS_EXCHANGE, start);
+                    event.end();
+                    if (response != null) {
+                        event.httpStatus = response.statusCode();
+                        event.bytesRead = response.body().length;
+                    }
+                })
+                .thenApply(response -> {
+                    int responseCode = response.statusCode();
+                    System.out.println("  STS response code: " + responseCode);
+                    if (responseCode != 200) {
+                        System.out.println("✗ STS token exchange failed: " + new String(response.body(), utf8));
+                        return null;
+                    }
+                    
+                    TokenResponse stsResponse;
+                    try {
+                        stsResponse = TokenResponseParser.parse(response.body());
+                    } catch (IOException e) {
+                        System.out.println("✗ Malformed STS response: " + e.getMessage());
+                        return null;
+                    }
+                    event.tokenTtlSeconds = stsResponse.expiresInSeconds;
+                    System.out.println("  STS response: token_type=" + stsResponse.tokenType + ", expires_in=" + stsResponse.expiresInSeconds);
+                    
+                    String federatedToken = stsResponse.accessToken;
+                    if (federatedToken == null) {
+                        System.out.println("✗ access_token field not found in STS response");
+                        return null;
+                    }
+                    System.out.println("  Federated token length: " + federatedToken.length());
+                    System.out.println("  Federated token preview: " + federatedToken.substring(0, Math.min(50, federatedToken.length())) + "...");
+                    return new AccessToken(federatedToken, stsResponse.expiry(Instant.now()));
+                })
+                .whenComplete((token, error) -> event.commit());
+    }
+    
+    /**
+     * Impersonate service account using the federated token
+     */
+    private static CompletableFuture<AccessToken> impersonateServiceAccountAsync(String federatedToken, String serviceAccountEmail,
+                                                                                List<String> scopes) {
+        System.out.println("Impersonating service account...");
+        
+        // Build the impersonation request
+        String requestBody = "{" +
+                "\"scope\":[" + scopes.stream().map(scope -> "\"" + scope.replace("\\", "\\\\").replace("\"", "\\\"") + "\"")
+                        .collect(Collectors.joining(",")) + "]," +
+                "\"delegates\":[]," +
+                "\"includeEmail\":true" +
+                "}";
+        
+        // Make service account impersonation request
+        String impersonateUrl = iamCredentialsUrl() + "/v1/projects/-/serviceAccounts/" + 
+                serviceAccountEmail + ":generateAccessToken";
+        HttpRequest request = HttpRequest.newBuilder(URI.create(impersonateUrl))
+                .timeout(HTTP_REQUEST_TIMEOUT)
+                .header("Content-Type", "application/json")
+                .header("Authorization", "Bearer " + federatedToken)
+                .POST(HttpRequest.BodyPublishers.ofString(requestBody, StandardCharsets.UTF_8))
+                .build();
+        
+        long start = System.nanoTime();
+        ConnectEvents.Impersonation event = new ConnectEvents.Impersonation();
+        event.begin();
+        event.serviceAccount = serviceAccountEmail;
+        return IAM_ENDPOINT.send(request)
+                .whenComplete((response, error) -> {
+                    Metrics.record(Metrics.Phase.IMPERSONATION, start);
+                    event.end();
+                    if (response != null) {
+                        event.httpStatus = response.statusCode();
+                        event.bytesRead = response.body().length;
+                    }
+                })
+                .thenApply(response -> {
+                    int responseCode = response.statusCode();
+                    System.out.println("  Impersonation response code: " + responseCode);
+                    if (responseCode != 200) {
+                        System.out.println("  Impersonation error: " + new String(response.body(), StandardCharsets.UTF_8));
+                        return null;
+                    }
+                    
+                    // Parse the access token and its expiry in one pass over the response bytes
+                    TokenResponse impersonation;
+                    try {
+                        impersonation = TokenResponseParser.parse(response.body());
+                    } catch (IOException e) {
+                        System.out.println("✗ Malformed impersonation response: " + e.getMessage());
+                        return null;
+                    }
+                    String impersonatedToken = impersonation.accessToken;
+                    if (impersonatedToken == null) {
+                        System.out.println("✗ Failed to parse impersonation response");
+                        return null;
+                    }
+                    System.out.println("✓ Successfully impersonated service account");
+                    System.out.println("  Impersonated token length: " + impersonatedToken.length());
+                    System.out.println("  Impersonated token preview: " + impersonatedToken.substring(0, Math.min(50, impersonatedToken.length())) + "...");
+                    
+                    // Keep the expiry so the token cache knows when to refresh
+                    Instant expireTime = impersonation.expiry(Instant.now());
+                    event.tokenTtlSeconds = Duration.between(Instant.now(), expireTime).getSeconds();
+                    System.out.println("  Impersonated token expires: " + expireTime);
+                    return new AccessToken(impersonatedToken, expireTime);
+                })
+                .whenComplete((token, error) -> event.commit());
+    }
+    
+    /**
+     * Immutable snapshot of the WIF credential file (type external_account): audience, STS and
+     * IAM Credentials URLs, impersonated service account and Kubernetes token file, plus the
+     * URL-encoded STS request body up to subject_token=. wifConfig() parses the file once and
+     * again only when its mtime changes; a missing field falls back to the built-in default. A
+     * file that can't be read or parsed keeps the last good snapshot, or the built-in defaults
+     * if there is none.
+     */
+    static final class WifConfig {
+        // Flat "key": "string" pairs; the few nested objects (credential_source) only carry strings we want too
+        private static final Pattern STRING_FIELD = Pattern.compile(
+                "\"([A-Za-z_]+)\"\\s*:\\s*\"((?:[^\"\\\\]|\\\\.)*)\"");
+        private static final Pattern IMPERSONATION_URL = Pattern.compile(
+                "(https?://[^/]+)/v1/projects/-/serviceAccounts/([^/:]+):generateAccessToken");
+        
+        final Path file;
+        final FileTime lastModified;
+        final byte[] content;
+        final String audience;
+        final String subjectTokenType;
+        final String tokenUrl;
+        final String iamCredentialsUrl;
+        final String serviceAccount;
+        final String tokenFile;
+        final String stsBodyPrefix;
+        
+        private WifConfig(Path file, FileTime lastModified, byte[] content) throws IOException {
+            this.file = file;
+            this.lastModified = lastModified;
+            this.content = content;
+            Map<String, String> fields = new HashMap<>();
+            if (content != null) {
+                Matcher m = STRING_FIELD.matcher(new String(content, StandardCharsets.UTF_8));
+                while (m.find()) {
+                    fields.putIfAbsent(m.group(1), unescape(m.group(2), file));
+                }
+                if (!"external_account".equals(fields.get("type"))) {
+                    System.out.println("⚠ " + file + " is not an external_account credential (type " + fields.get("type") + ")");
+                }
+            }
+            this.audience = fields.getOrDefault("audience", DEFAULT_WIF_AUDIENCE);
+            this.subjectTokenType = fields.getOrDefault("subject_token_type", "urn:ietf:params:oauth:token-type:jwt");
+            this.tokenUrl = fields.getOrDefault("token_url", STS_TOKEN_URL);
+            String tokenFile = fields.getOrDefault("file", fields.get("token_file"));
+            this.tokenFile = tokenFile != null ? tokenFile : SERVICE_ACCOUNT_TOKEN_FILE;
+            Matcher impersonation = IMPERSONATION_URL.matcher(fields.getOrDefault("service_account_impersonation_url", ""));
+            if (impersonation.matches()) {
+                this.iamCredentialsUrl = impersonation.group(1);
+                this.serviceAccount = impersonation.group(2);
+            } else {
+                this.iamCredentialsUrl = IAM_CREDENTIALS_URL;
+                this.serviceAccount = DEFAULT_SERVICE_ACCOUNT;
+            }
+            this.stsBodyPrefix = stsBodyPrefix(audience, subjectTokenType);
+        }
+        
+        /**
+         * Parse file as of lastModified; on failure keep previous (if it is for the same file)
+         * under the new mtime, so a broken file is reported once rather than re-read every second
+         */
+        static WifConfig load(Path file, FileTime lastModified, WifConfig previous) {
+            try {
+                return new WifConfig(file, lastModified, Files.readAllBytes(file));
+            } catch (IOException e) {
+                try {
+                    if (previous != null && previous.file.equals(file) && previous.content != null) {
+                        System.out.println("⚠ Could not load " + file + " (" + e.getMessage() + "), keeping the previous WIF settings");
+                        return new WifConfig(file, lastModified, previous.content);
+                    }
+                    System.out.println("⚠ Could not load " + file + " (" + e.getMessage() + "), using built-in WIF settings");
+                    return new WifConfig(file, lastModified, null);
+                } catch (IOException unexpected) {
+                    // previous.content parsed before and null content is not parsed at all
+                    throw new UncheckedIOException(unexpected);
+                }
+            }
+        }
+        
+        /**
+         * Everything in the STS form body except the subject token, which is appended per exchange
+         */
+        static String stsBodyPrefix(String audience, String subjectTokenType) {
+            Charset utf8 = StandardCharsets.UTF_8;
+            return "audience=" + URLEncoder.encode(audience, utf8) +
+                "&grant_type=" + URLEncoder.encode("urn:ietf:params:oauth:grant-type:token-exchange", utf8) +
+                "&requested_token_type=" + URLEncoder.encode("urn:ietf:params:oauth:token-type:access_token", utf8) +
+                "&scope=" + URLEncoder.encode(String.join(" ", DEFAULT_TOKEN_SCOPES), utf8) +
+                "&subject_token_type=" + URLEncoder.encode(subjectTokenType, utf8) +
+                "&subject_token=";
+        }
+        
+        /**
+         * STS body for audience: the precomputed prefix when it is this file's audience
+         */
+        String stsBody(String audience, String subjectToken) {
+            String prefix = audience.equals(this.audience) ? stsBodyPrefix : stsBodyPrefix(audience, subjectTokenType);
+            StringBuilder body = new StringBuilder(prefix.length() + subjectToken.length()).append(prefix);
+            // A JWT is base64url segments and dots, which need no form encoding
+            for (int i = 0; i < subjectToken.length(); i++) {
+                char c = subjectToken.charAt(i);
+                if (!(c >= 'A' && c <= 'Z' || c >= 'a' && c <= 'z' || c >= '0' && c <= '9' || c == '-' || c == '_' || c == '.')) {
+                    return body.append(URLEncoder.encode(subjectToken, StandardCharsets.UTF_8)).toString();
+                }
+            }
+            return body.append(subjectToken).toString();
+        }
+        
+        private static String unescape(String value, Path file) throws IOException {
+            if (value.indexOf('\\') < 0) {
+                return value;
+            }
+            StringBuilder out = new StringBuilder(value.length());
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c != '\\' || i + 1 >= value.length()) {
+                    out.append(c);
+                    continue;
+                }
+                char escaped = value.charAt(++i);
+                switch (escaped) {
+                    case 'n': out.append('\n'); break;
+                    case 't': out.append('\t'); break;
+                    case 'r': out.append('\r'); break;
+                    case 'b': out.append('\b'); break;
+                    case 'f': out.append('\f'); break;
+                    case 'u':
+                        if (i + 4 >= value.length()) {
+                            throw new IOException("Truncated \\u escape in " + file);
+                        }
+                        int code = 0;
+                        for (int k = i + 1; k <= i + 4; k++) {
+                            char hex = value.charAt(k);
+                            int digit = hex < 128 ? Character.digit(hex, 16) : -1;
+                            if (digit < 0) {
+                                throw new IOException("Malformed \\u escape \"\\" + value.substring(i, i + 5) + "\" in " + file);
+                            }
+                            code = code * 16 + digit;
+                        }
+                        out.append((char) code);
+                        i += 4;
+                        break;
+                    default: out.append(escaped); break;
+                }
+            }
+            return out.toString();
+        }
+        
+        String describe() {
+            return "audience " + audience + ", service account " + serviceAccount + ", token file " + tokenFile
+                    + (content == null ? " (built-in defaults)" : "");
+        }
+    }
+    
+    /**
+     * Whether the STS federated token can go to BigQuery as is, skipping impersonation
+     * (one round trip and one IAM Credentials quota unit per token). Needs the workload
+     * identity pool principal itself to hold BigQuery roles - and queries then run as that
+     * principal, not the impersonated service account, so it is strictly opt-in.
+     * 
+     * -Dchk.tokenMode=impersonate (default) always impersonates, direct never does, and auto
+     * probes - a one-row datasets.list in the JDBC URL's project with the federated token -
+     * and caches the answer per (audience, project) for DIRECT_TOKEN_PROBE_TTL. A probe that
+     * errors out (5xx, timeout) falls back to impersonation without caching.
+     */
+    static final class DirectTokenMode {
+        private static final ConcurrentHashMap<String, CompletableFuture<Boolean>> PROBES = new ConcurrentHashMap<>();
+        private static final ConcurrentHashMap<String, Decision> DECISIONS = new ConcurrentHashMap<>();
+        
+        private static final class Decision {
+            final boolean direct;
+            final long decidedNanos = System.nanoTime();
+            
+            Decision(boolean direct) {
+                this.direct = direct;
+            }
+        }
+        
+        static String mode() {
+            return System.getProperty("chk.tokenMode", DEFAULT_TOKEN_MODE).trim().toLowerCase(Locale.ROOT);
+        }
+        
+        /**
+         * Completes with true when federated (for audience) should be used without impersonation
+         */
+        static CompletableFuture<Boolean> useFederatedToken(AccessToken federated, String audience) {
+            switch (mode()) {
+                case "direct":
+                    return CompletableFuture.completedFuture(true);
+                case "auto":
+                    break;
+                default:
+                    return CompletableFuture.completedFuture(false);
+            }
+            String project = jdbcUrlProperty(DB_URL, "ProjectId");
+            String key = audience + " " + project;
+            Decision known = DECISIONS.get(key);
+            if (known != null && System.nanoTime() - known.decidedNanos < DIRECT_TOKEN_PROBE_TTL.toNanos()) {
+                return CompletableFuture.completedFuture(known.direct);
+            }
+            // Single-flight per (audience, project): concurrent refreshes share one probe
+            CompletableFuture<Boolean> future = new CompletableFuture<>();
+            CompletableFuture<Boolean> running = PROBES.putIfAbsent(key, future);
+            if (running != null) {
+                return running;
+            }
+            probe(federated, key, project).whenComplete((direct, error) -> {
+                PROBES.remove(key, future);
+                future.complete(error == null && direct);
+            });
+            return future;
+        }
+        
+        private static CompletableFuture<Boolean> probe(AccessToken federated, String key, String project) {
+            HttpRequest request = HttpRequest.newBuilder(URI.create(
+                            bigQueryApiUrl() + "/bigquery/v2/projects/" + project + "/datasets?maxResults=1"))
+                    .timeout(HTTP_REQUEST_TIMEOUT)
+                    .header("Authorization", "Bearer " + federated.value)
+                    .GET()
+                    .build();
+            long start = System.nanoTime();
+            return BIGQUERY_API_ENDPOINT.send(request).handle((response, error) -> {
+                long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                if (error != null) {
+                    System.out.println("⚠ Direct token probe failed (" + error.getMessage() + "), impersonating");
+                    return false;
+                }
+                int status = response.statusCode();
+                if (status == 200) {
+                    System.out.println("✓ Federated token has direct BigQuery access to " + project + " (probe " + millis
+                            + " ms), skipping impersonation");
+                    DECISIONS.put(key, new Decision(true));
+                    return true;
+                }
+                if (status == 401 || status == 403) {
+                    System.out.println("  Federated token has no direct BigQuery access to " + project + " (HTTP " + status + "), impersonating");
+                    DECISIONS.put(key, new Decision(false));
+                } else {
+                    System.out.println("⚠ Direct token probe returned HTTP " + status + ", impersonating");
+                }
+                return false;
+            });
+        }
+    }
+    
+    /**
+     * Fields we need from an STS or IAM Credentials token response
+     */
+    static final class TokenResponse {
+        String accessToken;
+        String tokenType;
+        String expireTime;
+        long expiresInSeconds = -1;
+        
+        /**
+         * When the token expires: expireTime (IAM), else issuedAt + expires_in (STS), else one hour
+         */
+        Instant expiry(Instant issuedAt) {
+            if (expireTime != null) {
+                try {
+                    return Instant.parse(expireTime);
+                } catch (DateTimeParseException e) {
+                    System.out.println("⚠ Could not parse expireTime: " + e.getMessage());
+                }
+            }
+            if (expiresInSeconds >= 0) {
+                return issuedAt.plusSeconds(expiresInSeconds);
+            }
+            return issuedAt.plus(DEFAULT_TOKEN_LIFETIME);
+        }
+    }
+    
+    /**
+     * Single-pass JSON extractor for token responses. Walks the top-level object in the raw
+     * UTF-8 bytes, matches keys byte-for-byte and only materializes the values we keep
+     * (access_token / accessToken, token_type, expireTime, expires_in); everything else is
+     * skipped in place. Handles whitespace, escapes and nested values.
+     */
+    static final class TokenResponseParser {
+        private static final byte[] ACCESS_TOKEN = "access_token".getBytes(StandardCharsets.US_ASCII);
+        private static final byte[] ACCESS_TOKEN_CAMEL = "accessToken".getBytes(StandardCharsets.US_ASCII);
+        private static final byte[] TOKEN_TYPE = "token_type".getBytes(StandardCharsets.US_ASCII);
+        private static final byte[] EXPIRE_TIME = "expireTime".getBytes(StandardCharsets.US_ASCII);
+        private static final byte[] EXPIRES_IN = "expires_in".getBytes(StandardCharsets.US_ASCII);
+        
+        private final byte[] buf;
+        private final int end;
+        private int pos;
+        
+        private TokenResponseParser(byte[] buf, int offset, int length) {
+            this.buf = buf;
+            this.pos = offset;
+            this.end = offset + length;
+        }
+        
+        static TokenResponse parse(byte[] body) throws IOException {
+            return parse(body, 0, body.length);
+        }
+        
+        static TokenResponse parse(byte[] body, int offset, int length) throws IOException {
+            return new TokenResponseParser(body, offset, length).parseObject();
+        }
+        
+        private TokenResponse parseObject() throws IOException {
+            TokenResponse result = new TokenResponse();
+            skipWhitespace();
+            expect('{');
+            skipWhitespace();
+            if (peek() == '}') {
+                pos++;
+                return result;
+            }
+            while (true) {
+                skipWhitespace();
+                expect('"');
+                int keyStart = pos;
+                boolean keyEscaped = skipStringBody();
+                int keyEnd = pos - 1;
+                skipWhitespace();
+                expect(':');
+                skipWhitespace();
+                
+                // Keys we care about never contain escapes, so an escaped key can't match
+                if (keyEscaped) {
+                    skipValue();
+                } else if (keyEquals(keyStart, keyEnd, ACCESS_TOKEN) || keyEquals(keyStart, keyEnd, ACCESS_TOKEN_CAMEL)) {
+                    result.accessToken = readString();
+                } else if (keyEquals(keyStart, keyEnd, TOKEN_TYPE)) {
+                    result.tokenType = readString();
+                } else if (keyEquals(keyStart, keyEnd, EXPIRE_TIME)) {
+                    result.expireTime = readString();
+                } else if (keyEquals(keyStart, keyEnd, EXPIRES_IN)) {
+                    result.expiresInSeconds = readLong();
+                } else {
+                    skipValue();
+                }
+                
+                skipWhitespace();
+                byte c = next();
+                if (c == '}') {
+                    return result;
+                }
+                if (c != ',') {
+                    throw error("expected ',' or '}'");
+                }
+            }
+        }
+        
+        private boolean keyEquals(int start, int keyEnd, byte[] key) {
+            if (keyEnd - start != key.length) {
+                return false;
+            }
+            for (int i = 0; i < key.length; i++) {
+                if (buf[start + i] != key[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        
+        /**
+         * Read a JSON string value; the fast path (no escapes) is a single copy out of the buffer
+         */
+        private String readString() throws IOException {
+            expect('"');
+            int start = pos;
+            while (pos < end) {
+                byte c = buf[pos];
+                if (c == '"') {
+                    String value = new String(buf, start, pos - start, StandardCharsets.UTF_8);
+                    pos++;
+                    return value;
+                }
+                if (c == '\\') {
+                    return readEscapedString(start);
+                }
+                pos++;
+            }
+            throw error("unterminated string");
+        }
+        
+        private String readEscapedString(int start) throws IOException {
+            StringBuilder value = new StringBuilder(pos - start + 16);
+            int runStart = start;
+            while (pos < end) {
+                byte c = buf[pos];
+                if (c == '"') {
+                    value.append(new String(buf, runStart, pos - runStart, StandardCharsets.UTF_8));
+                    pos++;
+                    return value.toString();
+                }
+                if (c != '\\') {
+                    pos++;
+                    continue;
+                }
+                value.append(new String(buf, runStart, pos - runStart, StandardCharsets.UTF_8));
+                pos++;
+                byte escaped = next();
+                switch (escaped) {
+                    case '"': value.append('"'); break;
+                    case '\\': value.append('\\'); break;
+                    case '/': value.append('/'); break;
+                    case 'b': value.append('\b'); break;
+                    case 'f': value.append('\f'); break;
+                    case 'n': value.append('\n'); break;
+                    case 'r': value.append('\r'); break;
+                    case 't': value.append('\t'); break;
+                    case 'u':
+                        if (end - pos < 4) {
+                            throw error("truncated \\u escape");
+                        }
+                        int codeUnit = 0;
+                        for (int i = 0; i < 4; i++) {
+                            int digit = Character.digit(buf[pos++], 16);
+                            if (digit < 0) {
+                                throw error("invalid \\u escape");
+                            }
+                            codeUnit = (codeUnit << 4) | digit;
+                        }
+                        value.append((char) codeUnit);
+                        break;
+                    default:
+                        throw error("invalid escape '\\" + (char) escaped + "'");
+                }
+                runStart = pos;
+            }
+            throw error("unterminated string");
+        }
+        
+        /**
+         * Read an integer, accepting both 3599 and "3599"
+         */
+        private long readLong() throws IOException {
+            boolean quoted = peek() == '"';
+            if (quoted) {
+                pos++;
+            }
+            boolean negative = peek() == '-';
+            if (negative) {
+                pos++;
+            }
+            int digitsStart = pos;
+            long value = 0;
+            while (pos < end && buf[pos] >= '0' && buf[pos] <= '9') {
+                value = value * 10 + (buf[pos++] - '0');
+            }
+            if (pos == digitsStart) {
+                throw error("expected a number");
+            }
+            // Ignore any fraction / exponent: expires_in is whole seconds in practice
+            while (pos < end && (buf[pos] == '.' || buf[pos] == 'e' || buf[pos] == 'E' || buf[pos] == '+' || buf[pos] == '-'
+                    || (buf[pos] >= '0' && buf[pos] <= '9'))) {
+                pos++;
+            }
+            if (quoted) {
+                expect('"');
+            }
+            return negative ? -value : value;
+        }
+        
+        /**
+         * Skip over a string body (opening quote already consumed); returns whether it had escapes
+         */
+        private boolean skipStringBody() throws IOException {
+            boolean escaped = false;
+            while (pos < end) {
+                byte c = buf[pos++];
+                if (c == '"') {
+                    return escaped;
+                }
+                if (c == '\\') {
+                    escaped = true;
+                    pos++;
+                }
+            }
+            throw error("unterminated string");
+        }
+        
+        private void skipValue() throws IOException {
+            byte c = peek();
+            if (c == '"') {
+                pos++;
+                skipStringBody();
+            } else if (c == '{' || c == '[') {
+                int depth = 0;
+                while (pos < end) {
+                    byte b = buf[pos++];
+                    if (b == '"') {
+                        skipStringBody();
+                    } else if (b == '{' || b == '[') {
+                        depth++;
+                    } else if (b == '}' || b == ']') {
+                        if (--depth == 0) {
+                            return;
+                        }
+                    }
+                }
+                throw error("unterminated " + (c == '{' ? "object" : "array"));
+            } else {
+                // Number, true, false or null
+                int start = pos;
+                while (pos < end && buf[pos] != ',' && buf[pos] != '}' && buf[pos] != ']' && !isWhitespace(buf[pos])) {
+                    pos++;
+                }
+                if (pos == start) {
+                    throw error("expected a value");
+                }
+            }
+        }
+        
+        private void skipWhitespace() {
+            while (pos < end && isWhitespace(buf[pos])) {
+                pos++;
+            }
+        }
+        
+        private static boolean isWhitespace(byte c) {
+            return c == ' ' || c == '\n' || c == '\r' || c == '\t';
+        }
+        
+        private byte peek() throws IOException {
+            if (pos >= end) {
+                throw error("unexpected end of input");
+            }
+            return buf[pos];
+        }
+        
+        private byte next() throws IOException {
+            byte c = peek();
+            pos++;
+            return c;
+        }
+        
+        private void expect(char expected) throws IOException {
+            if (next() != expected) {
+                throw error("expected '" + expected + "'");
+            }
+        }
+        
+        private IOException error(String message) {
+            return new IOException("Malformed JSON at offset " + pos + ": " + message);
+        }
+    }
+    
+    /**
+     * One way of authenticating to BigQuery. Implementations may also be registered through
+     * META-INF/services/chk_jdbc_fixed$AuthStrategy and selected with -Dchk.strategies.
+     */
+    interface AuthStrategy {
+        String name();
+        
+        String description();
+        
+        /**
+         * Whether the strategy runs when -Dchk.strategies is not set
+         */
+        default boolean isDefault() {
+            return true;
+        }
+        
+        default boolean isApplicable(AuthContext context) {
+            return true;
+        }
+        
+        /**
+         * Open a connection, or return null / throw when this strategy cannot authenticate
+         */
+        Connection connect(AuthContext context) throws Exception;
+    }
+    
+    /**
+     * What a strategy needs to connect
+     */
+    static final class AuthContext {
+        final URLClassLoader driverClassLoader;
+        final TokenProvider tokenProvider;
+        final boolean hasServiceAccountToken;
+        
+        AuthContext(URLClassLoader driverClassLoader, TokenProvider tokenProvider, boolean hasServiceAccountToken) {
+            this.driverClassLoader = driverClassLoader;
+            this.tokenProvider = tokenProvider;
+            this.hasServiceAccountToken = hasServiceAccountToken;
+        }
+    }
+    
+    /**
+     * Result of running one strategy: the connection (if any), how long it took and why it failed
+     */
+    static final class AuthOutcome {
+        final AuthStrategy strategy;
+        final Connection connection;
+        final long latencyMillis;
+        final Exception error;
+        
+        AuthOutcome(AuthStrategy strategy, Connection connection, long latencyMillis, Exception error) {
+            this.strategy = strategy;
+            this.connection = connection;
+            this.latencyMillis = latencyMillis;
+            this.error = error;
+        }
+        
+        boolean succeeded() {
+            return connection != null;
+        }
+        
+        String describe() {
+            if (succeeded()) {
+                return "connected";
+            }
+            return error != null ? "failed: " + error.getMessage() : "failed: no connection";
+        }
+    }
+    
+    /**
+     * Strategy backed by one of the try*Auth methods
+     */
+    static final class SimpleAuthStrategy implements AuthStrategy {
+        
+        interface Connector {
+            Connection connect(AuthContext context) throws Exception;
+        }
+        
+        private final String name;
+        private final String description;
+        private final boolean requiresServiceAccountToken;
+        private final boolean isDefault;
+        private final Connector connector;
+        
+        SimpleAuthStrategy(String name, String description, boolean requiresServiceAccountToken,
+                           boolean isDefault, Connector connector) {
+            this.name = name;
+            this.description = description;
+            this.requiresServiceAccountToken = requiresServiceAccountToken;
+            this.isDefault = isDefault;
+            this.connector = connector;
+        }
+        
+        public String name() {
+            return name;
+        }
+        
+        public String description() {
+            return description;
+        }
+        
+        public boolean isDefault() {
+            return isDefault;
+        }
+        
+        public boolean isApplicable(AuthContext context) {
+            return !requiresServiceAccountToken || context.hasServiceAccountToken;
+        }
+        
+        public Connection connect(AuthContext context) throws Exception {
+            return connector.connect(context);
+        }
+    }
+    
+    /**
+     * Resilience wrapper for one Google token endpoint (STS or IAM Credentials).
+     * 
+     * - Every logical call has a deadline covering all of its attempts; each attempt is
+     *   bounded by the request's own timeout
+     * - 429 / 500 / 502 / 503 / 504 and I/O errors are retried with exponential backoff
+     *   and full jitter; any other response (including 4xx) is returned as-is
+     * - Once enough latencies have been seen, an attempt still pending after the observed
+     *   p95 gets a hedged duplicate (at most HEDGE_BUDGET_PERCENT of requests); the first
+     *   response wins and the other is cancelled
+     * - A circuit breaker opens after consecutive failures and fails calls fast until a
+     *   single probe succeeds, so an outage costs callers milliseconds instead of the deadline
+     */
+    static final class ResilientEndpoint {
+        private static final Set<Integer> RETRYABLE_STATUS = Set.of(429, 500, 502, 503, 504);
+        
+        final String name;
+        final CircuitBreaker breaker;
+        private final LatencyWindow latencies = new LatencyWindow();
+        private final LongAdder sent = new LongAdder();
+        final LongAdder retries = new LongAdder();
+        final LongAdder hedges = new LongAdder();
+        final LongAdder hedgeWins = new LongAdder();
+        final LongAdder rejected = new LongAdder();
+        
+        ResilientEndpoint(String name) {
+            this.name = name;
+            this.breaker = new CircuitBreaker(name);
+        }
+        
+        /**
+         * Send request with retries, hedging and the circuit breaker. Completes with the final
+         * response (which may still be a non-200), or exceptionally with CircuitOpenException,
+         * TimeoutException once the call deadline passes, or the last attempt's I/O error.
+         */
+        CompletableFuture<HttpResponse<byte[]>> send(HttpRequest request) {
+            if (!breaker.allowRequest()) {
+                rejected.increment();
+                return CompletableFuture.failedFuture(new CircuitOpenException(name, breaker.openRemaining()));
+            }
+            Duration deadline = Duration.ofMillis(Long.getLong("chk.tokenCallDeadlineMillis", TOKEN_CALL_DEADLINE.toMillis()));
+            int maxAttempts = Math.max(1, Integer.getInteger("chk.tokenCallMaxAttempts", TOKEN_CALL_MAX_ATTEMPTS));
+            CompletableFuture<HttpResponse<byte[]>> result = new CompletableFuture<>();
+            attempt(request, 1, maxAttempts, System.nanoTime() + deadline.toNanos(), result);
+            return result.orTimeout(deadline.toMillis(), TimeUnit.MILLISECONDS);
+        }
+        
+        private void attempt(HttpRequest request, int attempt, int maxAttempts, long deadlineNanos,
+                CompletableFuture<HttpResponse<byte[]>> result) {
+            if (result.isDone()) {
+                return;
+            }
+            CompletableFuture<HttpResponse<byte[]>> sent = hedgedSend(request);
+            result.whenComplete((response, error) -> sent.cancel(true));
+            sent.whenComplete((response, error) -> {
+                Throwable cause = error instanceof CompletionException && error.getCause() != null
+                        ? error.getCause() : error;
+                if (cause instanceof CancellationException) {
+                    // Abandoned at the call deadline (or superseded): no verdict on the service, but a
+                    // half-open probe that never answered must not leave the breaker half-open
+                    breaker.recordAbandoned();
+                    return;
+                }
+                if (cause == null && !RETRYABLE_STATUS.contains(response.statusCode())) {
+                    // The service answered (even with a 4xx), so it is healthy
+                    breaker.recordSuccess();
+                    result.complete(response);
+                    return;
+                }
+                breaker.recordFailure();
+                long backoffNanos = backoffNanos(attempt);
+                if (attempt >= maxAttempts || System.nanoTime() + backoffNanos >= deadlineNanos || !breaker.isClosed()) {
+                    if (cause == null) {
+                        result.complete(response);
+                    } else {
+                        result.completeExceptionally(cause);
+                    }
+                    return;
+                }
+                retries.increment();
+                System.out.println("  " + name + " attempt " + attempt + " failed ("
+                        + (cause == null ? "HTTP " + response.statusCode() : cause.toString()) + "), retrying in "
+                        + TimeUnit.NANOSECONDS.toMillis(backoffNanos) + " ms");
+                CompletableFuture.delayedExecutor(backoffNanos, TimeUnit.NANOSECONDS)
+                        .execute(() -> attempt(request, attempt + 1, maxAttempts, deadlineNanos, result));
+            });
+        }
+        
+        /**
+         * Full jitter: uniform in [0, min(max, base * 2^(attempt-1))]
+         */
+        private static long backoffNanos(int attempt) {
+            long ceiling = Math.min(RETRY_MAX_BACKOFF.toNanos(), RETRY_BASE_BACKOFF.toNanos() << Math.min(attempt - 1, 20));
+            return ThreadLocalRandom.current().nextLong(ceiling + 1);
+        }
+        
+        /**
+         * One attempt: the request, plus a duplicate if it is still pending after the observed p95
+         */
+        private CompletableFuture<HttpResponse<byte[]>> hedgedSend(HttpRequest request) {
+            CompletableFuture<HttpResponse<byte[]>> primary = timedSend(request);
+            long hedgeDelayNanos = latencies.hedgeDelayNanos();
+            if (hedgeDelayNanos < 0) {
+                return primary;
+            }
+            CompletableFuture<HttpResponse<byte[]>> winner = new CompletableFuture<>();
+            AtomicInteger outstanding = new AtomicInteger(1);
+            AtomicReference<CompletableFuture<HttpResponse<byte[]>>> hedge = new AtomicReference<>();
+            primary.whenComplete((response, error) -> settle(winner, outstanding, response, error));
+            CompletableFuture.delayedExecutor(hedgeDelayNanos, TimeUnit.NANOSECONDS).execute(() -> {
+                // Budget: during a burst most requests pass the p95, and hedging them all only adds load
+                if (winner.isDone() || hedges.sum() * 100 >= sent.sum() * HEDGE_BUDGET_PERCENT) {
+                    return;
+                }
+                outstanding.incrementAndGet();
+                hedges.increment();
+                CompletableFuture<HttpResponse<byte[]>> duplicate = timedSend(request);
+                hedge.set(duplicate);
+                duplicate.whenComplete((response, error) -> {
+                    if (error == null && winner.complete(response)) {
+                        hedgeWins.increment();
+                    } else {
+                        settle(winner, outstanding, response, error);
+                    }
+                });
+            });
+            winner.whenComplete((response, error) -> {
+                primary.cancel(true);
+                CompletableFuture<HttpResponse<byte[]>> duplicate = hedge.get();
+                if (duplicate != null) {
+                    duplicate.cancel(true);
+                }
+            });
+            return winner;
+        }
+        
+        /**
+         * First response wins; an error only wins once no other copy is still running
+         */
+        private static void settle(CompletableFuture<HttpResponse<byte[]>> winner, AtomicInteger outstanding,
+                HttpResponse<byte[]> response, Throwable error) {
+            if (error == null) {
+                winner.complete(response);
+            } else if (outstanding.decrementAndGet() == 0) {
+                winner.completeExceptionally(error);
+            }
+        }
+        
+        private CompletableFuture<HttpResponse<byte[]>> timedSend(HttpRequest request) {
+            long start = System.nanoTime();
+            sent.increment();
+            return HTTP_CLIENT.sendAsync(request, HttpResponse.BodyHandlers.ofByteArray())
+                    .whenComplete((response, error) -> {
+                        if (response != null && !RETRYABLE_STATUS.contains(response.statusCode())) {
+                            latencies.record(System.nanoTime() - start);
+                        }
+                    });
+        }
+        
+        /**
+         * Recent successful latencies in a fixed ring; p95 is computed from a sorted copy
+         */
+        static final class LatencyWindow {
+            private static final int SIZE = 128;
+            private final AtomicLongArray samples = new AtomicLongArray(SIZE);
+            private final AtomicLong recorded = new AtomicLong();
+            
+            void record(long nanos) {
+                samples.set((int) (recorded.getAndIncrement() % SIZE), nanos);
+            }
+            
+            /**
+             * Delay before hedging, or -1 while there are too few samples to know the p95
+             */
+            long hedgeDelayNanos() {
+                int count = (int) Math.min(recorded.get(), SIZE);
+                if (count < HEDGE_MIN_SAMPLES) {
+                    return -1;
+                }
+                long[] sorted = new long[count];
+                for (int i = 0; i < count; i++) {
+                    sorted[i] = samples.get(i);
+                }
+                Arrays.sort(sorted);
+                return Math.max(HEDGE_MIN_DELAY.toNanos(), sorted[(int) Math.ceil(count * 0.95) - 1]);
+            }
+        }
+    }
+    
+    /**
+     * Closed -> open after BREAKER_FAILURE_THRESHOLD consecutive failures; open -> half-open
+     * after BREAKER_OPEN_DURATION, letting exactly one probe through; the probe's outcome
+     * closes or re-opens it. A probe that is abandoned (deadline, cancellation) re-opens it too,
+     * and a probe with no outcome after the open duration is replaced by a new one.
+     * State changes go to the event log.
+     */
+    static final class CircuitBreaker {
+        enum State { CLOSED, OPEN, HALF_OPEN }
+        
+        private final String name;
+        private final Duration openDuration;
+        private final int failureThreshold;
+        private final AtomicReference<State> state = new AtomicReference<>(State.CLOSED);
+        private final AtomicInteger consecutiveFailures = new AtomicInteger();
+        private volatile long openedAtNanos;
+        private final AtomicLong probeStartedNanos = new AtomicLong();
+        
+        CircuitBreaker(String name) {
+            this(name, BREAKER_OPEN_DURATION, BREAKER_FAILURE_THRESHOLD);
+        }
+        
+        CircuitBreaker(String name, Duration openDuration, int failureThreshold) {
+            this.name = name;
+            this.openDuration = openDuration;
+            this.failureThreshold = failureThreshold;
+        }
+        
+        /**
+         * Admission for a new call; may make the caller the half-open probe
+         */
+        boolean allowRequest() {
+            State s = state.get();
+            if (s == State.CLOSED) {
+                return true;
+            }
+            long now = System.nanoTime();
+            if (s == State.OPEN && now - openedAtNanos >= openDuration.toNanos()) {
+                // This caller is the probe
+                if (state.compareAndSet(State.OPEN, State.HALF_OPEN)) {
+                    probeStartedNanos.set(now);
+                    EventLog.record(name + " circuit half-open, sending probe");
+                    return true;
+                }
+                return false;
+            }
+            if (s == State.HALF_OPEN) {
+                // The probe never reported back: let one more caller probe instead
+                long started = probeStartedNanos.get();
+                if (now - started >= openDuration.toNanos() && probeStartedNanos.compareAndSet(started, now)) {
+                    EventLog.record(name + " circuit probe expired without an outcome, sending another");
+                    return true;
+                }
+            }
+            return false;
+        }
+        
+        /**
+         * Side-effect free: whether calls currently flow normally (used to decide on retries)
+         */
+        boolean isClosed() {
+            return state.get() == State.CLOSED;
+        }
+        
+        void recordSuccess() {
+            consecutiveFailures.set(0);
+            if (state.getAndSet(State.CLOSED) != State.CLOSED) {
+                EventLog.record(name + " circuit closed again");
+            }
+        }
+        
+        void recordFailure() {
+            int failures = consecutiveFailures.incrementAndGet();
+            State s = state.get();
+            if ((s == State.HALF_OPEN || (s == State.CLOSED && failures >= failureThreshold))
+                    && state.compareAndSet(s, State.OPEN)) {
+                openedAtNanos = System.nanoTime();
+                EventLog.record(name + " circuit opened after " + failures + " consecutive failures, failing fast for "
+                        + openDuration.getSeconds() + "s");
+            }
+        }
+        
+        /**
+         * An attempt ended without a response; only counts against a half-open probe
+         */
+        void recordAbandoned() {
+            if (state.compareAndSet(State.HALF_OPEN, State.OPEN)) {
+                openedAtNanos = System.nanoTime();
+                EventLog.record(name + " circuit probe abandoned without a response, open again for "
+                        + openDuration.getSeconds() + "s");
+            }
+        }
+        
+        State state() {
+            return state.get();
+        }
+        
+        Duration openRemaining() {
+            return Duration.ofNanos(Math.max(0, openDuration.toNanos() - (System.nanoTime() - openedAtNanos)));
+        }
+    }
+    
+    /**
+     * Raised instead of calling an endpoint whose circuit is open
+     */
+    static final class CircuitOpenException extends IOException {
+        private static final long serialVersionUID = 1L;
+        
+        CircuitOpenException(String endpoint, Duration retryIn) {
+            super(endpoint + " circuit open, failing fast (next probe in " + retryIn.toMillis() + " ms)");
+        }
+    }
+    
+    /**
+     * Checks which BigQuery permissions the impersonated service account holds.
+     * 
+     * - projects: one Resource Manager testIamPermissions call with every project-level permission
+     * - datasets: BigQuery has no dataset-level testIamPermissions, so a dataset is probed with
+     *   tables.list and then one batched tables testIamPermissions call per table
+     * - every call is non-blocking on the shared HTTP client, so all resources are probed
+     *   concurrently (up to PERMISSION_MAX_CONCURRENCY calls in flight)
+     * - results are cached per resource for the TTL; concurrent audits share in-flight probes,
+     *   and failed probes are not cached
+     */
+    static final class PermissionProbe {
+        static final List<String> PROJECT_PERMISSIONS = List.of(
+                "bigquery.jobs.create", "bigquery.jobs.get", "bigquery.jobs.list", "bigquery.datasets.get",
+                "bigquery.tables.list", "bigquery.tables.get", "bigquery.tables.getData", "bigquery.readsessions.create");
+        static final List<String> DATASET_PERMISSIONS = List.of("bigquery.tables.list");
+        static final List<String> TABLE_PERMISSIONS = List.of("bigquery.tables.get", "bigquery.tables.getData");
+        
+        // Permission and table ids never contain quotes or backslashes, so these don't need a full JSON parser
+        static final Pattern PERMISSIONS_ARRAY = Pattern.compile("\"permissions\"\\s*:\\s*\\[([^\\]]*)\\]");
+        static final Pattern QUOTED = Pattern.compile("\"([^\"\\\\]*)\"");
+        private static final Pattern TABLE_ID = Pattern.compile("\"tableId\"\\s*:\\s*\"([^\"\\\\]*)\"");
+        
+        private final TokenProvider tokenProvider;
+        private final String defaultProject;
+        private final Duration ttl;
+        private final int maxTables;
+        private final ConcurrentHashMap<String, Cached> cache = new ConcurrentHashMap<>();
+        private final Semaphore permits = new Semaphore(PERMISSION_MAX_CONCURRENCY);
+        private final Queue<Runnable> waiting = new ConcurrentLinkedQueue<>();
+        
+        PermissionProbe(TokenProvider tokenProvider, String defaultProject, Duration ttl, int maxTables) {
+            this.tokenProvider = tokenProvider;
+            this.defaultProject = defaultProject;
+            this.ttl = ttl;
+            this.maxTables = maxTables;
+        }
+        
+        /**
+         * Probe all projects and datasets (project.dataset, or dataset in the default project) concurrently
+         */
+        CompletableFuture<List<Result>> audit(List<String> projects, List<String> datasets) {
+            List<CompletableFuture<List<Result>>> parts = new ArrayList<>();
+            for (String project : projects) {
+                parts.add(testProject(project).thenApply(List::of));
+            }
+            for (String dataset : datasets) {
+                int dot = dataset.lastIndexOf('.');
+                parts.add(dot > 0 ? testDataset(dataset.substring(0, dot), dataset.substring(dot + 1))
+                        : testDataset(defaultProject, dataset));
+            }
+            return CompletableFuture.allOf(parts.toArray(new CompletableFuture<?>[0]))
+                    .thenApply(done -> {
+                        List<Result> results = new ArrayList<>();
+                        for (CompletableFuture<List<Result>> part : parts) {
+                            results.addAll(part.join());
+                        }
+                        return results;
+                    });
+        }
+        
+        CompletableFuture<Result> testProject(String projectId) {
+            String resource = "projects/" + projectId;
+            return testIamPermissions(resource, resourceManagerUrl() + "/v1/" + resource + ":testIamPermissions",
+                    RESOURCE_MANAGER_ENDPOINT, PROJECT_PERMISSIONS);
+        }
+        
+        /**
+         * The dataset's tables.list result followed by one result per table (up to maxTables)
+         */
+        CompletableFuture<List<Result>> testDataset(String projectId, String datasetId) {
+            String resource = "projects/" + projectId + "/datasets/" + datasetId;
+            String baseUrl = bigQueryApiUrl() + "/bigquery/v2/" + resource + "/tables";
+            CompletableFuture<Result> listing = cached(resource, () -> tokenProvider.getTokenAsync()
+                    .thenCompose(token -> limited(() -> BIGQUERY_API_ENDPOINT.send(request(baseUrl + "?maxResults=" + maxTables, token, null))))
+                    .handle((response, error) -> {
+                        if (error != null) {
+                            return Result.failed(resource, DATASET_PERMISSIONS, error);
+                        }
+                        if (response.statusCode() == 403) {
+                            return new Result(resource, DATASET_PERMISSIONS, Set.of(), List.of(), null);
+                        }
+                        if (response.statusCode() != 200) {
+                            return Result.failed(resource, DATASET_PERMISSIONS, response);
+                        }
+                        return new Result(resource, DATASET_PERMISSIONS, Set.copyOf(DATASET_PERMISSIONS),
+                                matches(TABLE_ID, new String(response.body(), StandardCharsets.UTF_8)), null);
+                    }));
+            return listing.thenCompose(dataset -> {
+                List<CompletableFuture<Result>> tables = new ArrayList<>();
+                for (String tableId : dataset.tables) {
+                    tables.add(testIamPermissions(resource + "/tables/" + tableId, baseUrl + "/" + tableId + ":testIamPermissions",
+                            BIGQUERY_API_ENDPOINT, TABLE_PERMISSIONS));
+                }
+                return CompletableFuture.allOf(tables.toArray(new CompletableFuture<?>[0])).thenApply(done -> {
+                    List<Result> results = new ArrayList<>();
+                    results.add(dataset);
+                    for (CompletableFuture<Result> table : tables) {
+                        results.add(table.join());
+                    }
+                    return results;
+                });
+            });
+        }
+        
+        private CompletableFuture<Result> testIamPermissions(String resource, String url, ResilientEndpoint endpoint,
+                List<String> permissions) {
+            String body = permissions.stream().map(permission -> "\"" + permission + "\"")
+                    .collect(Collectors.joining(",", "{\"permissions\":[", "]}"));
+            return cached(resource, () -> tokenProvider.getTokenAsync()
+                    .thenCompose(token -> limited(() -> endpoint.send(request(url, token, body))))
+                    .handle((response, error) -> {
+                        if (error != null) {
+                            return Result.failed(resource, permissions, error);
+                        }
+                        if (response.statusCode() != 200) {
+                            return Result.failed(resource, permissions, response);
+                        }
+                        // The response lists only the granted subset; no "permissions" key means none
+                        Matcher granted = PERMISSIONS_ARRAY.matcher(
+                                new String(response.body(), StandardCharsets.UTF_8));
+                        return new Result(resource, permissions,
+                                granted.find() ? Set.copyOf(matches(QUOTED, granted.group(1))) : Set.of(), null, null);
+                    }));
+        }
+        
+        /**
+         * Cached result while fresh, else start probe; concurrent callers share one probe
+         */
+        private CompletableFuture<Result> cached(String key, Supplier<CompletableFuture<Result>> probe) {
+            while (true) {
+                long now = System.nanoTime();
+                Cached entry = cache.get(key);
+                if (entry != null && entry.expiresAtNanos - now > 0) {
+                    return entry.result.isDone() ? entry.result.thenApply(Result::fromCache) : entry.result;
+                }
+                CompletableFuture<Result> started = new CompletableFuture<>();
+                Cached fresh = new Cached(started, now + ttl.toNanos());
+                if (entry == null ? cache.putIfAbsent(key, fresh) == null : cache.replace(key, entry, fresh)) {
+                    probe.get().whenComplete((result, error) -> {
+                        if (error != null || result.error != null) {
+                            cache.remove(key, fresh);
+                        }
+                        if (error != null) {
+                            started.completeExceptionally(error);
+                        } else {
+                            started.complete(result);
+                        }
+                    });
+                    return started;
+                }
+            }
+        }
+        
+        /**
+         * Run call once fewer than PERMISSION_MAX_CONCURRENCY calls are in flight, without blocking
+         * the caller. Keeps a wide audit within API quotas and lets it reuse pooled connections.
+         */
+        private <T> CompletableFuture<T> limited(Supplier<CompletableFuture<T>> call) {
+            CompletableFuture<T> result = new CompletableFuture<>();
+            waiting.add(() -> {
+                CompletableFuture<T> running;
+                try {
+                    running = call.get();
+                } catch (RuntimeException e) {
+                    running = CompletableFuture.failedFuture(e);
+                }
+                running.whenComplete((value, error) -> {
+                    permits.release();
+                    drainWaiting();
+                    if (error != null) {
+                        result.completeExceptionally(error);
+                    } else {
+                        result.complete(value);
+                    }
+                });
+            });
+            drainWaiting();
+            return result;
+        }
+        
+        private void drainWaiting() {
+            while (!waiting.isEmpty() && permits.tryAcquire()) {
+                Runnable next = waiting.poll();
+                if (next == null) {
+                    // Another thread took it; loop to re-check, since a caller may have queued after our poll
+                    permits.release();
+                    continue;
+                }
+                next.run();
+            }
+        }
+        
+        private static HttpRequest request(String url, AccessToken token, String jsonBody) {
+            HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create(url))
+                    .timeout(HTTP_REQUEST_TIMEOUT)
+                    .header("Authorization", "Bearer " + token.value);
+            if (jsonBody == null) {
+                return builder.GET().build();
+            }
+            return builder.header("Content-Type", "application/json")
+                    .POST(HttpRequest.BodyPublishers.ofString(jsonBody, StandardCharsets.UTF_8))
+                    .build();
+        }
+        
+        static List<String> matches(Pattern pattern, String text) {
+            List<String> values = new ArrayList<>();
+            Matcher matcher = pattern.matcher(text);
+            while (matcher.find()) {
+                values.add(matcher.group(1));
+            }
+            return values;
+        }
+        
+        /**
+         * Predefined role that grants permission, as suggested by test_bigquery_permissions.sh
+         */
+        static String grantingRole(String permission) {
+            if (permission.startsWith("bigquery.jobs.") || permission.startsWith("bigquery.readsessions.")) {
+                return "roles/bigquery.jobUser";
+            }
+            if (permission.equals("bigquery.tables.getData")) {
+                return "roles/bigquery.dataViewer";
+            }
+            return "roles/bigquery.metadataViewer";
+        }
+        
+        private static final class Cached {
+            final CompletableFuture<Result> result;
+            final long expiresAtNanos;
+            
+            Cached(CompletableFuture<Result> result, long expiresAtNanos) {
+                this.result = result;
+                this.expiresAtNanos = expiresAtNanos;
+            }
+        }
+        
+        static final class Result {
+            final String resource;
+            final List<String> requested;
+            final Set<String> granted;
+            final List<String> tables;
+            final String error;
+            final boolean fromCache;
+            
+            Result(String resource, List<String> requested, Set<String> granted,
+                   List<String> tables, String error) {
+                this(resource, requested, granted, tables, error, false);
+            }
+            
+            private Result(String resource, List<String> requested, Set<String> granted,
+                           List<String> tables, String error, boolean fromCache) {
+                this.resource = resource;
+                this.requested = requested;
+                this.granted = granted;
+                this.tables = tables == null ? List.of() : tables;
+                this.error = error;
+                this.fromCache = fromCache;
+            }
+            
+            static Result failed(String resource, List<String> requested, Throwable error) {
+                Throwable cause = error instanceof CompletionException && error.getCause() != null
+                        ? error.getCause() : error;
+                return new Result(resource, requested, Set.of(), null, String.valueOf(cause.getMessage()));
+            }
+            
+            static Result failed(String resource, List<String> requested, HttpResponse<byte[]> response) {
+                String body = new String(response.body(), StandardCharsets.UTF_8).replaceAll("\\s+", " ");
+                return new Result(resource, requested, Set.of(), null,
+                        "HTTP " + response.statusCode() + ": " + body.substring(0, Math.min(200, body.length())));
+            }
+            
+            Result fromCache() {
+                return new Result(resource, requested, granted, tables, error, true);
+            }
+            
+            /**
+             * Requested permissions not granted; empty when the probe itself failed
+             */
+            List<String> missing() {
+                if (error != null) {
+                    return List.of();
+                }
+                List<String> missing = new ArrayList<>(requested);
+                missing.removeAll(granted);
+                return missing;
+            }
+            
+            String describe() {
+                String suffix = (tables.isEmpty() ? "" : " (" + tables.size() + " tables)") + (fromCache ? " [cached]" : "");
+                if (error != null) {
+                    return "✗ " + resource + ": " + error + suffix;
+                }
+                List<String> missing = missing();
+                if (missing.isEmpty()) {
+                    return "✓ " + resource + ": " + requested.size() + "/" + requested.size() + " permissions" + suffix;
+                }
+                return "✗ " + resource + ": missing " + String.join(", ", missing) + suffix;
+            }
+        }
+    }
+    
+    /**
+     * In-memory copy of the projected service account token.
+     * 
+     * - the token's directory is watched, so kubelet's atomic ..data symlink swap is seen
+     *   even though the token path itself never changes
+     * - the file is re-read only when something in the directory changes; current() is a volatile read
+     * - when the content changes, subscribed token providers start an STS refresh right away
+     *   instead of exchanging the old subject token until their own refresh is due
+     * 
+     * Without a watchable directory (e.g. outside Kubernetes) current() falls back to reading the file.
+     */
+    static final class ProjectedTokenSource {
+        private final Path tokenFile;
+        private final WatchService watchService;
+        private final List<TokenProvider> subscribers = new CopyOnWriteArrayList<>();
+        private final AtomicInteger rotations = new AtomicInteger();
+        private volatile String token;
+        
+        ProjectedTokenSource(Path tokenFile) {
+            this.tokenFile = tokenFile;
+            this.token = read();
+            this.watchService = watch(tokenFile.toAbsolutePath().getParent());
+        }
+        
+        String current() {
+            return watchService != null ? token : read();
+        }
+        
+        int rotationCount() {
+            return rotations.get();
+        }
+        
+        void refreshOnRotation(TokenProvider provider) {
+            subscribers.add(provider);
+            provider.onShutdown(() -> unsubscribe(provider));
+        }
+        
+        void unsubscribe(TokenProvider provider) {
+            subscribers.remove(provider);
+        }
+        
+        int subscriberCount() {
+            return subscribers.size();
+        }
+        
+        private WatchService watch(Path directory) {
+            if (directory == null || !Files.isDirectory(directory)) {
+                return null;
+            }
+            try {
+                WatchService service = directory.getFileSystem().newWatchService();
+                directory.register(service, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+                Thread watcher = new Thread(() -> watchLoop(service), "projected-token-watch");
+                watcher.setDaemon(true);
+                watcher.start();
+                return service;
+            } catch (IOException e) {
+                System.out.println("⚠ Cannot watch " + directory + ", reading the token on every use: " + e.getMessage());
+                return null;
+            }
+        }
+        
+        private void watchLoop(WatchService service) {
+            try {
+                while (true) {
+                    WatchKey key = service.take();
+                    // Any change in the directory (including OVERFLOW) just means "re-read the token"
+                    key.pollEvents();
+                    boolean valid = key.reset();
+                    reload();
+                    if (!valid) {
+                        System.out.println("⚠ Token directory is no longer watchable: " + tokenFile.getParent());
+                        return;
+                    }
+                }
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                // daemon thread; nothing to clean up
+            }
+        }
+        
+        private void reload() {
+            String updated = read();
+            // A swap emits several events; only a real content change counts, and a missing
+            // file mid-swap keeps the last good token
+            if (updated == null || updated.equals(token)) {
+                return;
+            }
+            token = updated;
+            rotations.incrementAndGet();
+            for (TokenProvider provider : subscribers) {
+                if (provider.isShutdown()) {
+                    subscribers.remove(provider);
+                } else {
+                    provider.refresh();
+                }
+            }
+        }
+        
+        private String read() {
+            try {
+                String content = new String(Files.readAllBytes(tokenFile), StandardCharsets.UTF_8).trim();
+                return content.isEmpty() ? null : content;
+            } catch (IOException e) {
+                return null;
+            }
+        }
+    }
+    
+    /**
+     * DataSource / ConnectionPoolDataSource over one BigQuery driver instance.
+     * 
+     * Connections come straight from Driver.connect: nothing is registered with DriverManager,
+     * so there is no global driver list to scan and no DriverManager lock. Usable as a bean
+     * (e.g. HikariCP dataSourceClassName=chk_jdbc_fixed$BigQueryDataSource with url and
+     * optionally driverPath / driverClassName), in which case each connect uses the current
+     * DriverRuntime generation, or built directly around a loaded driver.
+     */
+    public static final class BigQueryDataSource implements DataSource, ConnectionPoolDataSource {
+        private final Driver driver;
+        private String url;
+        private String driverPath = driverPath();
+        private String driverClassName;
+        private final Properties properties = new Properties();
+        private volatile PrintWriter logWriter;
+        private volatile int loginTimeoutSeconds;
+        
+        public BigQueryDataSource() {
+            this.driver = null;
+        }
+        
+        BigQueryDataSource(Driver driver, String url, Properties properties) {
+            this.driver = driver;
+            this.url = url;
+            this.properties.putAll(properties);
+        }
+        
+        public String getUrl() {
+            return url;
+        }
+        
+        public void setUrl(String url) {
+            this.url = url;
+        }
+        
+        public String getDriverPath() {
+            return driverPath;
+        }
+        
+        public void setDriverPath(String driverPath) {
+            this.driverPath = driverPath;
+        }
+        
+        public String getDriverClassName() {
+            return driverClassName;
+        }
+        
+        public void setDriverClassName(String driverClassName) {
+            this.driverClassName = driverClassName;
+        }
+        
+        /**
+         * Extra connection properties (AuthenticationType, OAuthType, LogLevel, ...)
+         */
+        public void setConnectionProperty(String key, String value) {
+            properties.setProperty(key, value);
+        }
+        
+        @Override
+        public Connection getConnection() throws SQLException {
+            return connect(properties);
+        }
+        
+        @Override
+        public Connection getConnection(String username, String password) throws SQLException {
+            Properties props = copyProperties();
+            if (username != null) {
+                props.setProperty("user", username);
+            }
+            if (password != null) {
+                props.setProperty("password", password);
+            }
+            return connect(props);
+        }
+        
+        /**
+         * Connect with a Bearer access token on top of the configured properties
+         */
+        Connection getConnectionWithAccessToken(String accessToken) throws SQLException {
+            Properties props = copyProperties();
+            props.setProperty("OAuthAccessToken", accessToken);
+            return connect(props);
+        }
+        
+        @Override
+        public javax.sql.PooledConnection getPooledConnection() throws SQLException {
+            return new BigQueryPooledConnection(getConnection());
+        }
+        
+        @Override
+        public javax.sql.PooledConnection getPooledConnection(String username, String password) throws SQLException {
+            return new BigQueryPooledConnection(getConnection(username, password));
+        }
+        
+        @Override
+        public PrintWriter getLogWriter() {
+            return logWriter;
+        }
+        
+        @Override
+        public void setLogWriter(PrintWriter out) {
+            this.logWriter = out;
+        }
+        
+        @Override
+        public void setLoginTimeout(int seconds) {
+            this.loginTimeoutSeconds = seconds;
+        }
+        
+        @Override
+        public int getLoginTimeout() {
+            return loginTimeoutSeconds;
+        }
+        
+        @Override
+        public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+            throw new SQLFeatureNotSupportedException();
+        }
+        
+        @Override
+        public <T> T unwrap(Class<T> iface) throws SQLException {
+            if (iface.isInstance(this)) {
+                return iface.cast(this);
+            }
+            throw new SQLException("Not a wrapper for " + iface.getName());
+        }
+        
+        @Override
+        public boolean isWrapperFor(Class<?> iface) {
+            return iface.isInstance(this);
+        }
+        
+        private Properties copyProperties() {
+            Properties props = new Properties();
+            props.putAll(properties);
+            return props;
+        }
+        
+        private Connection connect(Properties props) throws SQLException {
+            if (url == null) {
+                throw new SQLException("BigQueryDataSource has no url", "08001");
+            }
+            if (loginTimeoutSeconds > 0 && !props.containsKey("Timeout")) {
+                props = copyProperties();
+                props.setProperty("Timeout", Integer.toString(loginTimeoutSeconds));
+            }
+            PrintWriter log = logWriter;
+            if (log != null) {
+                log.println("BigQueryDataSource: connecting to " + url.split(";", 2)[0]);
+            }
+            return openDriverConnection(resolveDriver(), url, props);
+        }
+        
+        /**
+         * The injected driver, or the current generation's driver for driverPath (follows hot swaps)
+         */
+        private Driver resolveDriver() throws SQLException {
+            if (driver != null) {
+                return driver;
+            }
+            DriverRuntime runtime = driverRuntime(driverPath);
+            if (runtime == null) {
+                throw new SQLException("Failed to load BigQuery drivers from " + driverPath, "08001");
+            }
+            return bigQueryDriver(runtime.classLoader(), driverClassName != null ? driverClassName : driverClassName());
+        }
+    }
+    
+    /**
+     * PooledConnection for BigQueryDataSource: hands out one logical handle at a time and tells
+     * the pool manager when it is closed or hits a connection-level (SQLState 08) error
+     */
+    static final class BigQueryPooledConnection implements javax.sql.PooledConnection {
+        private final Connection physical;
+        private final List<ConnectionEventListener> listeners = new CopyOnWriteArrayList<>();
+        private final List<StatementEventListener> statementListeners = new CopyOnWriteArrayList<>();
+        private final AtomicReference<AtomicBoolean> currentHandle = new AtomicReference<>();
+        
+        BigQueryPooledConnection(Connection physical) {
+            this.physical = physical;
+        }
+        
+        @Override
+        public Connection getConnection() throws SQLException {
+            if (physical.isClosed()) {
+                throw new SQLException("Pooled connection is closed", "08003");
+            }
+            // A new handle invalidates the previous one, as the PooledConnection contract requires
+            AtomicBoolean closed = new AtomicBoolean();
+            AtomicBoolean previous = currentHandle.getAndSet(closed);
+            if (previous != null) {
+                previous.set(true);
+            }
+            return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                    new Class<?>[] {Connection.class}, (proxy, method, args) -> {
+                        switch (method.getName()) {
+                            case "close":
+                                if (closed.compareAndSet(false, true)) {
+                                    fire(null);
+                                }
+                                return null;
+                            case "isClosed":
+                                return closed.get() || physical.isClosed();
+                            case "equals":
+                                return proxy == args[0];
+                            case "hashCode":
+                                return System.identityHashCode(proxy);
+                            case "toString":
+                                return "BigQueryPooledConnection[" + physical + "]";
+                            default:
+                                if (closed.get()) {
+                                    throw new SQLException("Connection handle is closed", "08003");
+                                }
+                                try {
+                                    return method.invoke(physical, args);
+                                } catch (InvocationTargetException e) {
+                                    Throwable cause = e.getCause();
+                                    if (cause instanceof SQLException && ((SQLException) cause).getSQLState() != null
+                                            && ((SQLException) cause).getSQLState().startsWith("08")) {
+                                        fire((SQLException) cause);
+                                    }
+                                    throw cause;
+                                }
+                        }
+                    });
+        }
+        
+        @Override
+        public void close() throws SQLException {
+            AtomicBoolean handle = currentHandle.getAndSet(null);
+            if (handle != null) {
+                handle.set(true);
+            }
+            physical.close();
+        }
+        
+        @Override
+        public void addConnectionEventListener(ConnectionEventListener listener) {
+            listeners.add(listener);
+        }
+        
+        @Override
+        public void removeConnectionEventListener(ConnectionEventListener listener) {
+            listeners.remove(listener);
+        }
+        
+        @Override
+        public void addStatementEventListener(StatementEventListener listener) {
+            statementListeners.add(listener);
+        }
+        
+        @Override
+        public void removeStatementEventListener(StatementEventListener listener) {
+            statementListeners.remove(listener);
+        }
+        
+        private void fire(SQLException error) {
+            ConnectionEvent event = new ConnectionEvent(this, error);
+            for (ConnectionEventListener listener : listeners) {
+                if (error == null) {
+                    listener.connectionClosed(event);
+                } else {
+                    listener.connectionErrorOccurred(event);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Java Flight Recorder events for each phase of the connect pipeline (category chk_jdbc).
+     * Record them with e.g. -XX:StartFlightRecording=filename=chk_jdbc.jfr; when no recording
+     * is running, begin/commit are no-ops.
+     */
+    static final class ConnectEvents {
+        
+        // Strategy currently connecting on this thread, attached to connect / validation events
+        static final ThreadLocal<String> CURRENT_STRATEGY = new ThreadLocal<>();
+        
+        private ConnectEvents() {
+        }
+        
+        @Name("chk_jdbc.DriverLoad")
+        @Label("Driver Load")
+        @Category({"chk_jdbc", "Connect Pipeline"})
+        @Description("Indexing the driver jars and creating the driver class loader")
+        static final class DriverLoad extends jdk.jfr.Event {
+            @Label("Driver Path")
+            String driverPath;
+            @Label("Jar Count")
+            int jarCount;
+            @Label("Indexed Packages")
+            int packageCount;
+            @Label("Success")
+            boolean success;
+        }
+        
+        @Name("chk_jdbc.CredentialValidation")
+        @Label("Credential Validation")
+        @Category({"chk_jdbc", "Connect Pipeline"})
+        @Description("Checking the WIF credential file and the projected service account token")
+        static final class CredentialValidation extends jdk.jfr.Event {
+            @Label("Credential File")
+            String credentialFile;
+            @Label("Token File Present")
+            boolean tokenFilePresent;
+            @Label("Success")
+            boolean success;
+        }
+        
+        @Name("chk_jdbc.StsExchange")
+        @Label("STS Token Exchange")
+        @Category({"chk_jdbc", "Connect Pipeline"})
+        @Description("Exchanging the Kubernetes token for a federated token")
+        static final class StsExchange extends jdk.jfr.Event {
+            @Label("URL")
+            String url;
+            @Label("HTTP Status")
+            int httpStatus;
+            @Label("Bytes Read")
+            @DataAmount
+            long bytesRead;
+            @Label("Token TTL")
+            @Timespan(Timespan.SECONDS)
+            long tokenTtlSeconds;
+        }
+        
+        @Name("chk_jdbc.Impersonation")
+        @Label("Service Account Impersonation")
+        @Category({"chk_jdbc", "Connect Pipeline"})
+        @Description("generateAccessToken call on IAM Credentials")
+        static final class Impersonation extends jdk.jfr.Event {
+            @Label("Service Account")
+            String serviceAccount;
+            @Label("HTTP Status")
+            int httpStatus;
+            @Label("Bytes Read")
+            @DataAmount
+            long bytesRead;
+            @Label("Token TTL")
+            @Timespan(Timespan.SECONDS)
+            long tokenTtlSeconds;
+        }
+        
+        @Name("chk_jdbc.DriverConnect")
+        @Label("Driver Connect")
+        @Category({"chk_jdbc", "Connect Pipeline"})
+        @Description("Driver.connect on the BigQuery driver")
+        static final class DriverConnect extends jdk.jfr.Event {
+            @Label("Strategy")
+            String strategy;
+            @Label("AuthenticationType")
+            String authenticationType;
+            @Label("Success")
+            boolean success;
+        }
+        
+        @Name("chk_jdbc.Validation")
+        @Label("Connection Validation")
+        @Category({"chk_jdbc", "Connect Pipeline"})
+        @Description("Connection.isValid round trip")
+        static final class Validation extends jdk.jfr.Event {
+            @Label("Strategy")
+            String strategy;
+            @Label("Timeout")
+            @Timespan(Timespan.SECONDS)
+            int timeoutSeconds;
+            @Label("Valid")
+            boolean valid;
+        }
+    }
+    
+    /**
+     * Simba driver log level per connect attempt. Trace logging (LogLevel=6) roughly doubles
+     * connect time and grows the log quickly, so attempts run at DRIVER_LOG_LEVEL (or
+     * -Dchk.driverLogLevel); a failed connect arms trace for the next attempt only - the
+     * retry - at most once per DRIVER_TRACE_COOLDOWN. A LogLevel set explicitly on the
+     * connection properties always wins.
+     */
+    static final class DriverLogging {
+        private static final AtomicBoolean TRACE_ARMED = new AtomicBoolean();
+        private static final AtomicLong LAST_TRACE = new AtomicLong(
+                System.nanoTime() - DRIVER_TRACE_COOLDOWN.toNanos());
+        
+        private DriverLogging() {
+        }
+        
+        static Properties forAttempt(Properties props) {
+            if (props.getProperty("LogLevel") != null) {
+                return props;
+            }
+            Properties attempt = new Properties();
+            for (String name : props.stringPropertyNames()) {
+                attempt.setProperty(name, props.getProperty(name));
+            }
+            boolean trace = TRACE_ARMED.compareAndSet(true, false);
+            attempt.setProperty("LogLevel", trace ? DRIVER_TRACE_LOG_LEVEL : System.getProperty("chk.driverLogLevel", DRIVER_LOG_LEVEL));
+            if (props.getProperty("LogPath") == null) {
+                attempt.setProperty("LogPath", System.getProperty("chk.driverLogPath", DRIVER_LOG_PATH));
+            }
+            if (trace) {
+                System.out.println("  Retrying with driver trace logging (LogLevel=" + DRIVER_TRACE_LOG_LEVEL + ") to "
+                        + attempt.getProperty("LogPath"));
+            }
+            return attempt;
+        }
+        
+        static void connectFailed(Exception e) {
+            EventLog.record("Driver connect failed: " + e);
+            long now = System.nanoTime();
+            long last = LAST_TRACE.get();
+            if (now - last >= DRIVER_TRACE_COOLDOWN.toNanos() && LAST_TRACE.compareAndSet(last, now)) {
+                TRACE_ARMED.set(true);
+            }
+        }
+    }
+    
+    /**
+     * Counters, latency samples and memory snapshots for the load mode
+     */
+    static final class LoadRecorder {
+        private final Queue<Samples> samples = new ConcurrentLinkedQueue<>();
+        private final LongAdder succeeded = new LongAdder();
+        private final LongAdder failed = new LongAdder();
+        private final ConcurrentHashMap<String, LongAdder> winners =
+                new ConcurrentHashMap<>();
+        private final ConcurrentHashMap<String, LongAdder> errorsByStrategy =
+                new ConcurrentHashMap<>();
+        private final ConcurrentHashMap<String, LongAdder> errorsByCause =
+                new ConcurrentHashMap<>();
+        
+        /**
+         * Latency buffer owned by one worker thread; merged when the run ends
+         */
+        Samples newSamples() {
+            Samples buffer = new Samples();
+            samples.add(buffer);
+            return buffer;
+        }
+        
+        void recordSuccess(String strategy, Samples buffer, long nanos) {
+            buffer.add(nanos);
+            succeeded.increment();
+            winners.computeIfAbsent(strategy, name -> new LongAdder()).increment();
+        }
+        
+        void recordFailure() {
+            failed.increment();
+        }
+        
+        void recordError(String strategy, String detail) {
+            errorsByStrategy.computeIfAbsent(strategy, name -> new LongAdder()).increment();
+            String cause = detail.length() > 120 ? detail.substring(0, 120) + "..." : detail;
+            errorsByCause.computeIfAbsent(strategy + ": " + cause, key -> new LongAdder()).increment();
+        }
+        
+        String progressLine(long elapsedNanos) {
+            long ok = succeeded.sum();
+            double seconds = elapsedNanos / 1e9;
+            return String.format("  %6.1f s  %d ok, %d failed, %.1f cycles/s", seconds, ok, failed.sum(), ok / seconds);
+        }
+        
+        String report(long elapsedNanos, MemorySnapshot before, MemorySnapshot after) {
+            int total = 0;
+            for (Samples buffer : samples) {
+                total += buffer.size;
+            }
+            long[] latencies = new long[total];
+            int offset = 0;
+            for (Samples buffer : samples) {
+                System.arraycopy(buffer.values, 0, latencies, offset, buffer.size);
+                offset += buffer.size;
+            }
+            Arrays.sort(latencies);
+            
+            double seconds = elapsedNanos / 1e9;
+            StringBuilder out = new StringBuilder();
+            out.append(String.format("Cycles: %d ok, %d failed in %.1f s (%.1f cycles/s)%n",
+                    succeeded.sum(), failed.sum(), seconds, succeeded.sum() / seconds));
+            if (latencies.length > 0) {
+                double sum = 0;
+                for (long latency : latencies) {
+                    sum += latency;
+                }
+                out.append(String.format("Latency ms: mean %.2f, p50 %.2f, p90 %.2f, p99 %.2f, p99.9 %.2f, max %.2f%n",
+                        sum / latencies.length / 1e6, percentile(latencies, 50) / 1e6, percentile(latencies, 90) / 1e6,
+                        percentile(latencies, 99) / 1e6, percentile(latencies, 99.9) / 1e6, latencies[latencies.length - 1] / 1e6));
+            }
+            out.append("Connected by strategy:").append(System.lineSeparator());
+            appendCounts(out, winners);
+            out.append("Errors by strategy:").append(System.lineSeparator());
+            appendCounts(out, errorsByStrategy);
+            if (!errorsByCause.isEmpty()) {
+                out.append("Error causes:").append(System.lineSeparator());
+                appendCounts(out, errorsByCause);
+            }
+            out.append(String.format("Heap used: %.1f MB -> %.1f MB (%+.1f MB)%n",
+                    before.heapUsed / 1048576.0, after.heapUsed / 1048576.0, (after.heapUsed - before.heapUsed) / 1048576.0));
+            out.append(String.format("Metaspace used: %.1f MB -> %.1f MB (%+.1f MB)%n",
+                    before.metaspaceUsed / 1048576.0, after.metaspaceUsed / 1048576.0, (after.metaspaceUsed - before.metaspaceUsed) / 1048576.0));
+            out.append(String.format("Loaded classes: %d -> %d (%+d)", before.loadedClasses, after.loadedClasses,
+                    after.loadedClasses - before.loadedClasses));
+            return out.toString();
+        }
+        
+        private static long percentile(long[] sorted, double percentile) {
+            int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+            return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+        }
+        
+        private static void appendCounts(StringBuilder out, Map<String, LongAdder> counts) {
+            if (counts.isEmpty()) {
+                out.append("  (none)").append(System.lineSeparator());
+                return;
+            }
+            counts.entrySet().stream()
+                    .sorted((a, b) -> Long.compare(b.getValue().sum(), a.getValue().sum()))
+                    .forEach(entry -> out.append(String.format("  %8d  %s%n", entry.getValue().sum(), entry.getKey())));
+        }
+        
+        static final class Samples {
+            private long[] values = new long[256];
+            private int size;
+            
+            void add(long nanos) {
+                if (size == values.length) {
+                    values = Arrays.copyOf(values, size * 2);
+                }
+                values[size++] = nanos;
+            }
+        }
+        
+        /**
+         * Hands out evenly spaced start slots for a target overall rate; unthrottled when rate <= 0
+         */
+        static final class RatePacer {
+            private final long intervalNanos;
+            private final AtomicLong nextSlot;
+            
+            RatePacer(double ratePerSecond, long startNanos) {
+                this.intervalNanos = ratePerSecond > 0 ? (long) (1e9 / ratePerSecond) : 0;
+                this.nextSlot = new AtomicLong(startNanos);
+            }
+            
+            /**
+             * Wait for the next slot; false once the slot would fall after deadlineNanos
+             */
+            boolean awaitSlot(long deadlineNanos) throws InterruptedException {
+                long now = System.nanoTime();
+                if (intervalNanos == 0) {
+                    return now - deadlineNanos < 0;
+                }
+                long slot;
+                while (true) {
+                    long next = nextSlot.get();
+                    // A pacer that fell behind does not burst to catch up
+                    slot = Math.max(next, now);
+                    if (nextSlot.compareAndSet(next, slot + intervalNanos)) {
+                        break;
+                    }
+                }
+                if (slot - deadlineNanos >= 0) {
+                    return false;
+                }
+                long waitNanos = slot - now;
+                if (waitNanos > 0) {
+                    TimeUnit.NANOSECONDS.sleep(waitNanos);
+                }
+                return true;
+            }
+        }
+        
+        /**
+         * Heap / metaspace usage and loaded class count, taken after a GC
+         */
+        static final class MemorySnapshot {
+            final long heapUsed;
+            final long metaspaceUsed;
+            final int loadedClasses;
+            
+            private MemorySnapshot(long heapUsed, long metaspaceUsed, int loadedClasses) {
+                this.heapUsed = heapUsed;
+                this.metaspaceUsed = metaspaceUsed;
+                this.loadedClasses = loadedClasses;
+            }
+            
+            static MemorySnapshot capture() {
+                System.gc();
+                return new MemorySnapshot(ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed(),
+                        DriverRuntime.metaspaceUsedBytes(), ManagementFactory.getClassLoadingMXBean().getLoadedClassCount());
+            }
+        }
+    }
+    
     /**
      * Driver wrapper to handle class loader issues with DriverManager
      */
-    static class DriverShim implements java.sql.Driver {
-        private java.sql.Driver driver;
+    static class DriverShim implements Driver {
+        final Driver driver;
         
-        DriverShim(java.sql.Driver driver) {
+        DriverShim(Driver driver) {
             this.driver = driver;
         }
         
@@ -653,10 +4103,11 @@ public class chk_jdbc_fixed {
         }
         
         public Connection connect(String url, Properties info) throws SQLException {
-            return driver.connect(url, info);
+            Connection connection = driver.connect(url, info);
+            return connection == null ? null : MetadataCache.wrap(connection, driver, url, info);
         }
         
-        public java.sql.DriverPropertyInfo[] getPropertyInfo(String url, Properties info) throws SQLException {
+        public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) throws SQLException {
             return driver.getPropertyInfo(url, info);
         }
         
@@ -672,7 +4123,7 @@ public class chk_jdbc_fixed {
             return driver.jdbcCompliant();
         }
         
-        public java.util.logging.Logger getParentLogger() throws java.sql.SQLFeatureNotSupportedException {
+        public Logger getParentLogger() throws SQLFeatureNotSupportedException {
             return driver.getParentLogger();
         }
     }
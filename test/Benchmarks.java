@@ -0,0 +1,208 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+/**
+ * Micro-benchmarks for the auth and connect path, run against the local STS / IAM Credentials
+ * stand-in and the stub JDBC driver. Iteration counts scale with -Dchk.benchScale (default 1.0);
+ * results are also written to -Dchk.benchOutput if set. From the repository root:
+ *   javac -d classes -sourcepath . chk_jdbc_fixed.java
+ *   javac -d test-classes -cp classes -sourcepath test test/*.java
+ *   java -cp classes:test-classes Benchmarks
+ */
+final class Benchmarks {
+    
+    public static void main(String[] args) {
+        double scale = Double.parseDouble(System.getProperty("chk.benchScale", "1.0"));
+        PrintStream console = System.out;
+        List<MicroBenchmark.Result> results = new ArrayList<>();
+        File jarDir = null;
+        
+        try (LocalGoogleStandIn standIn = new LocalGoogleStandIn(Duration.ZERO)) {
+            console.println("Running auth/connect micro-benchmarks (scale " + scale + ")...");
+            console.println("Local STS / IAM Credentials stand-in: " + standIn.baseUrl());
+            console.println("-".repeat(50));
+            standIn.installAsEndpoints();
+            System.setProperty("chk.driverClass", StubBigQueryDriver.class.getName());
+            
+            // The tool's own output would dominate the measurements
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+            
+            results.add(MicroBenchmark.run("sts-exchange+impersonate", scaled(200, scale),
+                    () -> requireNonNull(chk_jdbc_fixed.exchangeTokenWithSTS("stub-subject-token"))));
+            
+            byte[] impersonationResponse = ("{\n  \"accessToken\": \"ya29.stub-access-token-" + "x".repeat(200)
+                    + "\",\n  \"expireTime\": \"2030-01-01T00:00:00Z\"\n}").getBytes("UTF-8");
+            results.add(MicroBenchmark.run("json-token-extraction", scaled(200_000, scale),
+                    () -> requireNonNull(chk_jdbc_fixed.TokenResponseParser.parse(impersonationResponse).accessToken)));
+            
+            File jars = createBenchmarkJars(40, 50);
+            jarDir = jars;
+            System.setProperty("chk.driverIndexDir", jars.getPath());
+            results.add(MicroBenchmark.run("load-driver-classloader", scaled(500, scale), () -> {
+                try (URLClassLoader loader = requireNonNull(chk_jdbc_fixed.createDriverClassLoader(jars.getPath()))) {
+                    // Class lookups consult the package index instead of walking every jar
+                    loader.findResource("com/example/dep39/Class49.class");
+                    loader.findResource("com/example/Missing.class");
+                }
+            }));
+            
+            URLClassLoader stubLoader = new URLClassLoader(new URL[0], Benchmarks.class.getClassLoader());
+            TokenProvider provider = new TokenProvider(() -> chk_jdbc_fixed.exchangeTokenWithSTS("stub-subject-token"), chk_jdbc_fixed.TOKEN_REFRESH_SKEW);
+            chk_jdbc_fixed.AuthContext context = new chk_jdbc_fixed.AuthContext(stubLoader, provider, true);
+            for (chk_jdbc_fixed.AuthStrategy strategy : chk_jdbc_fixed.builtInStrategies()) {
+                if (strategy.isDefault()) {
+                    results.add(MicroBenchmark.run("connect:" + strategy.name(), scaled(1_000, scale), () -> {
+                        chk_jdbc_fixed.AuthOutcome outcome = chk_jdbc_fixed.runStrategy(strategy, context);
+                        if (!outcome.succeeded()) {
+                            throw new Exception(outcome.describe());
+                        }
+                        outcome.connection.close();
+                    }));
+                }
+            }
+            provider.shutdown();
+            
+        } catch (Exception e) {
+            System.setOut(console);
+            console.println("✗ Benchmark failed: " + e.getMessage());
+            e.printStackTrace();
+        } finally {
+            System.setOut(console);
+            deleteRecursively(jarDir);
+        }
+        
+        StringBuilder report = new StringBuilder();
+        report.append(MicroBenchmark.Result.header()).append('\n');
+        for (MicroBenchmark.Result result : results) {
+            report.append(result.format()).append('\n');
+        }
+        console.println(report);
+        
+        String output = System.getProperty("chk.benchOutput");
+        if (output != null) {
+            try {
+                Files.write(new File(output).toPath(), report.toString().getBytes("UTF-8"));
+                console.println("✓ Benchmark results written to " + output);
+            } catch (IOException e) {
+                console.println("✗ Could not write benchmark results: " + e.getMessage());
+            }
+        }
+    }
+    
+    private static int scaled(int iterations, double scale) {
+        return Math.max(1, (int) (iterations * scale));
+    }
+    
+    private static <T> T requireNonNull(T value) throws Exception {
+        if (value == null) {
+            throw new Exception("operation returned null");
+        }
+        return value;
+    }
+    
+    /**
+     * Temporary directory of jars that stands in for the Simba driver bundle
+     */
+    private static File createBenchmarkJars(int jarCount, int entriesPerJar) throws IOException {
+        File dir = Files.createTempDirectory("chk-bench-jars").toFile();
+        byte[] payload = new byte[256];
+        for (int i = 0; i < jarCount; i++) {
+            File jar = new File(dir, "bench-dependency-" + i + ".jar");
+            try (JarOutputStream out = new JarOutputStream(new FileOutputStream(jar))) {
+                for (int j = 0; j < entriesPerJar; j++) {
+                    out.putNextEntry(new JarEntry("com/example/dep" + i + "/Class" + j + ".class"));
+                    out.write(payload);
+                    out.closeEntry();
+                }
+            }
+        }
+        return dir;
+    }
+    
+    static void deleteRecursively(File file) {
+        if (file == null) {
+            return;
+        }
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+    
+    /**
+     * Minimal benchmark harness: warm up, then time each operation individually so we
+     * can report throughput and latency percentiles
+     */
+    static final class MicroBenchmark {
+        
+        interface Operation {
+            void run() throws Exception;
+        }
+        
+        static Result run(String name, int iterations, Operation operation) throws Exception {
+            // Warm-up lets the JIT compile the path before measuring
+            int warmup = Math.max(1, iterations / 10);
+            for (int i = 0; i < warmup; i++) {
+                operation.run();
+            }
+            long[] samples = new long[iterations];
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                long opStart = System.nanoTime();
+                operation.run();
+                samples[i] = System.nanoTime() - opStart;
+            }
+            long elapsed = System.nanoTime() - start;
+            Arrays.sort(samples);
+            return new Result(name, samples, elapsed);
+        }
+        
+        static final class Result {
+            final String name;
+            final long[] sortedSamples;
+            final long elapsedNanos;
+            
+            Result(String name, long[] sortedSamples, long elapsedNanos) {
+                this.name = name;
+                this.sortedSamples = sortedSamples;
+                this.elapsedNanos = elapsedNanos;
+            }
+            
+            double throughputPerSecond() {
+                return sortedSamples.length * 1e9 / elapsedNanos;
+            }
+            
+            long percentileNanos(double percentile) {
+                int index = (int) Math.ceil(percentile / 100.0 * sortedSamples.length) - 1;
+                return sortedSamples[Math.max(0, Math.min(index, sortedSamples.length - 1))];
+            }
+            
+            static String header() {
+                return String.format("%-32s %9s %12s %10s %10s %10s %10s %10s",
+                        "benchmark", "ops", "ops/s", "p50 us", "p90 us", "p99 us", "p99.9 us", "max us");
+            }
+            
+            String format() {
+                return String.format("%-32s %9d %12.1f %10.1f %10.1f %10.1f %10.1f %10.1f",
+                        name, sortedSamples.length, throughputPerSecond(),
+                        percentileNanos(50) / 1e3, percentileNanos(90) / 1e3, percentileNanos(99) / 1e3,
+                        percentileNanos(99.9) / 1e3, sortedSamples[sortedSamples.length - 1] / 1e3);
+            }
+        }
+    }
+}
@@ -0,0 +1,564 @@
+import java.io.File;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipalLookupService;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.Driver;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import jdk.net.UnixDomainPrincipal;
+
+/**
+ * Assertion tests for the pieces that are easy to get subtly wrong: circuit breaker, pool
+ * accounting, token cache bounds, broker peer checks, WIF parsing and metadata cache scoping.
+ * Google APIs are answered by LocalGoogleStandIn and connections come from StubBigQueryDriver.
+ * From the repository root:
+ *   javac -d classes -sourcepath . chk_jdbc_fixed.java
+ *   javac -d test-classes -cp classes -sourcepath test test/*.java
+ *   java -cp classes:test-classes ChkTests
+ */
+final class ChkTests {
+    
+    interface Test {
+        void run() throws Exception;
+    }
+    
+    private static final String URL = "jdbc:bigquery://https://www.googleapis.com/bigquery/v2:443;ProjectId=stub-project;OAuthType=2";
+    
+    private static File work;
+    private static LocalGoogleStandIn standIn;
+    
+    public static void main(String[] args) throws Exception {
+        work = Files.createTempDirectory("chk-tests").toFile();
+        standIn = new LocalGoogleStandIn(Duration.ZERO);
+        System.setProperty("chk.metadataSnapshot", new File(work, "metadata.snapshot").getPath());
+        int failures = 0;
+        try {
+            OfflineLauncher.install(standIn, work);
+            // The first event initialises the tool's statics, which would eat the breaker tests' open window
+            EventLog.record("tests starting");
+            failures += run("breaker opens, probes once and closes", ChkTests::breaker);
+            failures += run("breaker re-opens on an abandoned probe", ChkTests::breakerAbandonedProbe);
+            failures += run("pool accounting", ChkTests::poolAccounting);
+            failures += run("pool validation races the warm fill", ChkTests::poolValidationDuringFill);
+            failures += run("pool borrow waits for connections out for validation", ChkTests::poolBorrowDuringValidation);
+            failures += run("executor names its threads and bounds platform threads", ChkTests::executorNamesAndBounds);
+            failures += run("token cache evicts tenants", ChkTests::tokenCacheEvictsTenants);
+            failures += run("token cache bounds tenants overall, not per stripe", ChkTests::tokenCacheBoundIsGlobal);
+            failures += run("token cache evicts audiences", ChkTests::tokenCacheEvictsAudiences);
+            failures += run("rotation watcher drops shut-down providers", ChkTests::rotationUnsubscribesOnShutdown);
+            failures += run("token broker refuses peers off the allow-lists", ChkTests::brokerRefusesOtherPeers);
+            failures += run("WIF fields", ChkTests::wifFields);
+            failures += run("WIF malformed escape keeps previous", ChkTests::wifMalformedEscapeKeepsPrevious);
+            failures += run("WIF missing file uses defaults", ChkTests::wifDefaults);
+            failures += run("metadata cache off by default", ChkTests::metadataCacheOffByDefault);
+            failures += run("metadata cache scoped by principal", ChkTests::metadataCacheScopedByPrincipal);
+            failures += run("metadata cache scope survives a new token", ChkTests::metadataCacheScopeSurvivesNewToken);
+            failures += run("metadata snapshot round trip", ChkTests::metadataSnapshotRoundTrip);
+            failures += run("metadata refresh shares a connection and a current token", ChkTests::metadataRefreshUsesCurrentToken);
+        } finally {
+            standIn.close();
+            Benchmarks.deleteRecursively(work);
+        }
+        System.out.println(failures == 0 ? "All tests passed" : failures + " test(s) failed");
+        System.exit(failures == 0 ? 0 : 1);
+    }
+    
+    private static int run(String name, Test test) {
+        try {
+            test.run();
+            System.out.println("✓ " + name);
+            return 0;
+        } catch (Throwable e) {
+            System.out.println("✗ " + name + ": " + e);
+            e.printStackTrace(System.out);
+            return 1;
+        }
+    }
+    
+    static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+    
+    static void checkEquals(Object expected, Object actual, String what) {
+        if (expected == null ? actual != null : !expected.equals(actual)) {
+            throw new AssertionError(what + ": expected " + expected + " but was " + actual);
+        }
+    }
+    
+    static void breaker() throws Exception {
+        chk_jdbc_fixed.CircuitBreaker breaker = new chk_jdbc_fixed.CircuitBreaker("test", Duration.ofMillis(50), 3);
+        breaker.recordFailure();
+        breaker.recordFailure();
+        checkEquals(chk_jdbc_fixed.CircuitBreaker.State.CLOSED, breaker.state(), "state below the threshold");
+        check(breaker.allowRequest(), "closed breaker admits calls");
+        breaker.recordFailure();
+        checkEquals(chk_jdbc_fixed.CircuitBreaker.State.OPEN, breaker.state(), "state at the threshold");
+        check(!breaker.allowRequest(), "open breaker fails fast");
+        
+        Thread.sleep(60);
+        check(breaker.allowRequest(), "first caller after the open duration is the probe");
+        checkEquals(chk_jdbc_fixed.CircuitBreaker.State.HALF_OPEN, breaker.state(), "state while probing");
+        check(!breaker.allowRequest(), "only one probe at a time");
+        breaker.recordFailure();
+        checkEquals(chk_jdbc_fixed.CircuitBreaker.State.OPEN, breaker.state(), "state after a failed probe");
+        
+        Thread.sleep(60);
+        check(breaker.allowRequest(), "probe after re-opening");
+        breaker.recordSuccess();
+        checkEquals(chk_jdbc_fixed.CircuitBreaker.State.CLOSED, breaker.state(), "state after a successful probe");
+        breaker.recordFailure();
+        checkEquals(chk_jdbc_fixed.CircuitBreaker.State.CLOSED, breaker.state(), "failure count resets on success");
+    }
+    
+    static void breakerAbandonedProbe() throws Exception {
+        chk_jdbc_fixed.CircuitBreaker breaker = new chk_jdbc_fixed.CircuitBreaker("test", Duration.ofMillis(50), 1);
+        breaker.recordAbandoned();
+        checkEquals(chk_jdbc_fixed.CircuitBreaker.State.CLOSED, breaker.state(), "abandoned call while closed");
+        breaker.recordFailure();
+        Thread.sleep(60);
+        check(breaker.allowRequest(), "probe");
+        breaker.recordAbandoned();
+        checkEquals(chk_jdbc_fixed.CircuitBreaker.State.OPEN, breaker.state(), "state after an abandoned probe");
+        check(!breaker.allowRequest(), "re-opened breaker fails fast");
+    }
+    
+    static ConnectionPool newPool(int minIdle, int maxSize, TokenProvider tokens) {
+        StubBigQueryDriver driver = new StubBigQueryDriver();
+        return new ConnectionPool(token -> driver.connect(URL, new Properties()), tokens, minIdle, maxSize,
+                Duration.ofMillis(100), Duration.ofMinutes(10), Duration.ofMinutes(10), 1,
+                Duration.ofMinutes(10), Duration.ofMinutes(10), Duration.ofMinutes(10));
+    }
+    
+    static TokenProvider fixedToken() {
+        return new TokenProvider(() -> new AccessToken("stub-token", Instant.now().plus(Duration.ofHours(1))), chk_jdbc_fixed.TOKEN_REFRESH_SKEW);
+    }
+    
+    static void poolAccounting() throws Exception {
+        TokenProvider tokens = fixedToken();
+        try (ConnectionPool pool = newPool(2, 4, tokens)) {
+            pool.start();
+            checkEquals(2, pool.getIdleCount(), "idle after start");
+            checkEquals(2, pool.getTotalCount(), "total after start");
+            
+            List<Connection> leased = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                leased.add(pool.borrow());
+            }
+            checkEquals(4, pool.getActiveCount(), "active at maxSize");
+            checkEquals(4, pool.getTotalCount(), "total at maxSize");
+            checkEquals(0, pool.getIdleCount(), "idle at maxSize");
+            try {
+                pool.borrow().close();
+                throw new AssertionError("borrow beyond maxSize should time out");
+            } catch (SQLTimeoutException expected) {
+                // maxSize leases are out
+            }
+            
+            leased.get(0).close();
+            leased.get(0).close();
+            checkEquals(3, pool.getActiveCount(), "a double close returns the lease once");
+            checkEquals(1, pool.getIdleCount(), "returned connection is idle");
+            for (Connection connection : leased) {
+                connection.close();
+            }
+            checkEquals(0, pool.getActiveCount(), "active after returning everything");
+            checkEquals(4, pool.getIdleCount(), "idle after returning everything");
+            checkEquals(4, pool.getTotalCount(), "total after returning everything");
+            
+            Connection reused = pool.borrow();
+            checkEquals(4, pool.getTotalCount(), "borrow reuses an idle connection");
+            reused.close();
+        } finally {
+            tokens.shutdown();
+        }
+    }
+    
+    /**
+     * Health sweeps and maintenance both every millisecond, every idle connection validated
+     * each sweep: a validated connection must never be invisible to fillToMinIdle
+     */
+    static void poolValidationDuringFill() throws Exception {
+        TokenProvider tokens = fixedToken();
+        StubBigQueryDriver driver = new StubBigQueryDriver();
+        try (ConnectionPool pool = new ConnectionPool(token -> driver.connect(URL, new Properties()), tokens, 4, 8,
+                Duration.ofMillis(100), Duration.ofMinutes(10), Duration.ofMillis(1), 1,
+                Duration.ofMillis(1), Duration.ofMillis(1), Duration.ZERO)) {
+            pool.start();
+            long deadline = System.nanoTime() + Duration.ofSeconds(2).toNanos();
+            int maxTotal = 0;
+            while (System.nanoTime() < deadline) {
+                maxTotal = Math.max(maxTotal, pool.getTotalCount());
+                check(pool.getTotalCount() <= pool.getMaxSize(), "total " + pool.getTotalCount() + " over maxSize");
+                Thread.onSpinWait();
+            }
+            check(maxTotal <= 4, "warm fill opened " + maxTotal + " connections for minIdle 4");
+        } finally {
+            tokens.shutdown();
+        }
+    }
+    
+    /**
+     * Both connections of a full pool are out for a slow validation: borrowers must wait for
+     * them rather than open more physical connections
+     */
+    static void poolBorrowDuringValidation() throws Exception {
+        TokenProvider tokens = fixedToken();
+        StubBigQueryDriver driver = new StubBigQueryDriver();
+        ConnectionPool.ConnectionFactory slowValidation = token -> {
+            Connection connection = driver.connect(URL, new Properties());
+            return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[] {Connection.class},
+                    (proxy, method, args) -> {
+                        if ("isValid".equals(method.getName())) {
+                            Thread.sleep(300);
+                        }
+                        return method.invoke(connection, args);
+                    });
+        };
+        try (ConnectionPool pool = new ConnectionPool(slowValidation, tokens, 2, 2,
+                Duration.ofSeconds(5), Duration.ofMinutes(10), Duration.ofMinutes(10), 1,
+                Duration.ofMillis(1), Duration.ofMinutes(10), Duration.ZERO)) {
+            pool.start();
+            long deadline = System.nanoTime() + Duration.ofSeconds(2).toNanos();
+            while (pool.getIdleCount() > 0 && System.nanoTime() < deadline) {
+                Thread.sleep(1);
+            }
+            checkEquals(0, pool.getIdleCount(), "idle while both connections are validated");
+            
+            List<CompletableFuture<Connection>> borrows = new ArrayList<>();
+            for (int i = 0; i < 2; i++) {
+                borrows.add(CompletableFuture.supplyAsync(() -> {
+                    try {
+                        return pool.borrow();
+                    } catch (SQLException e) {
+                        throw new CompletionException(e);
+                    }
+                }));
+            }
+            int maxTotal = 0;
+            while (!borrows.stream().allMatch(CompletableFuture::isDone)) {
+                maxTotal = Math.max(maxTotal, pool.getTotalCount());
+                Thread.onSpinWait();
+            }
+            for (CompletableFuture<Connection> borrow : borrows) {
+                borrow.join().close();
+            }
+            maxTotal = Math.max(maxTotal, pool.getTotalCount());
+            check(maxTotal <= pool.getMaxSize(), "pool opened " + maxTotal + " physical connections for maxSize " + pool.getMaxSize());
+        } finally {
+            tokens.shutdown();
+        }
+    }
+    
+    static void executorNamesAndBounds() throws Exception {
+        ExecutorService executor = chk_jdbc_fixed.newVirtualThreadExecutor("chk-test", 2);
+        try {
+            AtomicInteger running = new AtomicInteger();
+            AtomicInteger maxRunning = new AtomicInteger();
+            Set<String> names = ConcurrentHashMap.newKeySet();
+            List<Future<?>> tasks = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                tasks.add(executor.submit(() -> {
+                    names.add(Thread.currentThread().getName());
+                    maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                    Thread.sleep(20);
+                    running.decrementAndGet();
+                    return null;
+                }));
+            }
+            for (Future<?> task : tasks) {
+                task.get();
+            }
+            check(names.stream().allMatch(name -> name.startsWith("chk-test-")), "thread names " + names);
+            if (Runtime.version().feature() < 21) {
+                check(maxRunning.get() <= 2, maxRunning.get() + " tasks ran at once on a 2-thread fallback pool");
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+    
+    static void tokenCacheEvictsTenants() throws Exception {
+        try (TokenCache cache = new TokenCache(() -> "stub-subject-token", null, 4)) {
+            for (int i = 0; i < 20; i++) {
+                cache.getToken("audience", "tenant-" + i + "@stub-project.iam.gserviceaccount.com", chk_jdbc_fixed.DEFAULT_TOKEN_SCOPES);
+            }
+            check(cache.size() <= 4, "cache holds at most maxEntries providers, has " + cache.size());
+            checkEquals(20L, cache.size() + cache.evictions.sum(), "every miss is cached or evicted");
+            cache.getToken("audience", "tenant-19@stub-project.iam.gserviceaccount.com", chk_jdbc_fixed.DEFAULT_TOKEN_SCOPES);
+            checkEquals(1L, cache.hits.sum(), "most recent tenant is still cached");
+        }
+    }
+    
+    static void tokenCacheBoundIsGlobal() throws Exception {
+        // 16 entries over 16 stripes: a stripe holding two tenants mustn't evict while there is room
+        try (TokenCache cache = new TokenCache(() -> "stub-subject-token", null, 16)) {
+            for (int i = 0; i < 12; i++) {
+                cache.provider(new TokenCache.Key("audience", "tenant-" + i + "@stub-project.iam.gserviceaccount.com", chk_jdbc_fixed.DEFAULT_TOKEN_SCOPES));
+            }
+            checkEquals(0L, cache.evictions.sum(), "evictions below maxEntries");
+            checkEquals(12, cache.size(), "tenants cached");
+            for (int i = 12; i < 40; i++) {
+                cache.provider(new TokenCache.Key("audience", "tenant-" + i + "@stub-project.iam.gserviceaccount.com", chk_jdbc_fixed.DEFAULT_TOKEN_SCOPES));
+            }
+            checkEquals(16, cache.size(), "tenants cached once full");
+            checkEquals(24L, cache.evictions.sum(), "evictions beyond maxEntries");
+        }
+    }
+    
+    static void tokenCacheEvictsAudiences() throws Exception {
+        String previous = System.getProperty("chk.tokenCacheMaxAudiences");
+        System.setProperty("chk.tokenCacheMaxAudiences", "4");
+        try (TokenCache cache = new TokenCache(() -> "stub-subject-token", null, 64)) {
+            for (int i = 0; i < 10; i++) {
+                cache.getToken("audience-" + i, "tenant@stub-project.iam.gserviceaccount.com", chk_jdbc_fixed.DEFAULT_TOKEN_SCOPES);
+            }
+            checkEquals(6L, cache.audienceEvictions.sum(), "audience evictions beyond the cap");
+        } finally {
+            if (previous == null) {
+                System.clearProperty("chk.tokenCacheMaxAudiences");
+            } else {
+                System.setProperty("chk.tokenCacheMaxAudiences", previous);
+            }
+        }
+    }
+    
+    static void rotationUnsubscribesOnShutdown() throws Exception {
+        File directory = new File(work, "rotation");
+        check(directory.mkdirs(), "created " + directory);
+        Path tokenFile = Files.write(new File(directory, "token").toPath(), "subject-1".getBytes(StandardCharsets.UTF_8));
+        chk_jdbc_fixed.ProjectedTokenSource source = new chk_jdbc_fixed.ProjectedTokenSource(tokenFile);
+        TokenProvider provider = fixedToken();
+        source.refreshOnRotation(provider);
+        checkEquals(1, source.subscriberCount(), "subscribers before shutdown");
+        provider.shutdown();
+        checkEquals(0, source.subscriberCount(), "subscribers after shutdown, with no rotation in between");
+        source.refreshOnRotation(provider);
+        checkEquals(0, source.subscriberCount(), "subscribing an already shut-down provider");
+    }
+    
+    static UnixDomainPrincipal peer(String user, String group) throws Exception {
+        UserPrincipalLookupService principals = FileSystems.getDefault().getUserPrincipalLookupService();
+        return new UnixDomainPrincipal(principals.lookupPrincipalByName(user), principals.lookupPrincipalByGroupName(group));
+    }
+    
+    static void brokerRefusesOtherPeers() throws Exception {
+        String self = System.getProperty("user.name");
+        Path socket = new File(work, "broker.sock").toPath();
+        try (TokenBroker broker = new TokenBroker(socket, new TokenCache(() -> "stub-subject-token", null, 4))) {
+            checkEquals("rw-------", PosixFilePermissions.toString(Files.getPosixFilePermissions(socket)), "socket mode without allow-lists");
+            check(broker.allows(peer(self, "4343")), "owner allowed");
+            check(!broker.allows(peer("4242", "4343")), "other user refused by default");
+        }
+        System.setProperty("chk.brokerAllowUids", "4242");
+        System.setProperty("chk.brokerAllowGids", "4343");
+        try (TokenBroker broker = new TokenBroker(socket, new TokenCache(() -> "stub-subject-token", null, 4))) {
+            checkEquals("rw-rw-rw-", PosixFilePermissions.toString(Files.getPosixFilePermissions(socket)), "socket mode with allow-lists");
+            check(broker.allows(peer("4242", "5001")), "allow-listed uid");
+            check(broker.allows(peer("5000", "4343")), "allow-listed gid");
+            check(!broker.allows(peer("5000", "5001")), "uid and gid both off the allow-lists refused");
+        } finally {
+            System.clearProperty("chk.brokerAllowUids");
+            System.clearProperty("chk.brokerAllowGids");
+        }
+    }
+    
+    static chk_jdbc_fixed.WifConfig loadWif(Path file, String json, chk_jdbc_fixed.WifConfig previous) throws Exception {
+        Files.write(file, json.getBytes(StandardCharsets.UTF_8));
+        FileTime lastModified = FileTime.fromMillis(previous == null ? 1_000 : previous.lastModified.toMillis() + 1_000);
+        Files.setLastModifiedTime(file, lastModified);
+        return chk_jdbc_fixed.WifConfig.load(file, lastModified, previous);
+    }
+    
+    static void wifFields() throws Exception {
+        chk_jdbc_fixed.WifConfig config = loadWif(new File(work, "fields.json").toPath(), "{\n"
+                + "  \"type\": \"external_account\",\n"
+                + "  \"audience\": \"//iam.googleapis.com/projects/42/pools/p\\u002Fq\",\n"
+                + "  \"token_url\": \"https://sts.example.com/v1/token\",\n"
+                + "  \"service_account_impersonation_url\": \"https://iam.example.com/v1/projects/-/serviceAccounts/sa@p.iam.gserviceaccount.com:generateAccessToken\",\n"
+                + "  \"credential_source\": {\"file\": \"/tmp/projected-token\"}\n"
+                + "}\n", null);
+        checkEquals("//iam.googleapis.com/projects/42/pools/p/q", config.audience, "audience with a \\u escape");
+        checkEquals("https://sts.example.com/v1/token", config.tokenUrl, "token_url");
+        checkEquals("https://iam.example.com", config.iamCredentialsUrl, "IAM Credentials URL");
+        checkEquals("sa@p.iam.gserviceaccount.com", config.serviceAccount, "impersonated service account");
+        checkEquals("/tmp/projected-token", config.tokenFile, "token file from credential_source");
+        check(config.stsBodyPrefix.endsWith("&subject_token="), "STS body prefix ends before the subject token");
+    }
+    
+    static void wifMalformedEscapeKeepsPrevious() throws Exception {
+        Path file = new File(work, "malformed.json").toPath();
+        chk_jdbc_fixed.WifConfig good = loadWif(file, "{\"type\": \"external_account\", \"audience\": \"good-audience\"}", null);
+        chk_jdbc_fixed.WifConfig broken = loadWif(file, "{\"type\": \"external_account\", \"audience\": \"bad\\u12G4\"}", good);
+        checkEquals("good-audience", broken.audience, "audience after a malformed escape");
+        checkEquals(Files.getLastModifiedTime(file), broken.lastModified, "snapshot takes the new mtime");
+        chk_jdbc_fixed.WifConfig truncated = loadWif(file, "{\"type\": \"external_account\", \"audience\": \"bad\\u12\"}", broken);
+        checkEquals("good-audience", truncated.audience, "audience after a truncated escape");
+    }
+    
+    static void wifDefaults() throws Exception {
+        chk_jdbc_fixed.WifConfig config = chk_jdbc_fixed.WifConfig.load(new File(work, "missing.json").toPath(), null, null);
+        checkEquals("https://iamcredentials.googleapis.com", config.iamCredentialsUrl, "default IAM Credentials URL");
+        checkEquals("/var/run/service-account/token", config.tokenFile, "default token file");
+        check(config.audience != null && !config.audience.isEmpty(), "default audience");
+    }
+    
+    static void metadataCacheOffByDefault() throws Exception {
+        System.clearProperty("chk.metadataCache");
+        StubBigQueryDriver driver = new StubBigQueryDriver();
+        Properties props = new Properties();
+        try (Connection connection = driver.connect(URL, props)) {
+            check(MetadataCache.wrap(connection, driver, URL, props) == connection, "wrap is a no-op unless chk.metadataCache is set");
+        }
+    }
+    
+    static void metadataCacheScopedByPrincipal() throws Exception {
+        System.setProperty("chk.metadataCache", "true");
+        try {
+            MetadataCache cache = MetadataCache.shared();
+            long misses = cache.misses.sum();
+            long hits = cache.hits.sum();
+            listTables("alice@stub-project.iam.gserviceaccount.com");
+            checkEquals(misses + 1, cache.misses.sum(), "first lookup misses");
+            listTables("alice@stub-project.iam.gserviceaccount.com");
+            checkEquals(hits + 1, cache.hits.sum(), "same principal on a new connection hits");
+            listTables("bob@stub-project.iam.gserviceaccount.com");
+            checkEquals(misses + 2, cache.misses.sum(), "another principal does not see the cached entry");
+            // Written now rather than by the exit hook, which would race the temp directory cleanup
+            cache.writeSnapshotIfDirty();
+            check(new File(System.getProperty("chk.metadataSnapshot")).isFile(), "snapshot written");
+        } finally {
+            System.clearProperty("chk.metadataCache");
+        }
+    }
+    
+    static MetadataCache newMetadataCache(String snapshot, Duration ttl) {
+        return new MetadataCache(new File(work, snapshot).toPath(), ttl, Duration.ofHours(1), 100_000);
+    }
+    
+    static Properties bearer(String token) {
+        Properties props = new Properties();
+        props.setProperty("AuthenticationType", "1");
+        props.setProperty("OAuthType", "1");
+        props.setProperty("OAuthAccessToken", token);
+        return props;
+    }
+    
+    static void metadataCacheScopeSurvivesNewToken() throws Exception {
+        MetadataCache cache = newMetadataCache("token-scope.snapshot", Duration.ofMinutes(10));
+        StubBigQueryDriver driver = new StubBigQueryDriver();
+        listColumns(cache, driver, bearer("ya29.first-token"), "table_1");
+        listColumns(cache, driver, bearer("ya29.refreshed-token"), "table_1");
+        checkEquals(1L, cache.misses.sum(), "misses");
+        checkEquals(1L, cache.hits.sum(), "a new token for the same service account hits");
+    }
+    
+    static void metadataSnapshotRoundTrip() throws Exception {
+        MetadataCache cache = newMetadataCache("round-trip.snapshot", Duration.ofMinutes(10));
+        StubBigQueryDriver driver = new StubBigQueryDriver();
+        Properties props = new Properties();
+        props.setProperty("OAuthServiceAcctEmail", "alice@stub-project.iam.gserviceaccount.com");
+        listColumns(cache, driver, props, "table_1");
+        listColumns(cache, driver, props, "table_2");
+        cache.writeSnapshotIfDirty();
+        
+        MetadataCache restored = newMetadataCache("round-trip.snapshot", Duration.ofMinutes(10));
+        restored.readSnapshot();
+        checkEquals(10, listColumns(restored, driver, props, "table_2"), "columns from the snapshot");
+        checkEquals(1L, restored.hits.sum(), "restored cache hits");
+        checkEquals(0L, restored.misses.sum(), "restored cache misses");
+        props.setProperty("OAuthServiceAcctEmail", "bob@stub-project.iam.gserviceaccount.com");
+        listColumns(restored, driver, props, "table_2");
+        checkEquals(1L, restored.misses.sum(), "another principal misses after a restore");
+    }
+    
+    static void metadataRefreshUsesCurrentToken() throws Exception {
+        StubBigQueryDriver stub = new StubBigQueryDriver();
+        List<String> connectTokens = new CopyOnWriteArrayList<>();
+        Driver driver = (Driver) Proxy.newProxyInstance(Driver.class.getClassLoader(), new Class<?>[] {Driver.class},
+                (proxy, method, args) -> {
+                    if ("connect".equals(method.getName())) {
+                        connectTokens.add(((Properties) args[1]).getProperty("OAuthAccessToken"));
+                    }
+                    return method.invoke(stub, args);
+                });
+        // Everything is stale right away, so every hit queues a refresh
+        MetadataCache cache = newMetadataCache("refresh.snapshot", Duration.ZERO);
+        for (int i = 1; i <= 5; i++) {
+            listColumns(cache, driver, bearer("ya29.expired-token"), "table_" + i);
+        }
+        TokenProvider current = new TokenProvider(() -> new AccessToken("ya29.current-token",
+                Instant.now().plus(Duration.ofHours(1))), chk_jdbc_fixed.TOKEN_REFRESH_SKEW);
+        MetadataCache.refreshWith(current);
+        System.setProperty("chk.stubMetadataMillis", "50");
+        try {
+            connectTokens.clear();
+            for (int i = 1; i <= 5; i++) {
+                listColumns(cache, driver, bearer("ya29.expired-token"), "table_" + i);
+            }
+            long deadline = System.nanoTime() + Duration.ofSeconds(10).toNanos();
+            while (cache.refreshes.sum() < 5 && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            checkEquals(5L, cache.refreshes.sum(), "stale results refreshed");
+            // The five callers' own connections, then one refresh connection for the dataset
+            checkEquals(6, connectTokens.size(), "connections opened");
+            checkEquals("ya29.current-token", connectTokens.get(5), "refresh connection token");
+        } finally {
+            System.clearProperty("chk.stubMetadataMillis");
+            MetadataCache.refreshWith(null);
+            current.shutdown();
+        }
+    }
+    
+    private static int listColumns(MetadataCache cache, Driver driver, Properties props, String table) throws Exception {
+        try (Connection connection = cache.cached(driver.connect(URL, props), driver, URL, props)) {
+            int columns = 0;
+            try (ResultSet rs = connection.getMetaData().getColumns(null, "scoped_dataset", table, null)) {
+                while (rs.next()) {
+                    columns++;
+                }
+            }
+            return columns;
+        }
+    }
+    
+    private static void listTables(String serviceAccount) throws Exception {
+        StubBigQueryDriver driver = new StubBigQueryDriver();
+        Properties props = new Properties();
+        props.setProperty("OAuthServiceAcctEmail", serviceAccount);
+        try (Connection connection = MetadataCache.wrap(driver.connect(URL, props), driver, URL, props)) {
+            DatabaseMetaData metaData = connection.getMetaData();
+            int tables = 0;
+            try (ResultSet rs = metaData.getTables(null, "scoped_dataset", null, null)) {
+                while (rs.next()) {
+                    tables++;
+                }
+            }
+            check(tables > 0, "stub driver lists tables");
+        }
+    }
+}
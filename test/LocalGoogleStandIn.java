@@ -0,0 +1,187 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Local HTTP stand-in for sts.googleapis.com and iamcredentials.googleapis.com, so the
+ * token path can be exercised offline. Responses follow the real APIs' JSON shape.
+ * Also answers the permission audit's Resource Manager / BigQuery testIamPermissions and
+ * tables.list calls, granting everything except deniedPermissions.
+ */
+final class LocalGoogleStandIn implements AutoCloseable {
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final Duration latency;
+    final AtomicInteger stsRequests = new AtomicInteger();
+    final AtomicInteger iamRequests = new AtomicInteger();
+    private final AtomicInteger failuresToInject = new AtomicInteger();
+    private final AtomicInteger delaysToInject = new AtomicInteger();
+    private volatile int injectedStatus = 503;
+    private volatile Duration injectedDelay = Duration.ZERO;
+    final AtomicInteger permissionRequests = new AtomicInteger();
+    final AtomicInteger datasetListRequests = new AtomicInteger();
+    volatile boolean federatedDirectAccess;
+    final Set<String> deniedPermissions = ConcurrentHashMap.newKeySet();
+    volatile int tablesPerDataset = 3;
+    
+    LocalGoogleStandIn(Duration latency) throws IOException {
+        this.latency = latency;
+        // Without TCP_NODELAY the JDK server's separate header/body writes hit delayed ACKs (~40 ms per call)
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        this.server = HttpServer.create(
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        this.executor = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "google-stand-in");
+            t.setDaemon(true);
+            return t;
+        });
+        server.createContext("/v1/token", exchange -> {
+            stsRequests.incrementAndGet();
+            respond(exchange, "{\"access_token\":\"stub-federated-token-" + stsRequests.get()
+                    + "\",\"issued_token_type\":\"urn:ietf:params:oauth:token-type:access_token\""
+                    + ",\"token_type\":\"Bearer\",\"expires_in\":3599}");
+        });
+        server.createContext("/v1/projects/", exchange -> {
+            if (exchange.getRequestURI().getPath().endsWith(":testIamPermissions")) {
+                // Resource Manager projects.testIamPermissions
+                respondToPermissionTest(exchange);
+                return;
+            }
+            iamRequests.incrementAndGet();
+            respond(exchange, "{\n  \"accessToken\": \"ya29.stub-access-token-" + iamRequests.get()
+                    + "\",\n  \"expireTime\": \"" + Instant.now().plus(chk_jdbc_fixed.DEFAULT_TOKEN_LIFETIME) + "\"\n}");
+        });
+        server.createContext("/bigquery/v2/projects/", exchange -> {
+            String path = exchange.getRequestURI().getPath();
+            if (path.endsWith(":testIamPermissions")) {
+                respondToPermissionTest(exchange);
+            } else if (path.endsWith("/tables")) {
+                String dataset = path.substring(0, path.length() - "/tables".length());
+                dataset = dataset.substring(dataset.lastIndexOf('/') + 1);
+                StringBuilder body = new StringBuilder("{\"kind\":\"bigquery#tableList\",\"tables\":[");
+                for (int i = 1; i <= tablesPerDataset; i++) {
+                    body.append(i > 1 ? "," : "").append("{\"kind\":\"bigquery#table\",\"tableReference\":{\"datasetId\":\"")
+                            .append(dataset).append("\",\"tableId\":\"table_").append(i).append("\"},\"type\":\"TABLE\"}");
+                }
+                respond(exchange, body.append("],\"totalItems\":").append(tablesPerDataset).append('}').toString());
+            } else if (path.endsWith("/datasets")) {
+                // datasets.list, the direct token probe: federated tokens only pass with federatedDirectAccess
+                datasetListRequests.incrementAndGet();
+                String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+                if (!federatedDirectAccess && authorization != null && authorization.startsWith("Bearer stub-federated-token")) {
+                    respond(exchange, 403, "{\"error\":{\"code\":403,\"message\":\"Permission bigquery.datasets.get denied\",\"status\":\"PERMISSION_DENIED\"}}");
+                } else {
+                    respond(exchange, "{\"kind\":\"bigquery#datasetList\",\"datasets\":[]}");
+                }
+            } else {
+                respond(exchange, 404, "{\"error\":{\"code\":404,\"message\":\"Not found: " + path + "\"}}");
+            }
+        });
+        server.setExecutor(executor);
+        server.start();
+    }
+    
+    String baseUrl() {
+        return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort();
+    }
+    
+    /**
+     * Point exchangeTokenWithSTS and impersonateServiceAccountAsync at this stand-in. This sets
+     * JVM-wide system properties, so only test launchers and test cases call it.
+     */
+    void installAsEndpoints() {
+        System.setProperty("chk.stsUrl", baseUrl() + "/v1/token");
+        System.setProperty("chk.iamCredentialsUrl", baseUrl());
+        System.setProperty("chk.resourceManagerUrl", baseUrl());
+        System.setProperty("chk.bigQueryApiUrl", baseUrl());
+    }
+    
+    /**
+     * testIamPermissions: grant every requested permission except deniedPermissions
+     */
+    private void respondToPermissionTest(HttpExchange exchange) throws IOException {
+        permissionRequests.incrementAndGet();
+        // Left open: respond() drains and closes the request body
+        String request = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+        Matcher requested = chk_jdbc_fixed.PermissionProbe.PERMISSIONS_ARRAY.matcher(request);
+        List<String> granted = new ArrayList<>();
+        if (requested.find()) {
+            for (String permission : chk_jdbc_fixed.PermissionProbe.matches(chk_jdbc_fixed.PermissionProbe.QUOTED, requested.group(1))) {
+                if (!deniedPermissions.contains(permission)) {
+                    granted.add("\"" + permission + "\"");
+                }
+            }
+        }
+        respond(exchange, granted.isEmpty() ? "{}" : "{\"permissions\":[" + String.join(",", granted) + "]}");
+    }
+    
+    /**
+     * Answer the next count requests (STS or IAM) with status instead of a token
+     */
+    void injectFailures(int count, int status) {
+        injectedStatus = status;
+        failuresToInject.set(count);
+    }
+    
+    /**
+     * Hold the next count requests for an extra delay, e.g. to trigger hedging
+     */
+    void injectDelays(int count, Duration delay) {
+        injectedDelay = delay;
+        delaysToInject.set(count);
+    }
+    
+    private static boolean takeOne(AtomicInteger remaining) {
+        return remaining.getAndUpdate(n -> Math.max(0, n - 1)) > 0;
+    }
+    
+    private void respond(HttpExchange exchange, String body) throws IOException {
+        respond(exchange, 200, body);
+    }
+    
+    private void respond(HttpExchange exchange, int status, String body) throws IOException {
+        try (InputStream in = exchange.getRequestBody()) {
+            in.readAllBytes();
+        }
+        Duration delay = takeOne(delaysToInject) ? latency.plus(injectedDelay) : latency;
+        if (!delay.isZero()) {
+            try {
+                Thread.sleep(delay.toMillis());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (takeOne(failuresToInject)) {
+            status = injectedStatus;
+            body = "{\"error\":{\"code\":" + status + ",\"message\":\"injected failure\",\"status\":\"UNAVAILABLE\"}}";
+        }
+        byte[] bytes = body.getBytes("UTF-8");
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+    
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,68 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+/**
+ * Runs a chk_jdbc_fixed mode offline: Google APIs answered by LocalGoogleStandIn, the Simba
+ * driver replaced by StubBigQueryDriver, token and WIF credential files in a temp directory.
+ * Stand-in latency per call is -Dchk.standInLatencyMillis. From the repository root:
+ *   javac -d classes -sourcepath . chk_jdbc_fixed.java
+ *   javac -d test-classes -cp classes -sourcepath test test/*.java
+ *   java -cp classes:test-classes OfflineLauncher load
+ */
+final class OfflineLauncher {
+    
+    public static void main(String[] args) throws Exception {
+        LocalGoogleStandIn standIn = new LocalGoogleStandIn(Duration.ofMillis(Long.getLong("chk.standInLatencyMillis", 0L)));
+        File work = Files.createTempDirectory("chk-offline").toFile();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            standIn.close();
+            Benchmarks.deleteRecursively(work);
+        }, "offline-stand-in-shutdown"));
+        install(standIn, work);
+        System.out.println("Offline: local Google API stand-in at " + standIn.baseUrl() + ", stub driver");
+        try {
+            chk_jdbc_fixed.main(args);
+        } finally {
+            // The HTTP server's dispatcher thread is not a daemon; the hook only covers System.exit
+            standIn.close();
+        }
+    }
+    
+    /**
+     * Point the tool at standIn, with the token file, WIF credential file and a one-jar
+     * driver directory written under work
+     */
+    static void install(LocalGoogleStandIn standIn, File work) throws IOException {
+        standIn.installAsEndpoints();
+        Path tokenFile = Files.write(new File(work, "token").toPath(), "stub-subject-token".getBytes(StandardCharsets.UTF_8));
+        Path credentialFile = Files.write(new File(work, "wif.json").toPath(), ("{\n"
+                + "  \"type\": \"external_account\",\n"
+                + "  \"audience\": \"//iam.googleapis.com/projects/1/locations/global/workloadIdentityPools/stub/providers/stub\",\n"
+                + "  \"subject_token_type\": \"urn:ietf:params:oauth:token-type:jwt\",\n"
+                + "  \"token_url\": \"" + standIn.baseUrl() + "/v1/token\",\n"
+                + "  \"service_account_impersonation_url\": \"" + standIn.baseUrl()
+                + "/v1/projects/-/serviceAccounts/stub-sa@stub-project.iam.gserviceaccount.com:generateAccessToken\",\n"
+                + "  \"credential_source\": {\"file\": \"" + tokenFile + "\"}\n"
+                + "}\n").getBytes(StandardCharsets.UTF_8));
+        File drivers = new File(work, "drivers");
+        if (!drivers.mkdirs() && !drivers.isDirectory()) {
+            throw new IOException("Could not create " + drivers);
+        }
+        // createDriverClassLoader wants at least one jar; the stub driver itself comes from the class path
+        try (JarOutputStream out = new JarOutputStream(new FileOutputStream(new File(drivers, "stub-driver.jar")), new Manifest())) {
+            out.finish();
+        }
+        System.setProperty("chk.tokenFile", tokenFile.toString());
+        System.setProperty("chk.credentialFile", credentialFile.toString());
+        System.setProperty("chk.driverClass", StubBigQueryDriver.class.getName());
+        System.setProperty("chk.driverPath", drivers.getPath());
+        System.setProperty("chk.driverIndexDir", work.getPath());
+    }
+}
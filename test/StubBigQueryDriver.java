@@ -0,0 +1,209 @@
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.Driver;
+import java.sql.DriverPropertyInfo;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Logger;
+
+/**
+ * JDBC driver that accepts jdbc:bigquery: URLs and hands out in-memory connections.
+ * Select it with -Dchk.driverClass=StubBigQueryDriver; connect latency
+ * can be simulated with -Dchk.stubConnectMillis.
+ */
+public final class StubBigQueryDriver implements Driver {
+    
+    public StubBigQueryDriver() {
+    }
+    
+    public boolean acceptsURL(String url) {
+        return url != null && url.startsWith("jdbc:bigquery:");
+    }
+    
+    public Connection connect(String url, Properties info) throws SQLException {
+        if (!acceptsURL(url)) {
+            return null;
+        }
+        long connectMillis = Long.getLong("chk.stubConnectMillis", 0L);
+        if (connectMillis > 0) {
+            try {
+                Thread.sleep(connectMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted while connecting", e);
+            }
+        }
+        AtomicBoolean closed = new AtomicBoolean();
+        DatabaseMetaData metaData = stubProxy(DatabaseMetaData.class, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "getDatabaseProductName":
+                    return "Stub BigQuery";
+                case "getDriverName":
+                    return "chk_jdbc_fixed stub driver";
+                case "getDriverVersion":
+                    return "1.0";
+                case "getTables":
+                case "getColumns":
+                    return stubMetadataResult(method.getName(), (String) args[1], (String) args[2]);
+                default:
+                    return chk_jdbc_fixed.defaultValue(method.getReturnType());
+            }
+        });
+        return stubProxy(Connection.class, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "close":
+                    closed.set(true);
+                    return null;
+                case "isClosed":
+                    return closed.get();
+                case "isValid":
+                    return !closed.get();
+                case "getMetaData":
+                    return metaData;
+                case "createStatement":
+                    if (closed.get()) {
+                        throw new SQLException("Connection is closed");
+                    }
+                    return stubStatement((Connection) proxy);
+                default:
+                    return chk_jdbc_fixed.defaultValue(method.getReturnType());
+            }
+        });
+    }
+    
+    /**
+     * getTables: -Dchk.stubTables tables (default 20) table_1..; getColumns: 10 STRING columns per table.
+     * Each call takes -Dchk.stubMetadataMillis, like a BigQuery API round trip.
+     */
+    private static ResultSet stubMetadataResult(String method, String dataset, String table) throws InterruptedException {
+        long metadataMillis = Long.getLong("chk.stubMetadataMillis", 0L);
+        if (metadataMillis > 0) {
+            Thread.sleep(metadataMillis);
+        }
+        List<Object[]> rows = new ArrayList<>();
+        if ("getTables".equals(method)) {
+            for (int i = 1; i <= Integer.getInteger("chk.stubTables", 20); i++) {
+                rows.add(new Object[] {"stub-project", dataset, "table_" + i, "TABLE", null});
+            }
+            return new MetadataCache.Result(dataset, new String[] {"TABLE_CAT", "TABLE_SCHEM", "TABLE_NAME", "TABLE_TYPE", "REMARKS"},
+                    new int[] {Types.VARCHAR, Types.VARCHAR, Types.VARCHAR, Types.VARCHAR, Types.VARCHAR},
+                    new String[] {"STRING", "STRING", "STRING", "STRING", "STRING"}, rows, System.currentTimeMillis()).resultSet();
+        }
+        for (int i = 1; i <= 10; i++) {
+            rows.add(new Object[] {"stub-project", dataset, table, "column_" + i, Types.VARCHAR, "STRING", i});
+        }
+        return new MetadataCache.Result(dataset, new String[] {"TABLE_CAT", "TABLE_SCHEM", "TABLE_NAME", "COLUMN_NAME", "DATA_TYPE", "TYPE_NAME", "ORDINAL_POSITION"},
+                new int[] {Types.VARCHAR, Types.VARCHAR, Types.VARCHAR, Types.VARCHAR, Types.INTEGER, Types.VARCHAR, Types.INTEGER},
+                new String[] {"STRING", "STRING", "STRING", "STRING", "INT64", "STRING", "INT64"}, rows, System.currentTimeMillis()).resultSet();
+    }
+    
+    /**
+     * Statement whose queries all return a single row with the value 1 in column f0_;
+     * query latency can be simulated with -Dchk.stubQueryMillis
+     */
+    private static Statement stubStatement(Connection connection) {
+        ResultSetMetaData resultMetaData = stubProxy(ResultSetMetaData.class, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "getColumnCount":
+                    return 1;
+                case "getColumnName":
+                case "getColumnLabel":
+                    return "f0_";
+                case "getColumnType":
+                    return Types.BIGINT;
+                default:
+                    return chk_jdbc_fixed.defaultValue(method.getReturnType());
+            }
+        });
+        AtomicReference<ResultSet> current = new AtomicReference<>();
+        return stubProxy(Statement.class, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "executeQuery":
+                case "execute":
+                    long queryMillis = Long.getLong("chk.stubQueryMillis", 0L);
+                    if (queryMillis > 0) {
+                        Thread.sleep(queryMillis);
+                    }
+                    current.set(stubResultSet((Statement) proxy, resultMetaData));
+                    return "execute".equals(method.getName()) ? (Object) true : current.get();
+                case "getResultSet":
+                    return current.get();
+                case "getConnection":
+                    return connection;
+                default:
+                    return chk_jdbc_fixed.defaultValue(method.getReturnType());
+            }
+        });
+    }
+    
+    private static ResultSet stubResultSet(Statement statement, ResultSetMetaData metaData) {
+        AtomicInteger row = new AtomicInteger();
+        return stubProxy(ResultSet.class, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "next":
+                    return row.incrementAndGet() == 1;
+                case "getObject":
+                case "getLong":
+                    return 1L;
+                case "getInt":
+                    return 1;
+                case "getString":
+                    return "1";
+                case "getMetaData":
+                    return metaData;
+                case "getStatement":
+                    return statement;
+                default:
+                    return chk_jdbc_fixed.defaultValue(method.getReturnType());
+            }
+        });
+    }
+    
+    public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) {
+        return new DriverPropertyInfo[0];
+    }
+    
+    public int getMajorVersion() {
+        return 1;
+    }
+    
+    public int getMinorVersion() {
+        return 0;
+    }
+    
+    public boolean jdbcCompliant() {
+        return false;
+    }
+    
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        throw new SQLFeatureNotSupportedException();
+    }
+    
+    static <T> T stubProxy(Class<T> type, InvocationHandler handler) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "equals":
+                            return proxy == args[0];
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "toString":
+                            return "Stub" + type.getSimpleName() + "@" + Integer.toHexString(System.identityHashCode(proxy));
+                        default:
+                            return handler.invoke(proxy, method, args);
+                    }
+                }));
+    }
+}